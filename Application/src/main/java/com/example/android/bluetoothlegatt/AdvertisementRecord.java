@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Reads the AD structures of a raw scan record in place.
+ *
+ * {@link #parse(byte[])} only walks the record once, remembering where the fields of interest
+ * are; the accessors then read straight from the caller's array.  Nothing is copied and no
+ * object is created per field, so one instance can be reused for every advertisement of a
+ * scan.  Only {@link #getLocalName()} allocates, and {@link #localNameEquals(String)} avoids
+ * even that for the common case of an unchanged name.
+ *
+ * The record must not be modified while it is being read through this object.
+ */
+public class AdvertisementRecord {
+    // AD types, from the Bluetooth Assigned Numbers.
+    private static final int TYPE_FLAGS = 0x01;
+    private static final int TYPE_UUID16_PARTIAL = 0x02;
+    private static final int TYPE_UUID16_COMPLETE = 0x03;
+    private static final int TYPE_UUID32_PARTIAL = 0x04;
+    private static final int TYPE_UUID32_COMPLETE = 0x05;
+    private static final int TYPE_UUID128_PARTIAL = 0x06;
+    private static final int TYPE_UUID128_COMPLETE = 0x07;
+    private static final int TYPE_NAME_SHORT = 0x08;
+    private static final int TYPE_NAME_COMPLETE = 0x09;
+    private static final int TYPE_TX_POWER = 0x0A;
+    private static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // The bits every 16- and 32-bit UUID shares with the Bluetooth base UUID.
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_UUID_MSB_LOW = 0x00001000L;
+
+    /** Value of the getters for fields the record does not contain. */
+    public static final int UNKNOWN = -1;
+
+    private byte[] mRecord;
+    private int mFlags;
+    private int mTxPower;
+    private int mNameOffset;
+    private int mNameLength;
+    private boolean mNameComplete;
+    private int mManufacturerId;
+    private int mManufacturerOffset;
+    private int mManufacturerLength;
+
+    /**
+     * Parses a scan record, as returned by {@code ScanRecord.getBytes()}.  The record is
+     * padded with zeros; a malformed structure ends the parse, keeping what came before it.
+     *
+     * @return false if the record is null or holds no AD structure.
+     */
+    public boolean parse(byte[] record) {
+        mRecord = record;
+        mFlags = UNKNOWN;
+        mTxPower = Integer.MIN_VALUE;
+        mNameOffset = UNKNOWN;
+        mNameLength = 0;
+        mNameComplete = false;
+        mManufacturerId = UNKNOWN;
+        mManufacturerOffset = UNKNOWN;
+        mManufacturerLength = 0;
+        if (record == null) return false;
+
+        boolean found = false;
+        int offset = 0;
+        while (offset < record.length) {
+            final int length = record[offset] & 0xFF;
+            // A zero length marks the end of the significant part.
+            if (length == 0 || offset + length >= record.length) break;
+            final int type = record[offset + 1] & 0xFF;
+            final int data = offset + 2;
+            final int dataLength = length - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength >= 1) mFlags = record[data] & 0xFF;
+                    break;
+                case TYPE_TX_POWER:
+                    if (dataLength >= 1) mTxPower = record[data];
+                    break;
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    // The complete name wins over a shortened one.
+                    if (!mNameComplete) {
+                        mNameOffset = data;
+                        mNameLength = dataLength;
+                        mNameComplete = type == TYPE_NAME_COMPLETE;
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2 && mManufacturerId == UNKNOWN) {
+                        mManufacturerId = uint16(record, data);
+                        mManufacturerOffset = data + 2;
+                        mManufacturerLength = dataLength - 2;
+                    }
+                    break;
+            }
+            found = true;
+            offset += length + 1;
+        }
+        return found;
+    }
+
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    /**
+     * @return The advertising flags, or {@link #UNKNOWN}.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return The advertised transmit power in dBm, or {@code Integer.MIN_VALUE} if absent.
+     */
+    public int getTxPowerLevel() {
+        return mTxPower;
+    }
+
+    public boolean hasLocalName() {
+        return mNameOffset != UNKNOWN;
+    }
+
+    /**
+     * @return The local name, complete or shortened, decoded into a new String; null if absent.
+     */
+    public String getLocalName() {
+        if (mNameOffset == UNKNOWN) return null;
+        final char[] chars = new char[mNameLength];
+        int count = 0;
+        for (int i = 0; i < mNameLength; ) {
+            final int c = decodeUtf8(mRecord, mNameOffset + i, mNameOffset + mNameLength);
+            if (c < 0) break;
+            chars[count++] = (char) (c & 0xFFFF);
+            i += c >>> 16;
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Compares the local name with {@code name} without decoding it into a String.
+     */
+    public boolean localNameEquals(String name) {
+        if (mNameOffset == UNKNOWN || name == null) return mNameOffset == UNKNOWN && name == null;
+        int index = 0;
+        for (int i = 0; i < mNameLength; ) {
+            final int c = decodeUtf8(mRecord, mNameOffset + i, mNameOffset + mNameLength);
+            if (c < 0 || index >= name.length() || name.charAt(index++) != (char) (c & 0xFFFF)) {
+                return false;
+            }
+            i += c >>> 16;
+        }
+        return index == name.length();
+    }
+
+    /**
+     * @return The company ID of the first manufacturer data structure, or {@link #UNKNOWN}.
+     */
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * @return Offset in {@link #getRecord()} of the manufacturer data after the company ID, or
+     *         {@link #UNKNOWN}.
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerOffset;
+    }
+
+    public int getManufacturerDataLength() {
+        return mManufacturerLength;
+    }
+
+    /**
+     * @return Byte {@code index} of the manufacturer data, unsigned, or {@link #UNKNOWN} if
+     *         there is no such byte.
+     */
+    public int getManufacturerByte(int index) {
+        if (index < 0 || index >= mManufacturerLength) return UNKNOWN;
+        return mRecord[mManufacturerOffset + index] & 0xFF;
+    }
+
+    /**
+     * Searches the complete and partial service UUID lists of every width.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        final byte[] record = mRecord;
+        if (record == null) return false;
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        // Only UUIDs built on the Bluetooth base UUID have a 16- or 32-bit form.
+        final boolean shortForm = lsb == BASE_UUID_LSB
+                && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB_LOW;
+        final long uuid32 = msb >>> 32;
+        int offset = 0;
+        while (offset < record.length) {
+            final int length = record[offset] & 0xFF;
+            if (length == 0 || offset + length >= record.length) break;
+            final int type = record[offset + 1] & 0xFF;
+            final int end = offset + length + 1;
+            for (int i = offset + 2; i < end; ) {
+                if (type == TYPE_UUID16_PARTIAL || type == TYPE_UUID16_COMPLETE) {
+                    if (i + 2 > end) break;
+                    if (shortForm && uint16(record, i) == uuid32) return true;
+                    i += 2;
+                } else if (type == TYPE_UUID32_PARTIAL || type == TYPE_UUID32_COMPLETE) {
+                    if (i + 4 > end) break;
+                    if (shortForm && (uint32(record, i) & 0xFFFFFFFFL) == uuid32) return true;
+                    i += 4;
+                } else if (type == TYPE_UUID128_PARTIAL || type == TYPE_UUID128_COMPLETE) {
+                    if (i + 16 > end) break;
+                    if (uint64(record, i) == lsb && uint64(record, i + 8) == msb) return true;
+                    i += 16;
+                } else {
+                    break;
+                }
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the advertiser lists the bot service.
+     */
+    public boolean isBot() {
+        return hasServiceUuid(BotGattAttributes.BOT_SERVICE);
+    }
+
+    /**
+     * @return The battery level, 0..100 %, from the bot status in the manufacturer data; or
+     *         {@link #UNKNOWN} if the bot does not advertise a status.
+     */
+    public int getBotBatteryPercent() {
+        if (!hasBotStatus()) return UNKNOWN;
+        return getManufacturerByte(BotGattAttributes.ADV_STATUS_BATTERY);
+    }
+
+    /**
+     * @return The firmware version as {@code major << 8 | minor}, or {@link #UNKNOWN} if the
+     *         bot does not advertise a status.
+     */
+    public int getBotFirmwareVersion() {
+        if (!hasBotStatus()) return UNKNOWN;
+        return getManufacturerByte(BotGattAttributes.ADV_STATUS_FIRMWARE_MAJOR) << 8
+                | getManufacturerByte(BotGattAttributes.ADV_STATUS_FIRMWARE_MINOR);
+    }
+
+    private boolean hasBotStatus() {
+        return mManufacturerId == BotGattAttributes.BOT_MANUFACTURER_ID
+                && mManufacturerLength >= BotGattAttributes.ADV_STATUS_LENGTH;
+    }
+
+    // Decodes one UTF-8 sequence at offset: the char in the low 16 bits, the number of bytes
+    // read in the high ones; -1 if malformed.  Names are short, so code points beyond the BMP
+    // are not expected and are rejected as well.
+    private static int decodeUtf8(byte[] record, int offset, int end) {
+        final int b0 = record[offset] & 0xFF;
+        if (b0 < 0x80) return (1 << 16) | b0;
+        if ((b0 & 0xE0) == 0xC0 && offset + 1 < end) {
+            final int b1 = record[offset + 1] & 0xFF;
+            if ((b1 & 0xC0) != 0x80) return -1;
+            return (2 << 16) | ((b0 & 0x1F) << 6) | (b1 & 0x3F);
+        }
+        if ((b0 & 0xF0) == 0xE0 && offset + 2 < end) {
+            final int b1 = record[offset + 1] & 0xFF;
+            final int b2 = record[offset + 2] & 0xFF;
+            if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80) return -1;
+            return (3 << 16) | ((b0 & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F);
+        }
+        return -1;
+    }
+
+    // AD structures are little-endian.
+    private static int uint16(byte[] record, int offset) {
+        return (record[offset] & 0xFF) | ((record[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int uint32(byte[] record, int offset) {
+        return uint16(record, offset) | (uint16(record, offset + 2) << 16);
+    }
+
+    private static long uint64(byte[] record, int offset) {
+        return (uint32(record, offset) & 0xFFFFFFFFL)
+                | ((long) uint32(record, offset + 4) << 32);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} backed by {@code BluetoothGatt}.
+ *
+ * {@code BluetoothGatt} calls back on a binder thread.  Every callback is handed over to the
+ * looper given to the {@link Factory}, in the order it arrived, so that the connection is only
+ * ever driven from that one thread.
+ */
+public class AndroidGattTransport implements GattTransport {
+
+    /**
+     * Connects with {@code BluetoothDevice#connectGatt}.
+     */
+    public static class Factory implements GattTransport.Factory {
+        private final Context mContext;
+        private final BluetoothAdapter mAdapter;
+        private final Looper mLooper;
+
+        /**
+         * @param looper Looper to deliver the {@link GattTransport.Callback} events on.
+         */
+        public Factory(Context context, BluetoothAdapter adapter, Looper looper) {
+            mContext = context;
+            mAdapter = adapter;
+            mLooper = looper;
+        }
+
+        @Override
+        public GattTransport create(String address, boolean autoConnect,
+                                    GattTransport.Callback callback) {
+            final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+            if (device == null) {
+                return null;
+            }
+            final AndroidGattTransport transport = new AndroidGattTransport(callback, mLooper);
+            transport.mGatt = device.connectGatt(mContext, autoConnect,
+                    transport.mGattCallback);
+            return transport;
+        }
+    }
+
+    private static final int MSG_CONNECTION_STATE = 0;
+    private static final int MSG_SERVICES_DISCOVERED = 1;
+    private static final int MSG_CHARACTERISTIC_READ = 2;
+    private static final int MSG_CHARACTERISTIC_WRITE = 3;
+    private static final int MSG_DESCRIPTOR_WRITE = 4;
+    private static final int MSG_MTU_CHANGED = 5;
+    private static final int MSG_CHARACTERISTIC_CHANGED = 6;
+
+    // The attributes of a callback on a characteristic that is not one of the bot's, which do
+    // not fit in a Message.  The bot's own are posted as their index in
+    // BotGattAttributes.BOT_CHARACTERISTICS, so that a notification costs no more than the
+    // pooled Message.  Either way the value is taken when the callback arrives, since the stack
+    // replaces the characteristic's with the next one.
+    private static final class Attribute {
+        final UUID characteristic;
+        final UUID descriptor;
+        final byte[] value;
+
+        Attribute(UUID characteristic, UUID descriptor, byte[] value) {
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+        }
+    }
+
+    private final GattTransport.Callback mCallback;
+    private final Handler mHandler;
+    private volatile BluetoothGatt mGatt;
+
+    // Characteristics by UUID, filled in on first use after each discovery so that the command
+    // path does not search the service list for every write; guarded by itself.
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics =
+            new HashMap<UUID, BluetoothGattCharacteristic>();
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                post(MSG_CONNECTION_STATE, status, 1, null);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                post(MSG_CONNECTION_STATE, status, 0, null);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            synchronized (mCharacteristics) {
+                mCharacteristics.clear();
+            }
+            post(MSG_SERVICES_DISCOVERED, status, 0, null);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            postAttribute(MSG_CHARACTERISTIC_READ, status, characteristic.getUuid(), null,
+                    characteristic.getValue());
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            post(MSG_CHARACTERISTIC_WRITE, status, 0, characteristic.getUuid());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            postAttribute(MSG_DESCRIPTOR_WRITE, status,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), null);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            post(MSG_MTU_CHANGED, status, mtu, null);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            postAttribute(MSG_CHARACTERISTIC_CHANGED, 0, characteristic.getUuid(), null,
+                    characteristic.getValue());
+        }
+    };
+
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONNECTION_STATE:
+                    mCallback.onConnectionStateChange(msg.arg1, msg.arg2 != 0);
+                    return true;
+                case MSG_SERVICES_DISCOVERED:
+                    mCallback.onServicesDiscovered(msg.arg1);
+                    return true;
+                case MSG_CHARACTERISTIC_READ:
+                    if (msg.arg2 < 0) {
+                        final Attribute attribute = (Attribute) msg.obj;
+                        mCallback.onCharacteristicRead(attribute.characteristic,
+                                attribute.value, msg.arg1);
+                    } else {
+                        mCallback.onCharacteristicRead(
+                                BotGattAttributes.BOT_CHARACTERISTICS[msg.arg2],
+                                (byte[]) msg.obj, msg.arg1);
+                    }
+                    return true;
+                case MSG_CHARACTERISTIC_WRITE:
+                    mCallback.onCharacteristicWrite((UUID) msg.obj, msg.arg1);
+                    return true;
+                case MSG_DESCRIPTOR_WRITE:
+                    if (msg.arg2 < 0) {
+                        final Attribute attribute = (Attribute) msg.obj;
+                        mCallback.onDescriptorWrite(attribute.characteristic,
+                                attribute.descriptor, msg.arg1);
+                    } else {
+                        mCallback.onDescriptorWrite(
+                                BotGattAttributes.BOT_CHARACTERISTICS[msg.arg2],
+                                (UUID) msg.obj, msg.arg1);
+                    }
+                    return true;
+                case MSG_MTU_CHANGED:
+                    mCallback.onMtuChanged(msg.arg2, msg.arg1);
+                    return true;
+                case MSG_CHARACTERISTIC_CHANGED:
+                    if (msg.arg2 < 0) {
+                        final Attribute attribute = (Attribute) msg.obj;
+                        mCallback.onCharacteristicChanged(attribute.characteristic,
+                                attribute.value);
+                    } else {
+                        mCallback.onCharacteristicChanged(
+                                BotGattAttributes.BOT_CHARACTERISTICS[msg.arg2],
+                                (byte[]) msg.obj);
+                    }
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    private AndroidGattTransport(GattTransport.Callback callback, Looper looper) {
+        mCallback = callback;
+        mHandler = new Handler(looper, mHandlerCallback);
+    }
+
+    /**
+     * @return The underlying connection, e.g. to list its services.
+     */
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    @Override
+    public boolean connect() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null) gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        final BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        if (gatt != null) gatt.close();
+        // Nothing is reported after close(), including callbacks still on their way.
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public int getCharacteristicProperties(UUID service, UUID characteristic) {
+        final BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        return c == null ? -1 : c.getProperties();
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        return gatt != null && c != null && gatt.readCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       int writeType) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        if (gatt == null || c == null) return false;
+        // The stack writes whatever value the characteristic holds when the request is
+        // issued, so the value is only attached now.
+        c.setValue(value);
+        c.setWriteType(writeType);
+        return gatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                   byte[] value) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        if (gatt == null || c == null) return false;
+        final BluetoothGattDescriptor d = c.getDescriptor(descriptor);
+        if (d == null) return false;
+        d.setValue(value);
+        return gatt.writeDescriptor(d);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                 boolean enabled) {
+        final BluetoothGatt gatt = mGatt;
+        final BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        return gatt != null && c != null && gatt.setCharacteristicNotification(c, enabled);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    private void post(int what, int arg1, int arg2, Object obj) {
+        Message.obtain(mHandler, what, arg1, arg2, obj).sendToTarget();
+    }
+
+    // Posts a callback on an attribute: for one of the bot's characteristics with its index in
+    // arg2 and the descriptor, if any, or else the value in obj; otherwise with -1 and an
+    // Attribute.
+    private void postAttribute(int what, int status, UUID characteristic, UUID descriptor,
+                               byte[] value) {
+        final int index = BotGattAttributes.indexOf(characteristic);
+        if (index < 0) {
+            post(what, status, -1, new Attribute(characteristic, descriptor, value));
+        } else {
+            post(what, status, index, descriptor != null ? descriptor : value);
+        }
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID service, UUID characteristic) {
+        synchronized (mCharacteristics) {
+            final BluetoothGattCharacteristic cached = mCharacteristics.get(characteristic);
+            if (cached != null && cached.getService().getUuid().equals(service)) {
+                return cached;
+            }
+        }
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) return null;
+        final BluetoothGattService s = gatt.getService(service);
+        if (s == null) return null;
+        final BluetoothGattCharacteristic c = s.getCharacteristic(characteristic);
+        if (c != null) {
+            synchronized (mCharacteristics) {
+                mCharacteristics.put(characteristic, c);
+            }
+        }
+        return c;
+    }
+}
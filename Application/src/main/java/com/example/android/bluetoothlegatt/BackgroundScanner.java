@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Watches for known bots in the background and has them connected as soon as they advertise.
+ *
+ * Known bots are those that have been controllable before; their addresses are kept in
+ * {@code SharedPreferences}.  Rather than scanning continuously, the scanner opens a scan
+ * window of {@link Config#windowMs} every {@link Config#intervalMs}, filtered in the
+ * controller on the addresses of the known bots that are not connected at the time.  A window
+ * is skipped when there is no such bot.
+ *
+ * The time from a bot's advertisement being received to its link being up, and to it being
+ * controllable, is recorded for every connection the scanner starts.
+ *
+ * {@link #start()} and {@link #stop()} must be called on the main thread, where scan results
+ * are delivered; the other methods may be called from any thread.
+ */
+public class BackgroundScanner {
+    private final static String TAG = BackgroundScanner.class.getSimpleName();
+
+    public static final String PREFS_NAME = "known_bots";
+    private static final String KEY_ADDRESSES = "addresses";
+
+    // Android 7.0 and later silently ignore a sixth scan started within 30 s.
+    public static final long MIN_INTERVAL_MS = 6000;
+
+    /**
+     * Decides what to do with the bots found.
+     */
+    public interface Target {
+        /**
+         * @return True if the bot is neither connected nor being connected, so that it is
+         *         worth scanning for.
+         */
+        boolean isMissing(String address);
+
+        /**
+         * A missing known bot is advertising.
+         *
+         * @return True if a connection was started.
+         */
+        boolean connect(String address);
+    }
+
+    /**
+     * Duty cycle parameters, read at the start of each window.
+     */
+    public static class Config {
+        /** Length of a scan window. */
+        public long windowMs = 2000;
+        /** Time from the start of one window to the start of the next. */
+        public long intervalMs = 10000;
+        /** Scan mode within a window, one of the {@code BotScanner.SCAN_MODE_*} constants. */
+        public int scanMode = BotScanner.SCAN_MODE_LOW_LATENCY;
+    }
+
+    /**
+     * Counters since the scanner was created.  Durations are in nanoseconds.
+     */
+    public static class Stats {
+        public long windows;
+        public long skippedWindows;
+        public long botsFound;
+        public long connectionsStarted;
+        public LatencyHistogram.Snapshot foundToConnected;
+        public LatencyHistogram.Snapshot foundToReady;
+        public BotScanner.Stats scan;
+
+        @Override
+        public String toString() {
+            return "windows=" + windows + " skipped=" + skippedWindows
+                    + " found=" + botsFound + " connections=" + connectionsStarted
+                    + " foundToConnected=[" + foundToConnected + "]"
+                    + " foundToReady=[" + foundToReady + "]"
+                    + " scan=[" + scan + "]";
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final SharedPreferences mPreferences;
+    private final Target mTarget;
+    private final BotScanner mScanner;
+    private volatile Config mConfig = new Config();
+    private volatile boolean mRunning;
+
+    // All guarded by this.
+    private final HashSet<String> mKnownBots = new HashSet<String>();
+    // Time each bot was found, on the elapsedRealtimeNanos clock, while its connection is
+    // being measured.
+    private final HashMap<String, Long> mFoundNanos = new HashMap<String, Long>();
+    private long mWindows;
+    private long mSkippedWindows;
+    private long mBotsFound;
+    private long mConnectionsStarted;
+
+    private final LatencyHistogram mFoundToConnected = new LatencyHistogram();
+    private final LatencyHistogram mFoundToReady = new LatencyHistogram();
+
+    private final Runnable mWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startWindow();
+        }
+    };
+
+    private final Runnable mEndWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScanner.stop();
+        }
+    };
+
+    private final BotScanner.Listener mScanListener = new BotScanner.Listener() {
+        @Override
+        public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord,
+                                  long timestampNanos) {
+            final String address = device.getAddress();
+            synchronized (BackgroundScanner.this) {
+                if (!mKnownBots.contains(address)) return;
+            }
+            if (!mTarget.isMissing(address)) return;
+            synchronized (BackgroundScanner.this) {
+                mBotsFound++;
+                // Before connecting, as the link may come up on another thread at once.
+                mFoundNanos.put(address, timestampNanos);
+            }
+            final boolean started = mTarget.connect(address);
+            synchronized (BackgroundScanner.this) {
+                if (started) {
+                    mConnectionsStarted++;
+                } else {
+                    mFoundNanos.remove(address);
+                }
+            }
+        }
+
+        @Override
+        public void onDeviceUpdated(BluetoothDevice device, int rssi, byte[] scanRecord,
+                                    long timestampNanos) {
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+        }
+    };
+
+    public BackgroundScanner(BluetoothAdapter adapter, Scheduler scheduler,
+                             SharedPreferences preferences, Target target) {
+        mScheduler = scheduler;
+        mPreferences = preferences;
+        mTarget = target;
+        mScanner = new BotScanner(adapter, mScanListener);
+        // The returned set belongs to the preferences and must not be modified.
+        final Set<String> stored = preferences.getStringSet(KEY_ADDRESSES, null);
+        if (stored != null) {
+            mKnownBots.addAll(stored);
+        }
+    }
+
+    public void setConfig(Config config) {
+        mConfig = config;
+    }
+
+    public void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mScheduler.postDelayed(mWindowRunnable, 0);
+    }
+
+    public void stop() {
+        mRunning = false;
+        mScheduler.removeCallbacks(mWindowRunnable);
+        mScheduler.removeCallbacks(mEndWindowRunnable);
+        mScanner.stop();
+        synchronized (this) {
+            mFoundNanos.clear();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Remembers a bot, so that it is connected whenever it is found.
+     */
+    public synchronized void addKnownBot(String address) {
+        if (mKnownBots.add(address)) {
+            saveKnownBots();
+        }
+    }
+
+    public synchronized void removeKnownBot(String address) {
+        if (mKnownBots.remove(address)) {
+            saveKnownBots();
+        }
+    }
+
+    public synchronized List<String> getKnownBots() {
+        return new ArrayList<String>(mKnownBots);
+    }
+
+    /**
+     * The link to a bot is up.
+     */
+    public void onConnected(String address) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final Long found;
+        synchronized (this) {
+            found = mFoundNanos.get(address);
+        }
+        if (found != null) {
+            mFoundToConnected.record(now - found);
+        }
+    }
+
+    /**
+     * A bot is controllable; ends the measurement of its connection.
+     */
+    public void onReady(String address) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final Long found;
+        synchronized (this) {
+            found = mFoundNanos.remove(address);
+        }
+        if (found != null) {
+            mFoundToReady.record(now - found);
+        }
+    }
+
+    /**
+     * A connection failed before the bot was controllable; it is not measured.
+     */
+    public synchronized void onDisconnected(String address) {
+        mFoundNanos.remove(address);
+    }
+
+    public Stats getStats() {
+        final Stats stats = new Stats();
+        synchronized (this) {
+            stats.windows = mWindows;
+            stats.skippedWindows = mSkippedWindows;
+            stats.botsFound = mBotsFound;
+            stats.connectionsStarted = mConnectionsStarted;
+        }
+        stats.foundToConnected = mFoundToConnected.getSnapshot();
+        stats.foundToReady = mFoundToReady.getSnapshot();
+        stats.scan = mScanner.getStats();
+        return stats;
+    }
+
+    private void startWindow() {
+        if (!mRunning) return;
+        final Config config = mConfig;
+        final long intervalMs = Math.max(MIN_INTERVAL_MS, config.intervalMs);
+        mScheduler.postDelayed(mWindowRunnable, intervalMs);
+
+        final List<String> missing = getKnownBots();
+        for (int i = missing.size() - 1; i >= 0; i--) {
+            if (!mTarget.isMissing(missing.get(i))) missing.remove(i);
+        }
+        if (missing.isEmpty()) {
+            synchronized (this) {
+                mSkippedWindows++;
+            }
+            return;
+        }
+        final BotScanner.Config scanConfig = new BotScanner.Config();
+        scanConfig.scanMode = config.scanMode;
+        scanConfig.addresses = missing.toArray(new String[missing.size()]);
+        mScanner.setConfig(scanConfig);
+        if (!mScanner.start()) {
+            Log.w(TAG, "Background scan window not started.");
+            return;
+        }
+        synchronized (this) {
+            mWindows++;
+        }
+        mScheduler.postDelayed(mEndWindowRunnable, Math.min(config.windowMs, intervalMs));
+    }
+
+    // Called with this held.
+    private void saveKnownBots() {
+        mPreferences.edit()
+                .putStringSet(KEY_ADDRESSES, new HashSet<String>(mKnownBots))
+                .apply();
+    }
+}
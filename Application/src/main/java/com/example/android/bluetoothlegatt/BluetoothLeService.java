@@ -18,28 +18,41 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.SystemClock;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
+import java.util.Random;
 import java.util.UUID;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with the GATT servers hosted on
+ * one or more Bluetooth LE bots.
+ *
+ * Every connected bot has its own {@link BotSession}.  The methods without an address argument
+ * act on the device most recently passed to {@link #connect(String)}.
+ *
+ * Calls into the Bluetooth stack, and the timers around them, run on a worker thread of the
+ * service's own.  The public methods only queue work for it and may be called from any
+ * thread, so a busy UI thread cannot hold commands back and a slow stack cannot freeze the UI.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
@@ -47,12 +60,70 @@ public class BluetoothLeService extends Service {
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
+    // The GATT worker thread; see the class comment.
+    private final HandlerThread mGattThread = startGattThread();
+    private final Handler mHandler = new Handler(mGattThread.getLooper());
+    private final Scheduler mScheduler = new HandlerScheduler(mHandler);
+    // Scans are started and their results delivered on the main thread.
+    private final Scheduler mMainScheduler =
+            new HandlerScheduler(new Handler(Looper.getMainLooper()));
+
+    // Creates the connection to each bot; AndroidGattTransport unless overridden.
+    private volatile GattTransport.Factory mTransportFactory;
+
+    // All known bots by address; guarded by itself.
+    private final HashMap<String, BotSession> mSessions = new HashMap<String, BotSession>();
+    // Session for mBluetoothDeviceAddress, kept separately so that the single-bot API does not
+    // need a map lookup per command.
+    private volatile BotSession mCurrentSession;
+
+    // In-process delivery of GATT events; broadcasts are only sent in compatibility mode.
+    private final GattEventDispatcher mEventDispatcher = new GattEventDispatcher();
+    private volatile boolean mBroadcastsEnabled;
+
+    // Android controllers typically handle 4 to 7 simultaneous LE links.
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // Automatic recovery of dropped links, shared by every session.
+    private volatile ReconnectEngine.Config mReconnectConfig = new ReconnectEngine.Config();
+
+    // Bot layouts remembered across connections, so that controls need not wait for
+    // discovery; created by initialize().
+    private volatile DiscoveryCache mDiscoveryCache;
+    private volatile boolean mDiscoveryCacheEnabled = true;
+
+    // Connects known bots as they appear; created by initialize().
+    private volatile BackgroundScanner mBackgroundScanner;
+    // Bots the app disconnected on purpose, which the background scanner leaves alone until
+    // they are connected again; guarded by itself.
+    private final HashSet<String> mManualDisconnects = new HashSet<String>();
+
+    // When set, streamable characteristics are written without waiting for an ATT response.
+    private volatile boolean mStreamingEnabled;
+    private volatile long mStreamingIntervalNanos;
+
+    // Link setup performed between connection and service discovery.
+    public static final int DEFAULT_LINK_MTU = 185;
+    private static final long DISCOVERY_TIMEOUT_MS = 10000;
+    // How long the bot has to stay stopped before the link drops back to balanced priority.
+    public static final long DEFAULT_IDLE_PRIORITY_DELAY_MS = 3000;
+
+    private volatile int mLinkMtu = DEFAULT_LINK_MTU;
+    private volatile boolean mManageConnectionPriority = true;
+    private volatile long mIdlePriorityDelayMs = DEFAULT_IDLE_PRIORITY_DELAY_MS;
+
+    // Shared, never-mutated UINT8 payloads so the command path does not allocate a value array.
+    static final byte[][] UINT8_VALUES = new byte[256][];
+    static {
+        for (int i = 0; i < UINT8_VALUES.length; i++) {
+            UINT8_VALUES[i] = new byte[] {(byte) i};
+        }
+    }
 
-    public int mConnectionState = STATE_DISCONNECTED;
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -62,70 +133,176 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    // Address of the bot an ACTION_* broadcast refers to.
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
+    // ACTION_DATA_AVAILABLE extras: the characteristic, its raw value and, for sensor
+    // notifications, the decoded readings.
+    public final static String EXTRA_UUID =
+            "com.example.bluetooth.le.EXTRA_UUID";
+    public final static String EXTRA_DATA =
+            "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_SENSOR_DISTANCE =
+            "com.example.bluetooth.le.EXTRA_SENSOR_DISTANCE";
+    public final static String EXTRA_SENSOR_LEFT =
+            "com.example.bluetooth.le.EXTRA_SENSOR_LEFT";
+    public final static String EXTRA_SENSOR_RIGHT =
+            "com.example.bluetooth.le.EXTRA_SENSOR_RIGHT";
+    public final static String EXTRA_SENSOR_BEHIND =
+            "com.example.bluetooth.le.EXTRA_SENSOR_BEHIND";
 
     public final static UUID UUID_CLIENT_CHAR_CONFIG = UUID.fromString(BotGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
 
-    private static int distance_value, left_value, right_value, behind_value;
-
     // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // connection change and services discovered.  One instance per bot, so every event is
+    // routed to its session without looking it up.
+    private class SessionGattCallback implements GattTransport.Callback {
+        private final BotSession mSession;
+
+        SessionGattCallback(BotSession session) {
+            mSession = session;
+        }
+
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(int status, boolean connected) {
             String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (connected) {
                 intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                mSession.connectionState = STATE_CONNECTED;
+                mEventDispatcher.dispatchConnectionState(mSession.address, STATE_CONNECTED);
+                broadcastUpdate(intentAction, mSession);
+                Log.i(TAG, "Connected to GATT server " + mSession.address + ".");
+                synchronized (mSession.linkStats) {
+                    final long now = System.nanoTime();
+                    mSession.linkStats.connectNanos = now - mSession.linkStats.connectStartNanos;
+                    mSession.linkStats.stepStartNanos = now;
+                }
+                mSession.reconnect.onConnected();
+                final BackgroundScanner scanner = mBackgroundScanner;
+                if (scanner != null) scanner.onConnected(mSession.address);
+                startLinkSetup(mSession);
+                // After startLinkSetup(), so that commands sent on the strength of the cached
+                // layout are queued behind discovery.
+                applyCachedLayout(mSession);
+            } else {
+                Log.i(TAG, "Disconnected from GATT server " + mSession.address + ", status "
+                        + status + ".");
+                onLinkDown(mSession);
+                mSession.reconnect.onDisconnected(status);
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+        public void onServicesDiscovered(int status) {
+            if (status == GattTransport.GATT_SUCCESS) {
+                if (!mSession.resolveCharacteristics()) {
+                    Log.w(TAG, "Bot service not found");
+                }
+                confirmCachedLayout(mSession);
+                mEventDispatcher.dispatchServicesDiscovered(mSession.address);
+                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, mSession);
+                final UUID[] handles = mSession.characteristics;
+                if (handles != null && handles[BotGattAttributes.CHAR_SENSOR] != null) {
+                    enableNotification(mSession, BotGattAttributes.BOT_SERVICE,
+                            handles[BotGattAttributes.CHAR_SENSOR], true, null);
+                }
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
+            mSession.queue.onOperationComplete(GattOperationQueue.OP_DISCOVER_SERVICES,
+                    null, status);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+            if (status == GattTransport.GATT_SUCCESS) {
+                mEventDispatcher.dispatchDataAvailable(mSession.address, characteristic, value);
+                broadcastUpdate(ACTION_DATA_AVAILABLE, mSession, characteristic,
+                        BotGattAttributes.indexOf(characteristic), value);
             }
+            mSession.queue.onOperationComplete(GattOperationQueue.OP_READ, characteristic,
+                    status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, int status) {
+            mSession.queue.onOperationComplete(GattOperationQueue.OP_WRITE, characteristic,
+                    status);
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+            mSession.queue.onOperationComplete(GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                    characteristic, status);
         }
-    };
 
-    private void broadcastUpdate(final String action) {
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+            if (status == GattTransport.GATT_SUCCESS) {
+                synchronized (mSession.linkStats) {
+                    mSession.linkStats.mtu = mtu;
+                }
+            }
+            mSession.queue.onOperationComplete(GattOperationQueue.OP_REQUEST_MTU, null, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(UUID uuid, byte[] value) {
+            final long now = System.nanoTime();
+            final int charIndex = BotGattAttributes.indexOf(uuid);
+            record(mSession, SessionRecorder.TYPE_NOTIFICATION, now, charIndex, value);
+            handleNotification(mSession, uuid, charIndex, value, now);
+        }
+    }
+
+    // Common path for notifications from the stack and replayed ones, on the GATT worker
+    // thread.
+    private void handleNotification(BotSession session, UUID uuid, int charIndex, byte[] value,
+                                    long now) {
+        boolean decoded = false;
+        synchronized (session) {
+            session.notificationsReceived++;
+            if (charIndex == BotGattAttributes.CHAR_SENSOR) {
+                decoded = session.sensorSample.decode(value, now);
+                if (decoded) {
+                    session.sensorBuffer.publish(session.sensorSample);
+                }
+            }
+        }
+        if (decoded) {
+            // Only the GATT worker thread writes the sample, so it can be read outside the lock.
+            mEventDispatcher.dispatchSensorSample(session.address, session.sensorSample);
+        }
+        mEventDispatcher.dispatchDataAvailable(session.address, uuid, value);
+        broadcastUpdate(ACTION_DATA_AVAILABLE, session, uuid, charIndex, value);
+    }
+
+    private void broadcastUpdate(final String action, final BotSession session) {
+        if (!mBroadcastsEnabled) return;
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, session.address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
+    private void broadcastUpdate(final String action, final BotSession session, final UUID uuid,
+                                 final int charIndex, final byte[] value) {
+        if (!mBroadcastsEnabled) return;
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, session.address);
+        intent.putExtra(EXTRA_UUID, uuid.toString());
+        intent.putExtra(EXTRA_DATA, value);
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        // This is special handling for the bot sensor profile.  Data parsing is carried out as
+        // per BotGattAttributes.SENSOR_FRAME_*.
+        if (charIndex == BotGattAttributes.CHAR_SENSOR) {
+            final SensorSample sample = new SensorSample();
+            if (sample.decode(value, System.nanoTime())) {
+                intent.putExtra(EXTRA_SENSOR_DISTANCE, sample.distance);
+                intent.putExtra(EXTRA_SENSOR_LEFT, sample.left);
+                intent.putExtra(EXTRA_SENSOR_RIGHT, sample.right);
+                intent.putExtra(EXTRA_SENSOR_BEHIND, sample.behind);
+            }
+        }
         sendBroadcast(intent);
     }
 
@@ -151,6 +328,52 @@ public class BluetoothLeService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Lets the transports closed by onUnbind() be released first.
+        mGattThread.quitSafely();
+    }
+
+    private static HandlerThread startGattThread() {
+        final HandlerThread thread = new HandlerThread("GattWorker",
+                Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        return thread;
+    }
+
+    // Runs a task on the GATT worker thread: at once if already there, otherwise after the
+    // work queued before it.
+    private void runOnGattThread(Runnable task) {
+        if (Looper.myLooper() == mGattThread.getLooper()) {
+            task.run();
+        } else {
+            mHandler.post(task);
+        }
+    }
+
+    /**
+     * Subscribes to connection, discovery and data events for every bot.
+     *
+     * @param looper Looper to deliver events on, or null to receive them directly on the GATT
+     *               worker thread.
+     */
+    public void registerEventListener(GattEventDispatcher.Listener listener, Looper looper) {
+        mEventDispatcher.register(listener, looper);
+    }
+
+    public void unregisterEventListener(GattEventDispatcher.Listener listener) {
+        mEventDispatcher.unregister(listener);
+    }
+
+    /**
+     * Enables the legacy {@code ACTION_*} broadcasts in addition to the in-process listeners.
+     * Off by default: each broadcast is an IPC round trip through the activity manager.
+     */
+    public void setBroadcastsEnabled(boolean enabled) {
+        mBroadcastsEnabled = enabled;
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -172,12 +395,48 @@ public class BluetoothLeService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
+        if (mTransportFactory == null) {
+            mTransportFactory = new AndroidGattTransport.Factory(this, mBluetoothAdapter,
+                    mGattThread.getLooper());
+        }
+        if (mDiscoveryCache == null) {
+            mDiscoveryCache = new DiscoveryCache(
+                    getSharedPreferences(DiscoveryCache.PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        if (mBackgroundScanner == null) {
+            mBackgroundScanner = new BackgroundScanner(mBluetoothAdapter, mMainScheduler,
+                    getSharedPreferences(BackgroundScanner.PREFS_NAME, Context.MODE_PRIVATE),
+                    new BackgroundScanTarget());
+        }
 
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Replaces how connections to bots are made, e.g. with a simulated bot in a test.
+     * Affects bots connected from now on; a factory set before {@link #initialize()} is kept.
+     *
+     * @param factory The factory, or null to go back to {@link AndroidGattTransport}.
+     */
+    public void setTransportFactory(GattTransport.Factory factory) {
+        if (factory == null && mBluetoothAdapter != null) {
+            factory = new AndroidGattTransport.Factory(this, mBluetoothAdapter,
+                    mGattThread.getLooper());
+        }
+        mTransportFactory = factory;
+    }
+
+    /**
+     * @return Clock and timer used by every session's operation queue, running tasks on the
+     *         GATT worker thread.
+     */
+    public Scheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device and makes it the current
+     * device for the methods that take no address.  Other bots stay connected.
      *
      * @param address The device address of the destination device.
      *
@@ -187,35 +446,98 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if (mTransportFactory == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        final boolean result = connectSession(address);
+        if (result) {
+            mBluetoothDeviceAddress = address;
+            mCurrentSession = getSession(address);
+        }
+        return result;
+    }
+
+    /**
+     * Connects to an additional bot without changing the current device.
+     *
+     * @param address The device address of the destination device.
+     * @return Return true if the connection is initiated successfully, false if the adapter is
+     *         not ready or the concurrent connection limit has been reached.
+     */
+    public boolean connectSession(final String address) {
+        final GattTransport.Factory factory = mTransportFactory;
+        if (factory == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
+        }
+
+        synchronized (mManualDisconnects) {
+            mManualDisconnects.remove(address);
+        }
+
+        BotSession session;
+        synchronized (mSessions) {
+            session = mSessions.get(address);
+            if (session == null || !session.isActive()) {
+                int active = 0;
+                for (BotSession other : mSessions.values()) {
+                    if (other.isActive()) active++;
+                }
+                if (active >= mMaxConnections) {
+                    Log.w(TAG, "Connection limit of " + mMaxConnections + " reached, not "
+                            + "connecting to " + address);
+                    return false;
+                }
+            }
+            if (session == null) {
+                session = createSession(address);
+                mSessions.put(address, session);
+            }
+        }
+
+        // Already being brought back after a link loss; skip the wait for the next attempt.
+        if (session.reconnect.retryNow()) {
+            return true;
+        }
 
+        // Counts as active from now on, for the connection limit.
+        session.connectionState = STATE_CONNECTING;
+        final BotSession connecting = session;
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                openTransport(connecting, factory);
+            }
+        });
+        return true;
+    }
+
+    // The GATT worker half of connectSession().
+    private void openTransport(BotSession session, GattTransport.Factory factory) {
+        synchronized (session.linkStats) {
+            session.linkStats.reset(System.nanoTime());
+        }
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        if (session.transport != null) {
+            Log.d(TAG, "Trying to use an existing transport for " + session.address + ".");
+            if (!session.transport.connect()) {
+                Log.w(TAG, "Unable to reconnect to " + session.address + ".");
+                session.connectionState = STATE_DISCONNECTED;
             }
+            return;
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
+        final GattTransport transport = factory.create(session.address, false,
+                new SessionGattCallback(session));
+        if (transport == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+            session.connectionState = STATE_DISCONNECTED;
+            return;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        session.transport = transport;
+        session.queue.setTransport(transport);
+        Log.d(TAG, "Trying to create a new connection to " + session.address + ".");
     }
 
     /**
@@ -225,23 +547,121 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * Disconnects the given bot, see {@link #disconnect()}.
+     */
+    public void disconnect(String address) {
+        synchronized (mManualDisconnects) {
+            mManualDisconnects.add(address);
+        }
+        final BotSession session = getSession(address);
+        if (session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        session.reconnect.disarm();
+        // The transport of a connection just requested is opened on the worker thread, so it
+        // is only looked up there, behind the request.
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                final GattTransport transport = session.transport;
+                if (transport == null) {
+                    Log.w(TAG, "BluetoothAdapter not initialized");
+                    return;
+                }
+                transport.disconnect();
+            }
+        });
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly.  Closes every bot connection held by the service.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        stopBackgroundScan();
+        final BotSession[] sessions;
+        synchronized (mSessions) {
+            sessions = mSessions.values().toArray(new BotSession[mSessions.size()]);
+            mSessions.clear();
+        }
+        mCurrentSession = null;
+        for (BotSession session : sessions) {
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Releases the connection to a single bot.
+     */
+    public void close(String address) {
+        synchronized (mManualDisconnects) {
+            mManualDisconnects.add(address);
+        }
+        final BotSession session;
+        synchronized (mSessions) {
+            session = mSessions.remove(address);
+        }
+        if (session == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        if (session == mCurrentSession) {
+            mCurrentSession = null;
+        }
+        closeSession(session);
+    }
+
+    /**
+     * @param maxConnections Upper bound on bots that may be connecting or connected at once.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * @return Addresses of every bot that is connecting or connected.
+     */
+    public List<String> getActiveAddresses() {
+        final ArrayList<String> addresses = new ArrayList<String>();
+        synchronized (mSessions) {
+            for (BotSession session : mSessions.values()) {
+                if (session.isActive()) addresses.add(session.address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @return One of the STATE_* constants for the given bot.
+     */
+    public int getConnectionState(String address) {
+        final BotSession session = getSession(address);
+        return session == null ? STATE_DISCONNECTED : session.connectionState;
+    }
+
+    /**
+     * @return A snapshot of the counters for the given bot, or null if it is unknown.
+     */
+    public BotSession.Metrics getMetrics(String address) {
+        final BotSession session = getSession(address);
+        return session == null ? null : session.getMetrics();
+    }
+
+    /**
+     * @return Snapshots of the counters for every known bot.
+     */
+    public List<BotSession.Metrics> getAllMetrics() {
+        final ArrayList<BotSession.Metrics> metrics = new ArrayList<BotSession.Metrics>();
+        synchronized (mSessions) {
+            for (BotSession session : mSessions.values()) {
+                metrics.add(session.getMetrics());
+            }
+        }
+        return metrics;
     }
 
     /**
@@ -252,11 +672,25 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        readCharacteristic(characteristic, null);
+    }
+
+    /**
+     * Queues a read on a given {@code BluetoothGattCharacteristic} of the current device.
+     *
+     * @param characteristic The characteristic to read from.
+     * @param callback Notified when the read completes, fails or times out.  May be null.
+     */
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic,
+                                   GattOperationQueue.Callback callback) {
+        final BotSession session = mCurrentSession;
+        if (session == null || session.transport == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        session.queue.enqueue(GattOperationQueue.Operation
+                .read(characteristic.getService().getUuid(), characteristic.getUuid())
+                .setCallback(callback));
     }
 
     /**
@@ -267,27 +701,85 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        setCharacteristicNotification(characteristic, enabled, null);
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic of the current device.  The
+     * client configuration descriptor write is queued behind any GATT operation already in
+     * flight.
+     *
+     * @param characteristic Characteristic to act on.
+     * @param enabled If true, enable notification.  False otherwise.
+     * @param callback Notified when the descriptor write completes.  May be null.
+     */
+    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                              boolean enabled,
+                                              GattOperationQueue.Callback callback) {
+        final BotSession session = mCurrentSession;
+        if (session == null || session.transport == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        enableNotification(session, characteristic.getService().getUuid(),
+                characteristic.getUuid(), enabled, callback);
+    }
 
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_CLIENT_CHAR_CONFIG);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        mBluetoothGatt.writeDescriptor(descriptor);
-        SystemClock.sleep(300);
+    private void enableNotification(final BotSession session, final UUID service,
+                                    final UUID characteristic, final boolean enabled,
+                                    final GattOperationQueue.Callback callback) {
+        if (Looper.myLooper() != mGattThread.getLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    enableNotification(session, service, characteristic, enabled, callback);
+                }
+            });
+            return;
+        }
+        final GattTransport transport = session.transport;
+        if (transport == null) return;
+        if (!transport.setCharacteristicNotification(service, characteristic, enabled)) {
+            Log.w(TAG, "Failed to set notification for " + characteristic);
+            return;
+        }
+        final byte[] value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        // Fails with STATUS_NOT_STARTED if the characteristic has no configuration descriptor.
+        session.queue.enqueue(GattOperationQueue.Operation
+                .writeDescriptor(service, characteristic, UUID_CLIENT_CHAR_CONFIG, value)
+                .setCallback(callback));
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
+     * Queues an ATT MTU exchange with the current device.  The result is reported through the
+     * callback once {@code BluetoothGattCallback#onMtuChanged} arrives.
+     *
+     * @param mtu The requested MTU.
+     * @param callback Notified when the exchange completes.  May be null.
+     */
+    public void requestMtu(int mtu, GattOperationQueue.Callback callback) {
+        final BotSession session = mCurrentSession;
+        if (session == null || session.transport == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        session.queue.enqueue(
+                GattOperationQueue.Operation.requestMtu(mtu).setCallback(callback));
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on the current device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
-     * @return A {@code List} of supported services.
+     * @return A {@code List} of supported services, or null if the current device is not
+     *         connected through {@link AndroidGattTransport}.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
-        return mBluetoothGatt.getServices();
+        final BotSession session = mCurrentSession;
+        if (session == null || !(session.transport instanceof AndroidGattTransport)) return null;
+        final BluetoothGatt gatt = ((AndroidGattTransport) session.transport).getGatt();
+        return gatt == null ? null : gatt.getServices();
     }
 
     /*
@@ -296,22 +788,879 @@ public class BluetoothLeService extends Service {
     public void writeCustomCharacteristic(String serviceUUID,
                                           String charUUID,
                                           int value) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        writeCustomCharacteristic(mBluetoothDeviceAddress, serviceUUID, charUUID, value, null);
+    }
+
+    /*
+     *   @brief:     Queues a UINT8 write to a custom characteristic; the callback (may be null)
+     *               is notified once onCharacteristicWrite confirms it or it times out.
+     */
+    public void writeCustomCharacteristic(String serviceUUID,
+                                          String charUUID,
+                                          int value,
+                                          GattOperationQueue.Callback callback) {
+        writeCustomCharacteristic(mBluetoothDeviceAddress, serviceUUID, charUUID, value, callback);
+    }
+
+    /*
+     *   @brief:     Same as above, for the bot with the given address
+     */
+    public void writeCustomCharacteristic(String address,
+                                          String serviceUUID,
+                                          String charUUID,
+                                          final int value,
+                                          final GattOperationQueue.Callback callback) {
+        final BotSession session = getSession(address);
+        if (session == null || session.transport == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        /*check if the service is available on the device*/
-        BluetoothGattService mCustomService = mBluetoothGatt.getService(UUID.fromString(serviceUUID));
-        if(mCustomService == null){
-            Log.w(TAG, "Custom BLE Service not found");
+        final UUID mCustomService = UUID.fromString(serviceUUID);
+        final UUID mWriteCharacteristic = UUID.fromString(charUUID);
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                /*check if the characteristic is available on the device*/
+                if (!session.writeCustomCharacteristic(mCustomService, mWriteCharacteristic,
+                        value, callback)) {
+                    Log.w(TAG, "Custom BLE Characteristic not found");
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes a motion opcode ({@code BotGattAttributes.STOP}, {@code FORWARD}, ...) to the
+     * current device through the handle table resolved at discovery.
+     *
+     * @return true if the write was queued, false if the bot service is not resolved.
+     */
+    public boolean writeMotion(int motion) {
+        return writeMotion(mCurrentSession, motion, 0);
+    }
+
+    /**
+     * Same as {@link #writeMotion(int)}, traced from the user action that caused it.
+     *
+     * @param pressNanos {@code System.nanoTime()} at the button press, for the latency
+     *                   histograms returned by {@link #getCommandLatency}.
+     */
+    public boolean writeMotion(int motion, long pressNanos) {
+        return writeMotion(mCurrentSession, motion, pressNanos);
+    }
+
+    /**
+     * Writes a motion opcode to the bot with the given address.
+     */
+    public boolean writeMotion(String address, int motion) {
+        return writeMotion(getSession(address), motion, 0);
+    }
+
+    /**
+     * Switches one of the current device's relays through the handle table resolved at
+     * discovery.
+     *
+     * @param idx Relay number, 1 to 4.
+     * @param on True to switch the relay on.
+     * @return true if the write was queued, false if the bot service is not resolved.
+     */
+    public boolean writeRelay(int idx, boolean on) {
+        return writeRelay(mCurrentSession, idx, on, 0);
+    }
+
+    /**
+     * Same as {@link #writeRelay(int, boolean)}, traced from the user action that caused it.
+     *
+     * @param pressNanos {@code System.nanoTime()} at the button press.
+     */
+    public boolean writeRelay(int idx, boolean on, long pressNanos) {
+        return writeRelay(mCurrentSession, idx, on, pressNanos);
+    }
+
+    /**
+     * Switches one of the relays of the bot with the given address.
+     */
+    public boolean writeRelay(String address, int idx, boolean on) {
+        return writeRelay(getSession(address), idx, on, 0);
+    }
+
+    /**
+     * Applies a complete bot state to the current device: a motion and the on/off state of all
+     * four relays.  When the peripheral exposes the packed command characteristic this costs a
+     * single write; otherwise it falls back to one write per characteristic.
+     *
+     * @param motion Motion opcode, {@code BotGattAttributes.STOP}, {@code FORWARD}, ...
+     * @param relayMask Relays to switch on, built from {@code BotGattAttributes.relayBit}.
+     * @return true if every write was queued.
+     */
+    public boolean writeScene(int motion, int relayMask) {
+        return writeScene(mCurrentSession, motion, relayMask, 0);
+    }
+
+    /**
+     * Same as {@link #writeScene(int, int)}, traced from the user action that caused it.
+     *
+     * @param pressNanos {@code System.nanoTime()} at the button press.
+     */
+    public boolean writeScene(int motion, int relayMask, long pressNanos) {
+        return writeScene(mCurrentSession, motion, relayMask, pressNanos);
+    }
+
+    /**
+     * Applies a complete bot state to the bot with the given address.
+     */
+    public boolean writeScene(String address, int motion, int relayMask) {
+        return writeScene(getSession(address), motion, relayMask, 0);
+    }
+
+    /**
+     * @return true if the current device accepts packed command frames.
+     */
+    public boolean hasCommandFrame() {
+        final BotSession session = mCurrentSession;
+        if (session == null) return false;
+        final UUID[] handles = session.characteristics;
+        return handles != null && handles[BotGattAttributes.CHAR_COMMAND] != null;
+    }
+
+    /**
+     * Encodes a command frame for {@code BotGattAttributes.bot_command_char_uuid}.
+     *
+     * @param out Destination, at least {@code COMMAND_FRAME_LENGTH} bytes long.
+     * @return {@code out}.
+     */
+    public static byte[] encodeCommandFrame(int motion, int relayMask, byte[] out) {
+        out[BotGattAttributes.COMMAND_FRAME_MOTION] = (byte) motion;
+        out[BotGattAttributes.COMMAND_FRAME_RELAYS] =
+                (byte) (relayMask & BotGattAttributes.RELAY_MASK_ALL);
+        return out;
+    }
+
+    /**
+     * Drives the current device with an analog speed and steering.  Bots without the drive
+     * characteristic get the closest motion opcode instead, see
+     * {@code BotGattAttributes.driveMotion}.  Like motions, a drive command replaces any that
+     * is still queued.
+     *
+     * @param speed {@code -DRIVE_MAX} (full reverse) to {@code DRIVE_MAX} (full ahead).
+     * @param steering {@code -DRIVE_MAX} (hard left) to {@code DRIVE_MAX} (hard right).
+     * @param pressNanos {@code System.nanoTime()} at the input that caused it, or 0.
+     * @return true if the write was queued.
+     */
+    public boolean writeDrive(int speed, int steering, long pressNanos) {
+        return writeDrive(mCurrentSession, speed, steering, pressNanos);
+    }
+
+    /**
+     * Drives the bot with the given address, see {@link #writeDrive(int, int, long)}.
+     */
+    public boolean writeDrive(String address, int speed, int steering) {
+        return writeDrive(getSession(address), speed, steering, 0);
+    }
+
+    /**
+     * @return true if the current device accepts analog drive frames.
+     */
+    public boolean hasDriveFrame() {
+        final BotSession session = mCurrentSession;
+        if (session == null) return false;
+        final UUID[] handles = session.characteristics;
+        return handles != null && handles[BotGattAttributes.CHAR_DRIVE] != null;
+    }
+
+    /**
+     * Encodes a drive frame for {@code BotGattAttributes.bot_drive_char_uuid}, clamping both
+     * values to {@code DRIVE_MAX}.
+     *
+     * @param out Destination, at least {@code DRIVE_FRAME_LENGTH} bytes long.
+     * @return {@code out}.
+     */
+    public static byte[] encodeDriveFrame(int speed, int steering, byte[] out) {
+        final int max = BotGattAttributes.DRIVE_MAX;
+        out[BotGattAttributes.DRIVE_FRAME_SPEED] = (byte) Math.max(-max, Math.min(max, speed));
+        out[BotGattAttributes.DRIVE_FRAME_STEERING] =
+                (byte) Math.max(-max, Math.min(max, steering));
+        return out;
+    }
+
+    /**
+     * Queues a UINT8 write to one of the current device's bot characteristics by
+     * {@code BotGattAttributes.CHAR_*} index, without any UUID parsing or service lookup.
+     *
+     * @return true if the write was queued, false if the characteristic is not available.
+     */
+    public boolean writeBotCharacteristic(int charIndex, int value,
+                                          GattOperationQueue.Callback callback) {
+        return writeBotCharacteristic(mCurrentSession, charIndex, value, callback, 0);
+    }
+
+    /**
+     * Enables or disables streaming mode.  While enabled, characteristics that
+     * {@code BotGattAttributes.isStreamable} allows (and the peripheral supports) are written
+     * with {@code WRITE_TYPE_NO_RESPONSE}, paced at the measured connection interval.
+     */
+    public void setStreamingEnabled(boolean enabled) {
+        mStreamingEnabled = enabled;
+        synchronized (mSessions) {
+            for (BotSession session : mSessions.values()) {
+                session.streaming = enabled;
+            }
+        }
+    }
+
+    public boolean isStreamingEnabled() {
+        return mStreamingEnabled;
+    }
+
+    /**
+     * Overrides the pacing between streamed writes for every bot.
+     *
+     * @param intervalMs Fixed spacing in milliseconds, or 0 to follow the measured connection
+     *                   interval.
+     */
+    public void setStreamingInterval(long intervalMs) {
+        mStreamingIntervalNanos = intervalMs * 1000000L;
+        synchronized (mSessions) {
+            for (BotSession session : mSessions.values()) {
+                session.queue.setPacingInterval(mStreamingIntervalNanos);
+            }
+        }
+    }
+
+    /**
+     * @return The current device's connection interval in nanoseconds, as estimated from
+     *         acknowledged writes.
+     */
+    public long getMeasuredConnectionInterval() {
+        final BotSession session = mCurrentSession;
+        return session == null ? GattOperationQueue.DEFAULT_CONNECTION_INTERVAL_NANOS
+                : session.queue.getMeasuredConnectionInterval();
+    }
+
+    /**
+     * @return Number of {@code writeCharacteristic} calls to the current device accepted by the
+     *         stack.
+     */
+    public long getAcceptedWriteCount() {
+        final BotSession session = mCurrentSession;
+        return session == null ? 0 : session.queue.getAcceptedWriteCount();
+    }
+
+    /**
+     * @return Number of {@code writeCharacteristic} calls to the current device rejected by the
+     *         stack.
+     */
+    public long getRejectedWriteCount() {
+        final BotSession session = mCurrentSession;
+        return session == null ? 0 : session.queue.getRejectedWriteCount();
+    }
+
+    /**
+     * Configures the link setup performed after every connection, before service discovery.
+     *
+     * @param mtu ATT MTU to request, or 0 to keep the default of 23.
+     * @param manageConnectionPriority If true, {@code CONNECTION_PRIORITY_HIGH} is requested
+     *                                 for setup and while the bot is driving, and the link drops
+     *                                 back to balanced once it has been stopped for
+     *                                 {@code idlePriorityDelayMs}.
+     */
+    public void setLinkSetup(int mtu, boolean manageConnectionPriority, long idlePriorityDelayMs) {
+        mLinkMtu = mtu;
+        mManageConnectionPriority = manageConnectionPriority;
+        mIdlePriorityDelayMs = idlePriorityDelayMs;
+        synchronized (mSessions) {
+            for (BotSession session : mSessions.values()) {
+                session.managePriority = manageConnectionPriority;
+                session.idlePriorityDelayMs = idlePriorityDelayMs;
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of the current device's negotiated link parameters and setup timings.
+     */
+    public LinkStats getLinkStats() {
+        return getLinkStats(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * @return A snapshot of the given bot's link parameters and setup timings, or null if the
+     *         bot is unknown.
+     */
+    public LinkStats getLinkStats(String address) {
+        final BotSession session = getSession(address);
+        if (session == null) return null;
+        synchronized (session.linkStats) {
+            return session.linkStats.copy();
+        }
+    }
+
+    /**
+     * Command latency of the given bot, for one characteristic and stage.
+     *
+     * @param charIndex {@code BotGattAttributes.CHAR_*} index, or
+     *                  {@code LatencyTracker.OTHER_CHARACTERISTIC} for writes through
+     *                  {@link #writeCustomCharacteristic} to other characteristics.
+     * @param stage One of the {@code LatencyTracker.STAGE_*} constants.
+     * @return p50, p99 and max since the session was created or last reset, or null if the
+     *         bot is unknown.
+     */
+    public LatencyHistogram.Snapshot getCommandLatency(String address, int charIndex,
+                                                       int stage) {
+        final BotSession session = getSession(address);
+        if (session == null) return null;
+        return session.latency.getHistogram(charIndex, stage).getSnapshot();
+    }
+
+    /**
+     * Clears the command latency histograms of the given bot.
+     */
+    public void resetCommandLatency(String address) {
+        final BotSession session = getSession(address);
+        if (session != null) {
+            session.latency.reset();
+        }
+    }
+
+    /**
+     * Sets how dropped links are recovered, for every bot.  Pass a config with
+     * {@code enabled} false to leave reconnecting to the user.
+     */
+    public void setReconnectConfig(ReconnectEngine.Config config) {
+        mReconnectConfig = config;
+        synchronized (mSessions) {
+            for (BotSession session : mSessions.values()) {
+                session.reconnect.setConfig(config);
+            }
+        }
+    }
+
+    /**
+     * @return Link recovery counters and time-to-controllable of the given bot, or null if the
+     *         bot is unknown.
+     */
+    public ReconnectEngine.Stats getReconnectStats(String address) {
+        final BotSession session = getSession(address);
+        return session == null ? null : session.reconnect.getStats();
+    }
+
+    /**
+     * Sets whether bots are reported ready from their cached layout at connection, before
+     * service discovery has confirmed it.  Discovery runs either way.
+     */
+    public void setDiscoveryCacheEnabled(boolean enabled) {
+        mDiscoveryCacheEnabled = enabled;
+    }
+
+    /**
+     * @return Hit, miss and mismatch counters of the discovery cache, or null before
+     *         {@link #initialize()}.
+     */
+    public DiscoveryCache.Stats getDiscoveryCacheStats() {
+        final DiscoveryCache cache = mDiscoveryCache;
+        return cache == null ? null : cache.getStats();
+    }
+
+    /**
+     * Forgets the layout of every bot, e.g. after a firmware update changed it.
+     */
+    public void clearDiscoveryCache() {
+        final DiscoveryCache cache = mDiscoveryCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Starts watching for known bots, i.e. bots that have been controllable before, and
+     * connects each one as soon as it advertises, unless the app disconnected it.  Scanning is
+     * duty cycled as set by {@link #setBackgroundScanConfig}.  Must be called on the main
+     * thread, after {@link #initialize()}.
+     */
+    public void startBackgroundScan() {
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) {
+            scanner.start();
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void stopBackgroundScan() {
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) {
+            scanner.stop();
+        }
+    }
+
+    public void setBackgroundScanConfig(BackgroundScanner.Config config) {
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) {
+            scanner.setConfig(config);
+        }
+    }
+
+    /**
+     * @return Window counters and found-to-connected latencies of the background scanner, or
+     *         null before {@link #initialize()}.
+     */
+    public BackgroundScanner.Stats getBackgroundScanStats() {
+        final BackgroundScanner scanner = mBackgroundScanner;
+        return scanner == null ? null : scanner.getStats();
+    }
+
+    /**
+     * @return Addresses of the bots the background scanner connects.
+     */
+    public List<String> getKnownBots() {
+        final BackgroundScanner scanner = mBackgroundScanner;
+        return scanner == null ? new ArrayList<String>() : scanner.getKnownBots();
+    }
+
+    /**
+     * Stops connecting a bot automatically, until it is controllable again.
+     */
+    public void forgetBot(String address) {
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) {
+            scanner.removeKnownBot(address);
+        }
+    }
+
+    /**
+     * Copies the most recent sensor reading of the given bot into {@code out}.
+     *
+     * @return false if the bot is unknown or has not reported a reading yet.
+     */
+    public boolean getLatestSensorSample(String address, SensorSample out) {
+        final BotSession session = getSession(address);
+        if (session == null) return false;
+        synchronized (session) {
+            if (session.sensorSample.timestampNanos == 0) return false;
+            out.set(session.sensorSample);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the buffer every decoded sensor reading of the given bot is published to.
+     * Consumers read it through their own {@link SensorRingBuffer#newCursor() cursor}, at
+     * their own pace, without blocking the GATT worker thread.
+     *
+     * @return The buffer, or null if the bot is unknown.
+     */
+    public SensorRingBuffer getSensorBuffer(String address) {
+        final BotSession session = getSession(address);
+        return session == null ? null : session.sensorBuffer;
+    }
+
+    /**
+     * Starts recording every command sent to and every notification received from the given
+     * bot into a new {@link SessionRecorder} log in {@code directory}.  A recording that is
+     * already running for the bot is stopped first.
+     *
+     * @return The recorder, or null if the bot is unknown or the log could not be created.
+     */
+    public SessionRecorder startRecording(String address, File directory) {
+        final BotSession session = getSession(address);
+        if (session == null) {
+            Log.w(TAG, "Unknown device " + address);
+            return null;
+        }
+        final SessionRecorder recorder;
+        try {
+            recorder = new SessionRecorder(directory, address);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start recording", e);
+            return null;
+        }
+        final SessionRecorder previous = session.recorder;
+        session.recorder = recorder;
+        if (previous != null) {
+            previous.close();
+        }
+        return recorder;
+    }
+
+    public void stopRecording(String address) {
+        final BotSession session = getSession(address);
+        if (session == null) return;
+        final SessionRecorder recorder = session.recorder;
+        session.recorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Returns an engine that plays a log back into the given bot's session as if it came from
+     * the radio: notifications go through the same decode and dispatch path as
+     * {@code onCharacteristicChanged}, and commands, if asked for, are queued like
+     * {@link #writeMotion}, {@link #writeRelay} and {@link #writeScene} would.  The replay runs
+     * on the GATT worker thread, alongside the bot's own traffic.  Commands are skipped while
+     * the bot's characteristics are not resolved.  Replayed notifications are not recorded
+     * again, but replayed commands are if the bot is being recorded.
+     *
+     * @param sendCommands Whether to write the recorded commands to the bot.  Unless a
+     *                     simulated transport was set with {@link #setTransportFactory}, the
+     *                     session talks to the real bot, which then physically repeats the
+     *                     recorded motions; with false, only the telemetry is replayed.
+     * @return The engine, not yet started, or null if the bot is unknown.
+     */
+    public ReplayEngine newReplay(String address, SessionLogReader reader,
+                                  boolean sendCommands) {
+        final BotSession session = getSession(address);
+        if (session == null) {
+            Log.w(TAG, "Unknown device " + address);
+            return null;
+        }
+        return new ReplayEngine(mScheduler, reader, newReplaySink(session, sendCommands));
+    }
+
+    private ReplayEngine.Sink newReplaySink(final BotSession session,
+                                            final boolean sendCommands) {
+        return new ReplayEngine.Sink() {
+            @Override
+            public void onCommand(int charIndex, byte[] value, int length) {
+                if (!sendCommands) return;
+                final UUID[] handles = session.characteristics;
+                if (handles == null || charIndex < 0 || charIndex >= handles.length
+                        || handles[charIndex] == null) {
+                    return;
+                }
+                if (charIndex == BotGattAttributes.CHAR_COMMAND
+                        && length == BotGattAttributes.COMMAND_FRAME_LENGTH) {
+                    writeScene(session, value[BotGattAttributes.COMMAND_FRAME_MOTION] & 0xFF,
+                            value[BotGattAttributes.COMMAND_FRAME_RELAYS] & 0xFF, 0);
+                } else if (charIndex == BotGattAttributes.CHAR_MOTION && length == 1) {
+                    writeMotion(session, value[0] & 0xFF, 0);
+                } else if (length == 1) {
+                    writeBotCharacteristic(session, charIndex, value[0] & 0xFF, null, 0);
+                }
+            }
+
+            @Override
+            public void onNotification(int charIndex, byte[] value, int length) {
+                if (charIndex < 0 || charIndex >= BotGattAttributes.CHAR_COUNT) return;
+                // Listeners may hold on to the value, so it cannot share the replay buffer.
+                final byte[] copy = new byte[length];
+                System.arraycopy(value, 0, copy, 0, length);
+                handleNotification(session, BotGattAttributes.BOT_CHARACTERISTICS[charIndex],
+                        charIndex, copy, System.nanoTime());
+            }
+        };
+    }
+
+    /**
+     * @return Number of queued writes to the current device that were replaced by a newer value
+     *         before being sent, e.g. motion commands issued faster than the link could deliver
+     *         them.
+     */
+    public long getCoalescedWriteCount() {
+        final BotSession session = mCurrentSession;
+        return session == null ? 0 : session.queue.getCoalescedCount();
+    }
+
+    private BotSession getSession(String address) {
+        if (address == null) return null;
+        final BotSession current = mCurrentSession;
+        if (current != null && current.address.equals(address)) {
+            return current;
+        }
+        synchronized (mSessions) {
+            return mSessions.get(address);
+        }
+    }
+
+    private BotSession createSession(String address) {
+        final BotSession session = new BotSession(address, mScheduler);
+        session.queue.setPacingInterval(mStreamingIntervalNanos);
+        session.streaming = mStreamingEnabled;
+        session.managePriority = mManageConnectionPriority;
+        session.idlePriorityDelayMs = mIdlePriorityDelayMs;
+        session.reconnect = new ReconnectEngine(mScheduler, mReconnectConfig,
+                new SessionReconnectTarget(session), new Random());
+        return session;
+    }
+
+    // Tells the background scanner which known bots are missing and connects those it finds.
+    private class BackgroundScanTarget implements BackgroundScanner.Target {
+        @Override
+        public boolean isMissing(String address) {
+            synchronized (mManualDisconnects) {
+                if (mManualDisconnects.contains(address)) return false;
+            }
+            final BotSession session = getSession(address);
+            // A session that is recovering counts: the bot is back, so its next attempt need
+            // not wait for the backoff.
+            return session == null || session.connectionState == STATE_DISCONNECTED;
+        }
+
+        @Override
+        public boolean connect(String address) {
+            Log.d(TAG, "Known bot " + address + " found.");
+            return connectSession(address);
+        }
+    }
+
+    // Carries out the reconnect engine's attempts for one session.
+    private class SessionReconnectTarget implements ReconnectEngine.Target {
+        private final BotSession mSession;
+
+        SessionReconnectTarget(BotSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public boolean startAttempt(int kind) {
+            final BotSession session = mSession;
+            synchronized (session.linkStats) {
+                session.linkStats.reset(System.nanoTime());
+            }
+            if (kind == ReconnectEngine.ATTEMPT_REUSE) {
+                Log.d(TAG, "Reconnecting " + session.address + " with the existing transport.");
+                if (session.transport == null || !session.transport.connect()) return false;
+                session.connectionState = STATE_CONNECTING;
+                return true;
+            }
+            final GattTransport.Factory factory = mTransportFactory;
+            if (factory == null) return false;
+            releaseTransport(session);
+            final boolean autoConnect = kind == ReconnectEngine.ATTEMPT_AUTO_CONNECT;
+            Log.d(TAG, "Reconnecting " + session.address
+                    + (autoConnect ? " in the background." : " directly."));
+            final GattTransport transport = factory.create(session.address, autoConnect,
+                    new SessionGattCallback(session));
+            if (transport == null) return false;
+            session.transport = transport;
+            session.queue.setTransport(transport);
+            session.connectionState = STATE_CONNECTING;
+            return true;
+        }
+
+        @Override
+        public void cancelAttempt() {
+            Log.d(TAG, "Reconnect attempt to " + mSession.address + " timed out.");
+            final boolean connected = mSession.connectionState == STATE_CONNECTED;
+            releaseTransport(mSession);
+            if (connected) {
+                // The link came up but the bot never became controllable; closing the
+                // transport reports nothing, so the loss is reported here.
+                onLinkDown(mSession);
+            } else {
+                mSession.connectionState = STATE_DISCONNECTED;
+            }
+        }
+
+        @Override
+        public void onGaveUp() {
+            Log.w(TAG, "Gave up reconnecting " + mSession.address + ".");
+            releaseTransport(mSession);
+            // Listeners saw the link go down when the recovery started; reporting it again
+            // tells them that no further attempt follows, and hands the bot to the background
+            // scanner.
+            onLinkDown(mSession);
+        }
+    }
+
+    // Forgets what the link had set up and reports it down.
+    private void onLinkDown(BotSession session) {
+        session.connectionState = STATE_DISCONNECTED;
+        session.characteristics = null;
+        session.cachedProperties = null;
+        session.scheduler.removeCallbacks(session.idlePriorityRunnable);
+        session.queue.clear();
+        mEventDispatcher.dispatchConnectionState(session.address, STATE_DISCONNECTED);
+        broadcastUpdate(ACTION_GATT_DISCONNECTED, session);
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) scanner.onDisconnected(session.address);
+    }
+
+    private static void releaseTransport(BotSession session) {
+        final GattTransport transport = session.transport;
+        session.transport = null;
+        session.queue.setTransport(null);
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    private void closeSession(final BotSession session) {
+        if (Looper.myLooper() != mGattThread.getLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeSession(session);
+                }
+            });
+            return;
+        }
+        session.reconnect.disarm();
+        final SessionRecorder recorder = session.recorder;
+        session.recorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+        session.characteristics = null;
+        session.connectionState = STATE_DISCONNECTED;
+        session.scheduler.removeCallbacks(session.idlePriorityRunnable);
+        session.queue.clear();
+        releaseTransport(session);
+    }
+
+    private static void record(BotSession session, int type, long timestampNanos, int charIndex,
+                               byte[] value) {
+        final SessionRecorder recorder = session.recorder;
+        if (recorder != null) {
+            recorder.record(type, timestampNanos, charIndex, value);
+        }
+    }
+
+    // The write path itself is BotSession's; these only log what it could not queue.
+
+    private boolean writeMotion(BotSession session, int motion, long pressNanos) {
+        if (session != null && session.writeMotion(motion, pressNanos)) return true;
+        Log.w(TAG, "Bot motion not available");
+        return false;
+    }
+
+    private boolean writeRelay(BotSession session, int idx, boolean on, long pressNanos) {
+        if (session != null && session.writeRelay(idx, on, pressNanos)) return true;
+        Log.w(TAG, "Bot relay " + idx + " not available");
+        return false;
+    }
+
+    private boolean writeScene(BotSession session, int motion, int relayMask, long pressNanos) {
+        if (session != null && session.writeScene(motion, relayMask, pressNanos)) return true;
+        Log.w(TAG, "Bot service not resolved");
+        return false;
+    }
+
+    private boolean writeDrive(BotSession session, int speed, int steering, long pressNanos) {
+        if (session != null && session.writeDrive(speed, steering, pressNanos)) return true;
+        Log.w(TAG, "Bot service not resolved");
+        return false;
+    }
+
+    private boolean writeBotCharacteristic(BotSession session, int charIndex, int value,
+                                           GattOperationQueue.Callback callback,
+                                           long pressNanos) {
+        if (session != null && session.writeCommand(charIndex, UINT8_VALUES[value & 0xFF],
+                callback, pressNanos)) {
+            return true;
+        }
+        Log.w(TAG, "Bot characteristic " + charIndex + " not available");
+        return false;
+    }
+
+    // Raises the connection priority, exchanges the MTU and then discovers services, all
+    // through the operation queue so that each step starts when the previous one completed.
+    private void startLinkSetup(final BotSession session) {
+        if (mManageConnectionPriority) {
+            session.requestLinkPriority(GattTransport.CONNECTION_PRIORITY_HIGH);
+        }
+        if (mLinkMtu > 0) {
+            session.queue.enqueue(GattOperationQueue.Operation.requestMtu(mLinkMtu)
+                    .setCallback(new GattOperationQueue.Callback() {
+                        @Override
+                        public void onOperationComplete(GattOperationQueue.Operation op,
+                                                        int status) {
+                            synchronized (session.linkStats) {
+                                final long now = System.nanoTime();
+                                if (status == GattTransport.GATT_SUCCESS) {
+                                    session.linkStats.mtuExchangeNanos =
+                                            now - session.linkStats.stepStartNanos;
+                                }
+                                session.linkStats.stepStartNanos = now;
+                            }
+                        }
+                    }));
+        }
+        session.queue.enqueue(GattOperationQueue.Operation.discoverServices()
+                .setTimeout(DISCOVERY_TIMEOUT_MS)
+                .setCallback(new GattOperationQueue.Callback() {
+                    @Override
+                    public void onOperationComplete(GattOperationQueue.Operation op,
+                                                    int status) {
+                        synchronized (session.linkStats) {
+                            if (status == GattTransport.GATT_SUCCESS) {
+                                session.linkStats.discoveryNanos =
+                                        System.nanoTime() - session.linkStats.stepStartNanos;
+                            }
+                            Log.i(TAG, "Link setup " + session.address + ": "
+                                    + session.linkStats);
+                        }
+                        if (mManageConnectionPriority) {
+                            session.scheduleIdlePriority();
+                        }
+                    }
+                }));
+    }
+
+    // On a cache hit, publishes the remembered layout and reports the bot ready at once.
+    // Android still needs the discovery queued by startLinkSetup() before it can address the
+    // characteristics, so commands sent meanwhile simply wait for it in the queue.
+    private void applyCachedLayout(BotSession session) {
+        session.cachedProperties = null;
+        final DiscoveryCache cache = mDiscoveryCache;
+        if (cache == null || !mDiscoveryCacheEnabled) return;
+        final int[] properties = cache.lookup(session.address);
+        if (properties == null) return;
+        final UUID[] handles = new UUID[BotGattAttributes.CHAR_COUNT];
+        for (int i = 0; i < handles.length; i++) {
+            if (properties[i] >= 0) handles[i] = BotGattAttributes.BOT_CHARACTERISTICS[i];
+        }
+        session.cachedProperties = properties;
+        session.characteristicProperties = properties;
+        session.characteristics = handles;
+        reportBotReady(session, true);
+    }
+
+    // Stores the layout found by discovery, and reports the bot ready unless the cached
+    // layout it was already reported with turned out to be right.  A device without the bot
+    // service is reported unsupported instead, and its cache entry dropped.
+    private void confirmCachedLayout(BotSession session) {
+        final int[] cached = session.cachedProperties;
+        session.cachedProperties = null;
+        final int[] discovered = session.characteristics == null
+                ? null : session.characteristicProperties;
+        final DiscoveryCache cache = mDiscoveryCache;
+        if (cache != null) {
+            cache.update(session.address, cached, discovered);
+        }
+        if (discovered == null) {
+            reportBotUnsupported(session);
             return;
         }
-        /*get the read characteristic from the service*/
-        BluetoothGattCharacteristic mWriteCharacteristic = mCustomService.getCharacteristic(UUID.fromString(charUUID));
-        mWriteCharacteristic.setValue(value,android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT8,0);
-        if(mBluetoothGatt.writeCharacteristic(mWriteCharacteristic) == false){
-            Log.w(TAG, "Failed to write characteristic");
+        if (cached != null && Arrays.equals(cached, discovered)) return;
+        if (cached != null) {
+            Log.w(TAG, "Cached layout of " + session.address + " is outdated");
+        }
+        reportBotReady(session, false);
+    }
+
+    private void reportBotReady(BotSession session, boolean fromCache) {
+        // The controls are enabled on this event, which ends any link recovery.
+        session.reconnect.onControllable();
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) {
+            scanner.addKnownBot(session.address);
+            scanner.onReady(session.address);
+        }
+        mEventDispatcher.dispatchBotReady(session.address, fromCache);
+    }
+
+    // Undoes what a ready report from the cache may have done: the device is neither
+    // recovered nor connected in the background any more.
+    private void reportBotUnsupported(BotSession session) {
+        Log.w(TAG, session.address + " does not have the bot service");
+        session.reconnect.disarm();
+        final BackgroundScanner scanner = mBackgroundScanner;
+        if (scanner != null) {
+            scanner.removeKnownBot(session.address);
         }
+        mEventDispatcher.dispatchBotUnsupported(session.address);
     }
 
 }
@@ -17,6 +17,7 @@
 package com.example.android.bluetoothlegatt;
 
 import java.util.HashMap;
+import java.util.UUID;
 
 /**
  * This class includes a small subset of standard GATT attributes for demonstration purposes.
@@ -33,6 +34,36 @@ public class BotGattAttributes {
     public static final String bot_relay2_char_uuid     = "0000FFF3-0000-1000-8000-00805F9B34FB";  //WRITE-uchar
     public static final String bot_relay3_char_uuid     = "0000FFF4-0000-1000-8000-00805F9B34FB";  //WRITE-uchar
     public static final String bot_relay4_char_uuid     = "0000FFF5-0000-1000-8000-00805F9B34FB";  //WRITE-uchar
+    //Optional: motion + all relays in one frame, not exposed by older firmware
+    public static final String bot_command_char_uuid    = "0000FFF6-0000-1000-8000-00805F9B34FB";  //WRITE-uchar[2]
+    public static final String bot_sensor_char_uuid     = "0000FFF7-0000-1000-8000-00805F9B34FB";  //NOTIFY-uint16[4]
+    //Optional: analog speed + steering, not exposed by older firmware
+    public static final String bot_drive_char_uuid      = "0000FFF8-0000-1000-8000-00805F9B34FB";  //WRITE-int8[2]
+
+    // Pre-parsed forms of the UUIDs above, so the command path never calls UUID.fromString.
+    public static final UUID BOT_SERVICE = UUID.fromString(bot_service_uuid);
+
+    // Indices into BOT_CHARACTERISTICS (and BluetoothLeService's handle table).
+    public static final int CHAR_MOTION = 0;
+    public static final int CHAR_RELAY1 = 1;
+    public static final int CHAR_RELAY2 = 2;
+    public static final int CHAR_RELAY3 = 3;
+    public static final int CHAR_RELAY4 = 4;
+    public static final int CHAR_COMMAND = 5;
+    public static final int CHAR_SENSOR = 6;
+    public static final int CHAR_DRIVE = 7;
+    public static final int CHAR_COUNT = 8;
+
+    public static final UUID[] BOT_CHARACTERISTICS = {
+            UUID.fromString(bot_motion_char_uuid),
+            UUID.fromString(bot_relay1_char_uuid),
+            UUID.fromString(bot_relay2_char_uuid),
+            UUID.fromString(bot_relay3_char_uuid),
+            UUID.fromString(bot_relay4_char_uuid),
+            UUID.fromString(bot_command_char_uuid),
+            UUID.fromString(bot_sensor_char_uuid),
+            UUID.fromString(bot_drive_char_uuid),
+    };
 
     public static final int STOP = 0;
     public static final int FORWARD = 1;
@@ -43,7 +74,59 @@ public class BotGattAttributes {
     public static final int RELAY_ON = 0;
     public static final int RELAY_OFF = 1;
 
+    /**
+     *  brief      Command frame on bot_command_char_uuid
+     *             byte 0: motion opcode (STOP, FORWARD, ...)
+     *             byte 1: relay mask, bit 0 = relay 1 ... bit 3 = relay 4, a set bit switches
+     *                     the relay ON (unlike the per-relay characteristics, where ON is 0)
+     */
+    public static final int COMMAND_FRAME_LENGTH = 2;
+    public static final int COMMAND_FRAME_MOTION = 0;
+    public static final int COMMAND_FRAME_RELAYS = 1;
+    public static final int RELAY_MASK_ALL = 0x0F;
+
+    /**
+     *  brief      Sensor notification on bot_sensor_char_uuid, little-endian UINT16 each
+     *             distance ahead, left, right, behind
+     */
+    public static final int SENSOR_FRAME_LENGTH = 8;
+    public static final int SENSOR_FRAME_DISTANCE = 0;
+    public static final int SENSOR_FRAME_LEFT = 2;
+    public static final int SENSOR_FRAME_RIGHT = 4;
+    public static final int SENSOR_FRAME_BEHIND = 6;
+
+    /**
+     *  brief      Drive frame on bot_drive_char_uuid, signed INT8 each
+     *             byte 0: speed, -DRIVE_MAX (full reverse) .. DRIVE_MAX (full ahead)
+     *             byte 1: steering, -DRIVE_MAX (hard left) .. DRIVE_MAX (hard right)
+     *             0, 0 stops the bot, like the STOP opcode.
+     */
+    public static final int DRIVE_FRAME_LENGTH = 2;
+    public static final int DRIVE_FRAME_SPEED = 0;
+    public static final int DRIVE_FRAME_STEERING = 1;
+    public static final int DRIVE_MAX = 100;
+
+    /**
+     *  brief      Advertisement: bot_service_uuid in the 16-bit service UUID list, and the bot
+     *             status as manufacturer data under BOT_MANUFACTURER_ID (0xFFFF, the ID
+     *             reserved for testing), after the company ID:
+     *             byte 0: battery level, 0..100 %
+     *             byte 1: firmware version, major
+     *             byte 2: firmware version, minor
+     *             Firmware that does not advertise a status is still found by its service.
+     */
+    public static final int BOT_SERVICE_UUID16 = 0xFFF0;
+    public static final int BOT_MANUFACTURER_ID = 0xFFFF;
+    public static final int ADV_STATUS_LENGTH = 3;
+    public static final int ADV_STATUS_BATTERY = 0;
+    public static final int ADV_STATUS_FIRMWARE_MAJOR = 1;
+    public static final int ADV_STATUS_FIRMWARE_MINOR = 2;
+
     private static HashMap<String, String> attributes = new HashMap();
+    // Characteristics where only the newest queued value matters, by CHAR_* index.
+    private static final boolean[] coalescedByIndex = new boolean[CHAR_COUNT];
+    // Characteristics that may be streamed with write-without-response, by CHAR_* index.
+    private static final boolean[] streamableByIndex = new boolean[CHAR_COUNT];
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
 
     static {
@@ -53,10 +136,64 @@ public class BotGattAttributes {
         attributes.put(bot_relay2_char_uuid, "Control relay 2");
         attributes.put(bot_relay3_char_uuid, "Control relay 3");
         attributes.put(bot_relay4_char_uuid, "Control relay 4");
+        attributes.put(bot_command_char_uuid, "Bot command frame");
+        attributes.put(bot_sensor_char_uuid, "Bot sensors");
+        attributes.put(bot_drive_char_uuid, "Bot drive");
+
+        coalescedByIndex[CHAR_MOTION] = true;
+        // A command frame carries the complete bot state, so an older queued one is worthless.
+        coalescedByIndex[CHAR_COMMAND] = true;
+        coalescedByIndex[CHAR_DRIVE] = true;
+        streamableByIndex[CHAR_MOTION] = true;
+        streamableByIndex[CHAR_DRIVE] = true;
     }
 
     public static String lookup(String uuid, String defaultName) {
         String name = attributes.get(uuid);
         return name == null ? defaultName : name;
     }
+
+    /**
+     * @return The CHAR_* index of a bot characteristic, or -1 if it is not one of them.
+     */
+    public static int indexOf(UUID uuid) {
+        for (int i = 0; i < CHAR_COUNT; i++) {
+            if (BOT_CHARACTERISTICS[i].equals(uuid)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The relay mask bit for relay {@code idx} (1 to 4) in a command frame.
+     */
+    public static int relayBit(int idx) {
+        return 1 << (idx - 1);
+    }
+
+    /**
+     * @return The motion opcode closest to a drive frame, for bots without the drive
+     *         characteristic: whichever of speed and steering dominates picks the direction.
+     */
+    public static int driveMotion(int speed, int steering) {
+        if (speed == 0 && steering == 0) return STOP;
+        if (Math.abs(steering) > Math.abs(speed)) return steering < 0 ? LEFT : RIGHT;
+        return speed < 0 ? BACK : FORWARD;
+    }
+
+    /**
+     * @return true if queued writes to this characteristic may be collapsed into the newest
+     *         value (latest-wins), false if every write must reach the peripheral.
+     */
+    public static boolean isCoalesced(int charIndex) {
+        return coalescedByIndex[charIndex];
+    }
+
+    /**
+     * @return true if losing an individual write to this characteristic is acceptable, so it
+     *         may use {@code WRITE_TYPE_NO_RESPONSE} when streaming is enabled.  Relays are
+     *         state changes that must be acknowledged and are never streamed.
+     */
+    public static boolean isStreamable(int charIndex) {
+        return streamableByIndex[charIndex];
+    }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Scans for bots with {@link BluetoothLeScanner}.
+ *
+ * By default only advertisers of the bot service are reported: the filter is handed to the
+ * controller, or to the Bluetooth process where the controller cannot filter, so other
+ * advertisers in range never reach this process.  Results can also be batched by the
+ * controller with a report delay.  Each device is surfaced to the {@link Listener} once per
+ * scan; its repeated advertisements are reported as updates.
+ *
+ * Scan callbacks, and therefore the listener, run on the main thread.
+ */
+public class BotScanner {
+    private final static String TAG = BotScanner.class.getSimpleName();
+
+    public static final int SCAN_MODE_LOW_POWER = ScanSettings.SCAN_MODE_LOW_POWER;
+    public static final int SCAN_MODE_BALANCED = ScanSettings.SCAN_MODE_BALANCED;
+    public static final int SCAN_MODE_LOW_LATENCY = ScanSettings.SCAN_MODE_LOW_LATENCY;
+
+    /**
+     * Receives scan results.
+     */
+    public interface Listener {
+        /**
+         * A device seen for the first time in this scan.
+         *
+         * @param scanRecord The raw advertisement and scan response, or null if unavailable.
+         * @param timestampNanos When the advertisement was received, on the
+         *                       {@code SystemClock.elapsedRealtimeNanos} clock.
+         */
+        void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord,
+                           long timestampNanos);
+
+        /**
+         * A further advertisement of a device already found in this scan.
+         */
+        void onDeviceUpdated(BluetoothDevice device, int rssi, byte[] scanRecord,
+                             long timestampNanos);
+
+        /**
+         * @param errorCode One of {@code ScanCallback.SCAN_FAILED_*}.
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Scan parameters, read when a scan starts.
+     */
+    public static class Config {
+        /** One of the SCAN_MODE_* constants. */
+        public int scanMode = SCAN_MODE_LOW_LATENCY;
+        /**
+         * Delay for which the controller may hold results back and deliver them in one batch,
+         * or 0 to report each one at once.  Ignored if the controller cannot batch.
+         */
+        public long reportDelayMs = 0;
+        /** Whether to report only advertisers of the bot service. */
+        public boolean filterBotService = true;
+        /**
+         * If set, only these devices are reported, whatever they advertise; for bots that are
+         * already known.
+         */
+        public String[] addresses;
+    }
+
+    /**
+     * Counters since the scanner was created.
+     */
+    public static class Stats {
+        /** Calls into the scan callback; a batch counts once. */
+        public long callbacks;
+        /** Results received, including those of batches. */
+        public long results;
+        /** Devices reported to the listener. */
+        public long devicesSurfaced;
+        public long failures;
+
+        @Override
+        public String toString() {
+            return "callbacks=" + callbacks + " results=" + results
+                    + " devicesSurfaced=" + devicesSurfaced + " failures=" + failures;
+        }
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final Listener mListener;
+    private Config mConfig = new Config();
+    private BluetoothLeScanner mScanner;
+    private boolean mScanning;
+    private boolean mBatching;
+
+    // Addresses already surfaced in the current scan.
+    private final HashSet<String> mSeen = new HashSet<String>();
+
+    // Guarded by this, so that getStats() may be called from any thread.
+    private long mCallbacks;
+    private long mResults;
+    private long mDevicesSurfaced;
+    private long mFailures;
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            synchronized (BotScanner.this) {
+                mCallbacks++;
+            }
+            handleResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            synchronized (BotScanner.this) {
+                mCallbacks++;
+            }
+            for (int i = 0; i < results.size(); i++) {
+                handleResult(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            synchronized (BotScanner.this) {
+                mFailures++;
+            }
+            mScanning = false;
+            mListener.onScanFailed(errorCode);
+        }
+    };
+
+    public BotScanner(BluetoothAdapter adapter, Listener listener) {
+        mAdapter = adapter;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the parameters of the next scan; a scan in progress is not restarted.
+     */
+    public void setConfig(Config config) {
+        mConfig = config;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Starts a new scan, forgetting the devices surfaced by the previous one.
+     *
+     * @return false if Bluetooth is off.
+     */
+    public boolean start() {
+        if (mScanning) stop();
+        mScanner = mAdapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            Log.w(TAG, "Bluetooth is off; cannot scan.");
+            return false;
+        }
+        final Config config = mConfig;
+        mBatching = config.reportDelayMs > 0;
+        if (mBatching && !mAdapter.isOffloadedScanBatchingSupported()) {
+            // Asking for a report delay anyway fails the scan with FEATURE_UNSUPPORTED.
+            Log.w(TAG, "Scan batching not supported; reporting results at once.");
+            mBatching = false;
+        }
+        final ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(config.scanMode);
+        if (mBatching) {
+            settings.setReportDelay(config.reportDelayMs);
+        }
+        final List<ScanFilter> filters;
+        if (config.addresses != null) {
+            filters = new ArrayList<ScanFilter>(config.addresses.length);
+            for (String address : config.addresses) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            }
+        } else if (config.filterBotService) {
+            filters = Collections.singletonList(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(BotGattAttributes.BOT_SERVICE))
+                    .build());
+        } else {
+            filters = new ArrayList<ScanFilter>();
+        }
+        mSeen.clear();
+        mScanning = true;
+        mScanner.startScan(filters, settings.build(), mScanCallback);
+        return true;
+    }
+
+    /**
+     * Stops the scan.  When batching, the controller is first asked to deliver the results it
+     * still holds, though those arriving after the scan has stopped are lost.
+     */
+    public void stop() {
+        if (!mScanning) return;
+        mScanning = false;
+        // The scanner throws if Bluetooth was turned off in the meantime.
+        if (!mAdapter.isEnabled()) return;
+        if (mBatching) {
+            mScanner.flushPendingScanResults(mScanCallback);
+        }
+        mScanner.stopScan(mScanCallback);
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    public synchronized Stats getStats() {
+        final Stats stats = new Stats();
+        stats.callbacks = mCallbacks;
+        stats.results = mResults;
+        stats.devicesSurfaced = mDevicesSurfaced;
+        stats.failures = mFailures;
+        return stats;
+    }
+
+    private void handleResult(ScanResult result) {
+        final BluetoothDevice device = result.getDevice();
+        final boolean found = mSeen.add(device.getAddress());
+        synchronized (this) {
+            mResults++;
+            if (found) mDevicesSurfaced++;
+        }
+        final ScanRecord record = result.getScanRecord();
+        final byte[] bytes = record == null ? null : record.getBytes();
+        if (found) {
+            mListener.onDeviceFound(device, result.getRssi(), bytes, result.getTimestampNanos());
+        } else {
+            mListener.onDeviceUpdated(device, result.getRssi(), bytes, result.getTimestampNanos());
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Connection state for one bot managed by {@code BluetoothLeService}: its GATT transport,
+ * operation queue, resolved characteristics and link statistics.
+ *
+ * The command write path lives here rather than in the service, so that it runs unchanged
+ * against a simulated transport off the device.
+ */
+public class BotSession {
+    // Several seconds of readings at the highest notification rates the link allows.
+    static final int SENSOR_BUFFER_CAPACITY = 1024;
+
+    final String address;
+    final Scheduler scheduler;
+    final GattOperationQueue queue;
+    final LinkStats linkStats = new LinkStats();
+    // Press-to-acknowledgement latencies of this bot's command writes.
+    final LatencyTracker latency = new LatencyTracker();
+
+    // Set and cleared on the GATT worker thread, read from any.
+    volatile GattTransport transport;
+    volatile int connectionState = BluetoothLeService.STATE_DISCONNECTED;
+
+    // Bot characteristics resolved once per discovery, indexed by BotGattAttributes.CHAR_*;
+    // entries the peripheral lacks are null.  The array is null while disconnected or before
+    // discovery has completed.
+    volatile UUID[] characteristics;
+    // GattTransport.PROPERTY_* bits of the entries above.  Written before characteristics is
+    // published, and only read through a non-null characteristics.
+    int[] characteristicProperties;
+    // Layout taken from the DiscoveryCache at connection, until discovery confirms or
+    // replaces it; null otherwise.  Only touched on the GATT worker thread.
+    int[] cachedProperties;
+
+    // Records commands and notifications while set, see BluetoothLeService#startRecording.
+    volatile SessionRecorder recorder;
+
+    // Brings the link back after it drops; set up by BluetoothLeService.
+    ReconnectEngine reconnect;
+
+    // Settings of BluetoothLeService, pushed to every session.  When streaming, streamable
+    // characteristics are written without response.  When managing the priority, the link
+    // is kept at high priority while the bot moves, and dropped back to balanced once it has
+    // been stopped for idlePriorityDelayMs.
+    volatile boolean streaming;
+    volatile boolean managePriority;
+    volatile long idlePriorityDelayMs;
+
+    // Drops the link back to balanced priority once the bot has been idle for a while.
+    final Runnable idlePriorityRunnable = new Runnable() {
+        @Override
+        public void run() {
+            requestLinkPriority(GattTransport.CONNECTION_PRIORITY_BALANCED);
+        }
+    };
+
+    // Counts commands queued through the fast path; guarded by this.
+    long commandsQueued;
+    long notificationsReceived;
+
+    // Most recent sensor reading, written only by the GATT worker thread; guarded by this.
+    final SensorSample sensorSample = new SensorSample();
+
+    // Every decoded sensor reading, published under this session's lock.
+    final SensorRingBuffer sensorBuffer = new SensorRingBuffer(SENSOR_BUFFER_CAPACITY);
+
+    // Records the time of the first acknowledged command after connecting.  Only attached to
+    // fast-path writes that were issued without a caller-supplied callback.
+    final GattOperationQueue.Callback firstCommandCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onOperationComplete(GattOperationQueue.Operation op, int status) {
+            if (status != GattTransport.GATT_SUCCESS) return;
+            synchronized (linkStats) {
+                if (linkStats.firstCommandNanos < 0) {
+                    linkStats.firstCommandNanos = System.nanoTime() - linkStats.connectStartNanos;
+                }
+            }
+        }
+    };
+
+    BotSession(String address, Scheduler scheduler) {
+        this.address = address;
+        this.scheduler = scheduler;
+        this.queue = new GattOperationQueue(scheduler);
+        this.queue.setLatencyTracker(latency);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    boolean isActive() {
+        return connectionState != BluetoothLeService.STATE_DISCONNECTED
+                || (reconnect != null && reconnect.isRecovering());
+    }
+
+    /**
+     * Records a command write, if recording, and queues it.  Writes to characteristics where
+     * only the newest value matters replace any older one still waiting in the queue.
+     *
+     * @param charIndex {@code BotGattAttributes.CHAR_*} index of the target, or -1 for a
+     *                  characteristic outside the bot service.
+     */
+    void submitCommand(GattOperationQueue.Operation op, int charIndex, long timestampNanos) {
+        final SessionRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.record(SessionRecorder.TYPE_COMMAND, timestampNanos, charIndex, op.value);
+        }
+        if (charIndex >= 0 && BotGattAttributes.isCoalesced(charIndex)) {
+            queue.enqueueLatest(op);
+        } else {
+            queue.enqueue(op);
+        }
+    }
+
+    /**
+     * Builds the handle table for the bot service from the services the transport discovered.
+     * Characteristics missing on the peripheral stay null, so that the write path reports them
+     * as unavailable.
+     *
+     * @return false if the bot service was not found; the table is then null.
+     */
+    boolean resolveCharacteristics() {
+        final GattTransport transport = this.transport;
+        final UUID[] handles = new UUID[BotGattAttributes.CHAR_COUNT];
+        final int[] properties = new int[BotGattAttributes.CHAR_COUNT];
+        boolean found = false;
+        for (int i = 0; i < handles.length; i++) {
+            properties[i] = transport == null ? -1 : transport.getCharacteristicProperties(
+                    BotGattAttributes.BOT_SERVICE, BotGattAttributes.BOT_CHARACTERISTICS[i]);
+            if (properties[i] >= 0) {
+                handles[i] = BotGattAttributes.BOT_CHARACTERISTICS[i];
+                found = true;
+            }
+        }
+        if (!found) {
+            characteristics = null;
+            return false;
+        }
+        characteristicProperties = properties;
+        characteristics = handles;
+        return true;
+    }
+
+    // The command write path.  Each write returns false if the bot service is not resolved or
+    // lacks the characteristic, and true once the write is queued.
+
+    boolean writeMotion(int motion, long pressNanos) {
+        updateDrivePriority(motion);
+        return writeCommand(BotGattAttributes.CHAR_MOTION,
+                BluetoothLeService.UINT8_VALUES[motion & 0xFF], null, pressNanos);
+    }
+
+    boolean writeRelay(int idx, boolean on, long pressNanos) {
+        if (idx < 1 || idx > 4) {
+            throw new IllegalArgumentException("Relay index out of range: " + idx);
+        }
+        return writeCommand(BotGattAttributes.CHAR_RELAY1 + idx - 1, BluetoothLeService
+                .UINT8_VALUES[on ? BotGattAttributes.RELAY_ON : BotGattAttributes.RELAY_OFF],
+                null, pressNanos);
+    }
+
+    // One command frame if the bot has the command characteristic, one write per
+    // characteristic otherwise.
+    boolean writeScene(int motion, int relayMask, long pressNanos) {
+        final UUID[] handles = characteristics;
+        if (handles == null) return false;
+        if (handles[BotGattAttributes.CHAR_COMMAND] == null) {
+            boolean queued = writeMotion(motion, pressNanos);
+            for (int idx = 1; idx <= 4; idx++) {
+                queued &= writeRelay(idx, (relayMask & BotGattAttributes.relayBit(idx)) != 0,
+                        pressNanos);
+            }
+            return queued;
+        }
+        updateDrivePriority(motion);
+        return writeCommand(BotGattAttributes.CHAR_COMMAND,
+                BluetoothLeService.encodeCommandFrame(motion, relayMask,
+                        new byte[BotGattAttributes.COMMAND_FRAME_LENGTH]),
+                null, pressNanos);
+    }
+
+    // A drive frame if the bot has the drive characteristic, the nearest motion otherwise.
+    boolean writeDrive(int speed, int steering, long pressNanos) {
+        final UUID[] handles = characteristics;
+        if (handles == null) return false;
+        final int motion = BotGattAttributes.driveMotion(speed, steering);
+        if (handles[BotGattAttributes.CHAR_DRIVE] == null) {
+            return writeMotion(motion, pressNanos);
+        }
+        updateDrivePriority(motion);
+        return writeCommand(BotGattAttributes.CHAR_DRIVE,
+                BluetoothLeService.encodeDriveFrame(speed, steering,
+                        new byte[BotGattAttributes.DRIVE_FRAME_LENGTH]),
+                null, pressNanos);
+    }
+
+    /**
+     * Queues a write to a bot characteristic through the handle table, without response if
+     * streaming is on and both the characteristic and the bot allow it.
+     *
+     * @param callback Completion callback, or null to record the first acknowledged command.
+     */
+    boolean writeCommand(int charIndex, byte[] value, GattOperationQueue.Callback callback,
+                         long pressNanos) {
+        final UUID[] handles = characteristics;
+        if (handles == null || handles[charIndex] == null) return false;
+        final GattOperationQueue.Operation op = GattOperationQueue.Operation
+                .write(BotGattAttributes.BOT_SERVICE, handles[charIndex], value)
+                .setCallback(callback == null ? firstCommandCallback : callback)
+                .setPressTime(pressNanos);
+        if (streaming && BotGattAttributes.isStreamable(charIndex)
+                && (characteristicProperties[charIndex]
+                        & GattTransport.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            op.setWriteType(GattTransport.WRITE_TYPE_NO_RESPONSE);
+        }
+        synchronized (this) {
+            commandsQueued++;
+        }
+        submitCommand(op, charIndex, System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Queues a UINT8 write to any characteristic the bot has.  Must be called on the
+     * scheduler's thread, where the transport is looked up.
+     *
+     * @return false if the bot does not have the characteristic.
+     */
+    boolean writeCustomCharacteristic(UUID service, UUID characteristic, int value,
+                                      GattOperationQueue.Callback callback) {
+        final GattTransport transport = this.transport;
+        if (transport == null
+                || transport.getCharacteristicProperties(service, characteristic) < 0) {
+            return false;
+        }
+        // Same encoding as setValue(value, FORMAT_UINT8, 0).
+        final GattOperationQueue.Operation op = GattOperationQueue.Operation
+                .write(service, characteristic, new byte[] {(byte) value})
+                .setCallback(callback);
+        submitCommand(op, BotGattAttributes.indexOf(characteristic), System.nanoTime());
+        return true;
+    }
+
+    // Keeps the link at high priority while the bot is moving.
+    void updateDrivePriority(int motion) {
+        if (!managePriority) return;
+        if (motion == BotGattAttributes.STOP) {
+            scheduleIdlePriority();
+        } else {
+            scheduler.removeCallbacks(idlePriorityRunnable);
+            requestLinkPriority(GattTransport.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    void scheduleIdlePriority() {
+        scheduler.removeCallbacks(idlePriorityRunnable);
+        scheduler.postDelayed(idlePriorityRunnable, idlePriorityDelayMs);
+    }
+
+    /**
+     * Requests a connection priority unless it is already the current one.  May be called
+     * from any thread; the request itself is made on the scheduler's thread.  A request the
+     * stack refuses is forgotten, so that the next call tries again.
+     */
+    void requestLinkPriority(final int priority) {
+        if (transport == null || connectionState != BluetoothLeService.STATE_CONNECTED) return;
+        synchronized (linkStats) {
+            if (linkStats.connectionPriority == priority) return;
+            linkStats.connectionPriority = priority;
+            linkStats.priorityChanges++;
+        }
+        scheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final GattTransport transport = BotSession.this.transport;
+                if (transport == null || transport.requestConnectionPriority(priority)) return;
+                synchronized (linkStats) {
+                    if (linkStats.connectionPriority == priority) {
+                        linkStats.connectionPriority = -1;
+                    }
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * @return A snapshot of this session's counters.
+     */
+    public Metrics getMetrics() {
+        Metrics metrics = new Metrics();
+        metrics.address = address;
+        metrics.connectionState = connectionState;
+        synchronized (this) {
+            metrics.commandsQueued = commandsQueued;
+            metrics.notificationsReceived = notificationsReceived;
+        }
+        metrics.acceptedWrites = queue.getAcceptedWriteCount();
+        metrics.rejectedWrites = queue.getRejectedWriteCount();
+        metrics.coalescedWrites = queue.getCoalescedCount();
+        metrics.pendingOperations = queue.getPendingCount();
+        metrics.timeouts = queue.getTimeoutCount();
+        metrics.connectionIntervalNanos = queue.getMeasuredConnectionInterval();
+        metrics.submitToSend = queue.getSubmitToSendLatency();
+        synchronized (linkStats) {
+            metrics.linkStats = linkStats.copy();
+        }
+        return metrics;
+    }
+
+    /**
+     * Per-device counters, as returned by {@code BluetoothLeService#getMetrics(String)}.
+     */
+    public static class Metrics {
+        public String address;
+        public int connectionState;
+        public long commandsQueued;
+        public long notificationsReceived;
+        public long acceptedWrites;
+        public long rejectedWrites;
+        public long coalescedWrites;
+        public int pendingOperations;
+        public long timeouts;
+        public long connectionIntervalNanos;
+        /** Time from queueing GATT operations to their being issued. */
+        public LatencyHistogram.Snapshot submitToSend;
+        public LinkStats linkStats;
+
+        @Override
+        public String toString() {
+            return address + " state=" + connectionState
+                    + " queued=" + commandsQueued
+                    + " accepted=" + acceptedWrites
+                    + " rejected=" + rejectedWrites
+                    + " coalesced=" + coalescedWrites
+                    + " pending=" + pendingOperations
+                    + " timeouts=" + timeouts
+                    + " notifications=" + notificationsReceived
+                    + " interval=" + connectionIntervalNanos / 1000 + "us"
+                    + " submitToSend=[" + submitToSend + "]"
+                    + " link=[" + linkStats + "]";
+        }
+    }
+}
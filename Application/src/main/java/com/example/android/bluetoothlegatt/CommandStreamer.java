@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Keeps a held drive command alive and stops the bot when its driver goes away.
+ *
+ * A drive command is written once, so a lost STOP or a stalled app would leave the bot
+ * driving.  The streamer instead repeats the current command every {@link Config#periodMs}
+ * while it is not STOP, and repeats STOP {@link Config#stopRepeats} more times once it is.
+ * The UI proves that it is alive by calling {@link #heartbeat()}; if no heartbeat has come
+ * for {@link Config#heartbeatTimeoutMs}, the next tick replaces the command with STOP.  The
+ * bot is therefore stopped at most {@code heartbeatTimeoutMs + periodMs} after the UI last
+ * ran, however long the UI thread is blocked, provided the streamer's own thread is not.
+ *
+ * Ticks are due at fixed times, each one period after the previous due time, so that lateness
+ * does not accumulate; how late each tick actually ran is recorded as the cadence jitter.
+ *
+ * The streamer runs on the thread of its {@link Scheduler}, which should be a dedicated one of
+ * high priority; {@link #setCommand}, {@link #heartbeat()} and {@link #getStats()} may be
+ * called from any thread.
+ */
+public class CommandStreamer {
+
+    /**
+     * Where the commands go.  Called on the streamer's thread.
+     */
+    public interface Sink {
+        /**
+         * @param inputNanos {@code System.nanoTime()} of the input that led to the command,
+         *                   or 0 for a repetition.
+         * @return true if the command was queued.
+         */
+        boolean send(int speed, int steering, long inputNanos);
+    }
+
+    /**
+     * Timing parameters, read at every tick.
+     */
+    public static class Config {
+        /** Time between two repetitions of the current command. */
+        public long periodMs = 100;
+        /** Time without a heartbeat after which the bot is stopped. */
+        public long heartbeatTimeoutMs = 300;
+        /** Repetitions of STOP after the first one, in case that is lost. */
+        public int stopRepeats = 3;
+    }
+
+    /**
+     * Counters since the streamer was created.  Durations are in nanoseconds.
+     */
+    public static class Stats {
+        /** Commands set by the UI. */
+        public long commands;
+        /** Ticks run, and of those, the ones that sent something. */
+        public long ticks;
+        public long repeats;
+        /** Ticks dropped because the thread fell a whole period behind. */
+        public long missedTicks;
+        /** Times the bot was stopped for want of a heartbeat. */
+        public long deadManStops;
+        /** How late ticks ran with respect to their due time. */
+        public LatencyHistogram.Snapshot jitter;
+
+        @Override
+        public String toString() {
+            return "commands=" + commands + " ticks=" + ticks + " repeats=" + repeats
+                    + " missed=" + missedTicks + " deadManStops=" + deadManStops
+                    + " jitter=[" + jitter + "]";
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Sink mSink;
+    private volatile Config mConfig = new Config();
+
+    // All guarded by this.
+    private int mSpeed;
+    private int mSteering;
+    private long mInputNanos;
+    // Set when the UI changes the command, until the streamer thread has sent it.
+    private boolean mChanged;
+    // Set when the streamer stops the bot, until the next heartbeat reports it.
+    private boolean mDeadManStopped;
+    private long mHeartbeatNanos;
+    private long mCommands;
+    private long mTicks;
+    private long mRepeats;
+    private long mMissedTicks;
+    private long mDeadManStops;
+
+    // Only used on the streamer's thread.
+    private boolean mTicking;
+    private long mDueNanos;
+    private int mStopsLeft;
+
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+
+    private final Runnable mSendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendChanged();
+        }
+    };
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    public CommandStreamer(Scheduler scheduler, Sink sink) {
+        mScheduler = scheduler;
+        mSink = sink;
+        mHeartbeatNanos = scheduler.nanoTime();
+    }
+
+    public void setConfig(Config config) {
+        mConfig = config;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Replaces the command being held; it is sent at once and then repeated.  Speed and
+     * steering as for {@code BluetoothLeService.writeDrive}; 0, 0 stops the bot.
+     *
+     * @param inputNanos {@code System.nanoTime()} of the input that led to the command.
+     */
+    public void setCommand(int speed, int steering, long inputNanos) {
+        synchronized (this) {
+            mSpeed = speed;
+            mSteering = steering;
+            mInputNanos = inputNanos;
+            mChanged = true;
+            mCommands++;
+            // A command is also a sign of life.
+            mHeartbeatNanos = mScheduler.nanoTime();
+            mDeadManStopped = false;
+        }
+        mScheduler.removeCallbacks(mSendRunnable);
+        mScheduler.postDelayed(mSendRunnable, 0);
+    }
+
+    /**
+     * Tells the streamer that the UI is alive.  To be called well within
+     * {@link Config#heartbeatTimeoutMs} of the previous call, from the thread whose stall
+     * must stop the bot.
+     *
+     * @return true if the bot was stopped for want of a heartbeat since the previous call, so
+     *         that the UI can reset what it believes the bot is doing.
+     */
+    public synchronized boolean heartbeat() {
+        mHeartbeatNanos = mScheduler.nanoTime();
+        final boolean stopped = mDeadManStopped;
+        mDeadManStopped = false;
+        return stopped;
+    }
+
+    /**
+     * Stops the bot and the repetitions, e.g. when the UI goes away.
+     */
+    public void stop() {
+        setCommand(0, 0, 0);
+    }
+
+    public Stats getStats() {
+        final Stats stats = new Stats();
+        synchronized (this) {
+            stats.commands = mCommands;
+            stats.ticks = mTicks;
+            stats.repeats = mRepeats;
+            stats.missedTicks = mMissedTicks;
+            stats.deadManStops = mDeadManStops;
+        }
+        stats.jitter = mJitter.getSnapshot();
+        return stats;
+    }
+
+    // Sends a command set by the UI and restarts the cadence from now.
+    private void sendChanged() {
+        final int speed;
+        final int steering;
+        final long inputNanos;
+        synchronized (this) {
+            if (!mChanged) return;
+            mChanged = false;
+            speed = mSpeed;
+            steering = mSteering;
+            inputNanos = mInputNanos;
+        }
+        mStopsLeft = mConfig.stopRepeats;
+        mSink.send(speed, steering, inputNanos);
+        mScheduler.removeCallbacks(mTickRunnable);
+        mTicking = false;
+        scheduleTick(mScheduler.nanoTime());
+    }
+
+    private void tick() {
+        if (!mTicking) return;
+        final Config config = mConfig;
+        final long now = mScheduler.nanoTime();
+        mJitter.record(Math.max(0, now - mDueNanos));
+
+        final int speed;
+        final int steering;
+        final boolean deadMan;
+        synchronized (this) {
+            mTicks++;
+            deadMan = (mSpeed != 0 || mSteering != 0)
+                    && now - mHeartbeatNanos > config.heartbeatTimeoutMs * 1000000L;
+            if (deadMan) {
+                mSpeed = 0;
+                mSteering = 0;
+                mDeadManStopped = true;
+                mDeadManStops++;
+            }
+            speed = mSpeed;
+            steering = mSteering;
+        }
+        if (deadMan) {
+            mStopsLeft = config.stopRepeats + 1;
+        }
+        final boolean stopped = speed == 0 && steering == 0;
+        if (stopped && mStopsLeft <= 0) {
+            // Nothing left to repeat; the streamer sleeps until the next command.
+            mTicking = false;
+            return;
+        }
+        if (stopped) mStopsLeft--;
+        mSink.send(speed, steering, 0);
+        synchronized (this) {
+            mRepeats++;
+        }
+        scheduleTick(mDueNanos);
+    }
+
+    // Schedules the tick one period after the previous due time, or after now if the thread
+    // has fallen a whole period behind.
+    private void scheduleTick(long fromNanos) {
+        final long periodNanos = mConfig.periodMs * 1000000L;
+        final long now = mScheduler.nanoTime();
+        long due = (mTicking ? fromNanos : now) + periodNanos;
+        if (due <= now) {
+            final long missed = (now - due) / periodNanos + 1;
+            synchronized (this) {
+                mMissedTicks += missed;
+            }
+            due += missed * periodNanos;
+        }
+        mTicking = true;
+        mDueNanos = due;
+        mScheduler.postDelayedNanos(mTickRunnable, due - now);
+    }
+}
@@ -19,14 +19,15 @@ package com.example.android.bluetoothlegatt;
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,6 +39,7 @@ import android.widget.ExpandableListView;
 import android.widget.SeekBar;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -64,7 +66,8 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
 
     private ExpandableListView mGattServicesList;
-    private BluetoothLeService mBluetoothLeService;
+    // Also read on the command streamer's thread.
+    private volatile BluetoothLeService mBluetoothLeService;
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
             new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
@@ -81,6 +84,17 @@ public class DeviceControlActivity extends Activity {
     private ToggleButton tgbRelay2;
     private ToggleButton tgbRelay3;
     private ToggleButton tgbRelay4;
+    private TextView lblJoystick;
+    private JoystickView joystick;
+    private DriveTransmitter mDriveTransmitter;
+
+    // Motion commands are held by the streamer, on a thread of its own so that a busy UI
+    // thread cannot delay their repetition nor the STOP that follows a missed heartbeat.
+    private static final long HEARTBEAT_INTERVAL_MS = 100;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mStreamerThread;
+    private CommandStreamer mCommandStreamer;
+    private final FrameTimeMonitor mFrameTimeMonitor = new FrameTimeMonitor();
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -92,8 +106,13 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBluetoothLeService.registerEventListener(mGattEventListener, Looper.getMainLooper());
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            // Bots used before are connected as soon as they are switched on.
+            mBluetoothLeService.startBackgroundScan();
+            // On the main thread, with the joystick.
+            mDriveTransmitter = new DriveTransmitter(new HandlerScheduler(mHandler), mDriveSink);
         }
 
         @Override
@@ -102,30 +121,105 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles various events fired by the Service, delivered on the main thread.
+    // onConnectionStateChanged: connected to or disconnected from a GATT server.
+    // onServicesDiscovered: discovered GATT services.
+    // onBotReady: the bot can be driven, possibly before discovery has finished.
+    // onBotUnsupported: the device turned out not to be a bot.
+    // onDataAvailable: received data from the device.  This can be a result of read
+    //                  or notification operations.
+    private final GattEventDispatcher.Listener mGattEventListener =
+            new GattEventDispatcher.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+        public void onConnectionStateChanged(String address, int state) {
+            // The service may be driving other bots as well; only follow ours.
+            if (!address.equals(mDeviceAddress)) return;
+            if (state == BluetoothLeService.STATE_CONNECTED) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
                 enableControl(false);
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
+            } else if (state == BluetoothLeService.STATE_DISCONNECTED) {
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 enableControl(false);
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                enableControl(true);
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+        }
+
+        @Override
+        public void onBotReady(String address, boolean fromCache) {
+            if (!address.equals(mDeviceAddress)) return;
+            if (mDriveTransmitter != null) {
+                // Older bots only take the discrete motions; ignore moves within one.
+                final DriveTransmitter.Config config = new DriveTransmitter.Config();
+                config.discrete = !mBluetoothLeService.hasDriveFrame();
+                mDriveTransmitter.setConfig(config);
+            }
+            enableControl(true);
+        }
+
+        @Override
+        public void onBotUnsupported(String address) {
+            if (!address.equals(mDeviceAddress)) return;
+            enableControl(false);
+            Toast.makeText(DeviceControlActivity.this, R.string.bot_not_supported,
+                    Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onDataAvailable(String address, UUID characteristic, byte[] value) {
+        }
+
+        @Override
+        public void onSensorSample(String address, long timestampNanos, int distance, int left,
+                                   int right, int behind) {
+        }
+    };
+
+    private final CommandStreamer.Sink mStreamerSink = new CommandStreamer.Sink() {
+        @Override
+        public boolean send(int speed, int steering, long inputNanos) {
+            final BluetoothLeService service = mBluetoothLeService;
+            return service != null && service.writeDrive(speed, steering, inputNanos);
+        }
+    };
+
+    private final Runnable mHeartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCommandStreamer.heartbeat() && mDriveTransmitter != null) {
+                // The streamer has stopped the bot behind the joystick's back.
+                mDriveTransmitter.reset();
+            }
+            mHandler.postDelayed(this, HEARTBEAT_INTERVAL_MS);
+        }
+    };
+
+    // Hands the joystick position to the streamer, no faster than the link carries writes.
+    private final DriveTransmitter.Sink mDriveSink = new DriveTransmitter.Sink() {
+        @Override
+        public boolean send(int speed, int steering, long inputNanos) {
+            mCommandStreamer.setCommand(speed, steering, inputNanos);
+            return true;
+        }
+
+        @Override
+        public long getMinIntervalNanos() {
+            return mBluetoothLeService == null ? 0
+                    : mBluetoothLeService.getMeasuredConnectionInterval();
+        }
+    };
+
+    private final JoystickView.Listener mJoystickListener = new JoystickView.Listener() {
+        @Override
+        public void onJoystickMoved(float x, float y, long eventNanos) {
+            if (mDriveTransmitter != null) {
+                mDriveTransmitter.setInput(x, y, eventNanos);
             }
         }
     };
@@ -177,12 +271,18 @@ public class DeviceControlActivity extends Activity {
         tgbRelay2.setEnabled(en);
         tgbRelay3.setEnabled(en);
         tgbRelay4.setEnabled(en);
+        lblJoystick.setEnabled(en);
+        joystick.setEnabled(en);
 
         if(en == false) {
             tgbRelay1.setChecked(false);
             tgbRelay2.setChecked(false);
             tgbRelay3.setChecked(false);
             tgbRelay4.setChecked(false);
+            mCommandStreamer.stop();
+            if (mDriveTransmitter != null) {
+                mDriveTransmitter.reset();
+            }
         }
     }
 
@@ -212,28 +312,56 @@ public class DeviceControlActivity extends Activity {
         tgbRelay2 = (ToggleButton) findViewById(R.id.tgbRelay2);
         tgbRelay3 = (ToggleButton) findViewById(R.id.tgbRelay3);
         tgbRelay4 = (ToggleButton) findViewById(R.id.tgbRelay4);
+        lblJoystick = (TextView) findViewById(R.id.lblJoystick);
+        joystick = (JoystickView) findViewById(R.id.joystick);
+        joystick.setListener(mJoystickListener);
+
+        mStreamerThread = new HandlerThread("CommandStreamer",
+                Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mStreamerThread.start();
+        mCommandStreamer = new CommandStreamer(
+                new HandlerScheduler(new Handler(mStreamerThread.getLooper())), mStreamerSink);
         enableControl(false);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
+            mBluetoothLeService.registerEventListener(mGattEventListener, Looper.getMainLooper());
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
+        mCommandStreamer.heartbeat();
+        mHandler.post(mHeartbeatRunnable);
+        mFrameTimeMonitor.start();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        // Whatever the bot was doing, nobody is watching it any more.
+        mCommandStreamer.stop();
+        if (mDriveTransmitter != null) {
+            mDriveTransmitter.reset();
+        }
+        Log.d(TAG, "Command streamer: " + mCommandStreamer.getStats());
+        mFrameTimeMonitor.stop();
+        Log.d(TAG, "Main thread: " + mFrameTimeMonitor.getStats());
+        if (mBluetoothLeService != null) {
+            Log.d(TAG, "Link: " + mBluetoothLeService.getMetrics(mDeviceAddress));
+            mBluetoothLeService.unregisterEventListener(mGattEventListener);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mDriveTransmitter != null) {
+            mDriveTransmitter.reset();
+        }
+        mStreamerThread.quitSafely();
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -333,24 +461,13 @@ public class DeviceControlActivity extends Activity {
         mGattServicesList.setAdapter(gattServiceAdapter);
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
     /*
      *  @brief      Hành động khi nhấn nút Forward
      */
     public void onClickForward(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_motion_char_uuid,
-                    BotGattAttributes.FORWARD);
+            mCommandStreamer.setCommand(BotGattAttributes.DRIVE_MAX, 0, pressNanos);
 
             Log.v(TAG, "Go Forward");
         }
@@ -360,11 +477,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Back
      */
     public void onClickBack(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_motion_char_uuid,
-                    BotGattAttributes.BACK);
+            mCommandStreamer.setCommand(-BotGattAttributes.DRIVE_MAX, 0, pressNanos);
 
             Log.v(TAG, "Go Back");
         }
@@ -374,11 +489,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Left
      */
     public void onClickLeft(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_motion_char_uuid,
-                    BotGattAttributes.LEFT);
+            mCommandStreamer.setCommand(0, -BotGattAttributes.DRIVE_MAX, pressNanos);
 
             Log.v(TAG, "Rotate Left");
         }
@@ -388,11 +501,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Right
      */
     public void onClickRight(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_motion_char_uuid,
-                    BotGattAttributes.RIGHT);
+            mCommandStreamer.setCommand(0, BotGattAttributes.DRIVE_MAX, pressNanos);
 
             Log.v(TAG, "Rotate Right");
         }
@@ -402,11 +513,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Stop
      */
     public void onClickStop(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_motion_char_uuid,
-                    BotGattAttributes.STOP);
+            mCommandStreamer.setCommand(0, 0, pressNanos);
 
             Log.v(TAG, "Stop");
         }
@@ -416,19 +525,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Relay 1
      */
     public void onClickRelay1(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            int value = BotGattAttributes.RELAY_OFF;
-            if (tgbRelay1.isChecked()) {
-                value = BotGattAttributes.RELAY_ON;
-            }
-            else {
-                value = BotGattAttributes.RELAY_OFF;
-            }
-
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_relay1_char_uuid,
-                    value);
+            mBluetoothLeService.writeRelay(1, tgbRelay1.isChecked(), pressNanos);
 
             Log.v(TAG, "Turn relay 1 " + tgbRelay1.getText());
 
@@ -439,19 +538,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Relay 2
      */
     public void onClickRelay2(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            int value = BotGattAttributes.RELAY_OFF;
-            if (tgbRelay2.isChecked()) {
-                value = BotGattAttributes.RELAY_ON;
-            }
-            else {
-                value = BotGattAttributes.RELAY_OFF;
-            }
-
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_relay2_char_uuid,
-                    value);
+            mBluetoothLeService.writeRelay(2, tgbRelay2.isChecked(), pressNanos);
 
             Log.v(TAG, "Turn relay 2 " + tgbRelay2.getText());
 
@@ -462,19 +551,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Relay 3
      */
     public void onClickRelay3(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            int value = BotGattAttributes.RELAY_OFF;
-            if (tgbRelay3.isChecked()) {
-                value = BotGattAttributes.RELAY_ON;
-            }
-            else {
-                value = BotGattAttributes.RELAY_OFF;
-            }
-
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_relay3_char_uuid,
-                    value);
+            mBluetoothLeService.writeRelay(3, tgbRelay3.isChecked(), pressNanos);
 
             Log.v(TAG, "Turn relay 3 " + tgbRelay3.getText());
 
@@ -485,19 +564,9 @@ public class DeviceControlActivity extends Activity {
      *  @brief      Hành động khi nhấn nút Relay 4
      */
     public void onClickRelay4(View v){
+        final long pressNanos = System.nanoTime();
         if(mBluetoothLeService != null) {
-            int value = BotGattAttributes.RELAY_OFF;
-            if (tgbRelay4.isChecked()) {
-                value = BotGattAttributes.RELAY_ON;
-            }
-            else {
-                value = BotGattAttributes.RELAY_OFF;
-            }
-
-            mBluetoothLeService.writeCustomCharacteristic(
-                    BotGattAttributes.bot_service_uuid,
-                    BotGattAttributes.bot_relay4_char_uuid,
-                    value);
+            mBluetoothLeService.writeRelay(4, tgbRelay4.isChecked(), pressNanos);
 
             Log.v(TAG, "Turn relay 4 " + tgbRelay4.getText());
 
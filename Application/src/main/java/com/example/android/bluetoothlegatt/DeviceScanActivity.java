@@ -26,9 +26,11 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -46,14 +48,25 @@ import android.Manifest;
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class DeviceScanActivity extends ListActivity {
+    private final static String TAG = DeviceScanActivity.class.getSimpleName();
+
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
+    private BotScanner mScanner;
     private boolean mScanning;
     private Handler mHandler;
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // Report delay used when batched results are selected.
+    private static final long SCAN_BATCH_DELAY_MS = 1000;
+    // While scanning, devices not heard from for this long are dropped from the list.
+    private static final long DEVICE_TIMEOUT_MS = 10000;
+    private static final long AGE_OUT_INTERVAL_MS = 1000;
+    // How much closer, in smoothed dB, a device must be to move above its neighbour, so that
+    // bots at about the same distance do not keep swapping places.
+    private static final float RANK_HYSTERESIS_DB = 3f;
 
     private static final int MY_PERMISSION_RESPONSE = 42;
 
@@ -88,8 +101,9 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+        mScanner = new BotScanner(mBluetoothAdapter, mScanListener);
     }
-    
+
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -104,6 +118,19 @@ public class DeviceScanActivity extends ListActivity {
             menu.findItem(R.id.menu_refresh).setActionView(
                     R.layout.actionbar_indeterminate_progress);
         }
+        final BotScanner.Config config = mScanner.getConfig();
+        switch (config.scanMode) {
+            case BotScanner.SCAN_MODE_LOW_POWER:
+                menu.findItem(R.id.menu_scan_low_power).setChecked(true);
+                break;
+            case BotScanner.SCAN_MODE_BALANCED:
+                menu.findItem(R.id.menu_scan_balanced).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.menu_scan_low_latency).setChecked(true);
+                break;
+        }
+        menu.findItem(R.id.menu_scan_batch).setChecked(config.reportDelayMs > 0);
         return true;
     }
 
@@ -117,10 +144,39 @@ public class DeviceScanActivity extends ListActivity {
             case R.id.menu_stop:
                 scanLeDevice(false);
                 break;
+            case R.id.menu_scan_low_latency:
+                setScanMode(BotScanner.SCAN_MODE_LOW_LATENCY);
+                break;
+            case R.id.menu_scan_balanced:
+                setScanMode(BotScanner.SCAN_MODE_BALANCED);
+                break;
+            case R.id.menu_scan_low_power:
+                setScanMode(BotScanner.SCAN_MODE_LOW_POWER);
+                break;
+            case R.id.menu_scan_batch:
+                mScanner.getConfig().reportDelayMs = item.isChecked() ? 0 : SCAN_BATCH_DELAY_MS;
+                restartScan();
+                break;
         }
         return true;
     }
 
+    private void setScanMode(int scanMode) {
+        mScanner.getConfig().scanMode = scanMode;
+        restartScan();
+    }
+
+    // Applies new scan settings to a scan in progress.
+    private void restartScan() {
+        if (mScanning) {
+            scanLeDevice(false);
+            mLeDeviceListAdapter.clear();
+            scanLeDevice(true);
+        } else {
+            invalidateOptionsMenu();
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -165,56 +221,153 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
         startActivity(intent);
     }
 
+    // Stops scanning after a pre-defined scan period.
+    private final Runnable mStopScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scanLeDevice(false);
+        }
+    };
+
+    private final Runnable mAgeOutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mLeDeviceListAdapter.ageOut(SystemClock.elapsedRealtimeNanos()
+                    - DEVICE_TIMEOUT_MS * 1000000);
+            mHandler.postDelayed(this, AGE_OUT_INTERVAL_MS);
+        }
+    };
+
     private void scanLeDevice(final boolean enable) {
+        mHandler.removeCallbacks(mStopScanRunnable);
+        // Devices only age out while they have a chance to be heard again.
+        mHandler.removeCallbacks(mAgeOutRunnable);
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
-        } else {
+            mHandler.postDelayed(mStopScanRunnable, SCAN_PERIOD);
+            mHandler.postDelayed(mAgeOutRunnable, AGE_OUT_INTERVAL_MS);
+            mScanning = mScanner.start();
+        } else if (mScanning) {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanner.stop();
+            Log.i(TAG, "Scan stopped: " + mScanner.getStats());
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    // Adapter for holding devices found through scanning, closest first.  Advertisements go
+    // into a hashed table as they arrive; the list catches up at most once per display frame,
+    // moving only the devices whose rank changed and rebinding only the visible rows whose
+    // device has changed.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private final ScanDeviceTable mTable = new ScanDeviceTable();
+        // What the list shows; only touched on the main thread.
+        private final ArrayList<ScanDeviceTable.Entry> mLeDevices =
+                new ArrayList<ScanDeviceTable.Entry>();
         private LayoutInflater mInflator;
+        private boolean mFramePending;
+        // Reused for every advertisement.
+        private final AdvertisementRecord mAdvertisement = new AdvertisementRecord();
+        private final StringBuilder mInfo = new StringBuilder();
+
+        private final Choreographer.FrameCallback mFrameCallback =
+                new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                mFramePending = false;
+                refresh();
+            }
+        };
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        public void updateDevice(BluetoothDevice device, int rssi, byte[] scanRecord,
+                                 long timestampNanos) {
+            final boolean parsed = mAdvertisement.parse(scanRecord);
+            mTable.update(device, rssi, scanRecord, parsed ? mAdvertisement : null,
+                    timestampNanos);
+            if (!mFramePending) {
+                mFramePending = true;
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
             }
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).device;
         }
 
         public void clear() {
+            if (mFramePending) {
+                mFramePending = false;
+                Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            }
+            mTable.clear();
             mLeDevices.clear();
+            notifyDataSetChanged();
+        }
+
+        // Drops the devices last seen before the given elapsedRealtimeNanos time.
+        public void ageOut(long staleBeforeNanos) {
+            boolean removed = false;
+            for (int i = mLeDevices.size() - 1; i >= 0; i--) {
+                final ScanDeviceTable.Entry entry = mLeDevices.get(i);
+                if (entry.lastSeenNanos < staleBeforeNanos) {
+                    mLeDevices.remove(i);
+                    mTable.remove(entry);
+                    removed = true;
+                }
+            }
+            if (removed) notifyDataSetChanged();
+        }
+
+        private void refresh() {
+            final boolean added = mTable.drainAdded(mLeDevices);
+            if (rank() || added) {
+                // Stable IDs let the list keep its views for the rows it already had.
+                notifyDataSetChanged();
+                return;
+            }
+            final ListView list = getListView();
+            final int first = list.getFirstVisiblePosition();
+            for (int i = 0; i < list.getChildCount(); i++) {
+                final int position = first + i;
+                if (position >= mLeDevices.size()) break;
+                final View view = list.getChildAt(i);
+                final ViewHolder viewHolder = (ViewHolder) view.getTag();
+                final ScanDeviceTable.Entry entry = mLeDevices.get(position);
+                if (viewHolder.entry != entry || viewHolder.version != entry.version) {
+                    bindView(viewHolder, entry);
+                }
+            }
+        }
+
+        // One insertion sort pass by smoothed RSSI, returning whether any device moved.  The
+        // list is nearly sorted from the previous frame, so this is linear unless devices
+        // actually change places.
+        private boolean rank() {
+            final ArrayList<ScanDeviceTable.Entry> devices = mLeDevices;
+            boolean moved = false;
+            for (int i = 1; i < devices.size(); i++) {
+                final ScanDeviceTable.Entry entry = devices.get(i);
+                final float rssi = entry.smoothedRssi - RANK_HYSTERESIS_DB;
+                int j = i;
+                while (j > 0 && devices.get(j - 1).smoothedRssi < rssi) {
+                    devices.set(j, devices.get(j - 1));
+                    j--;
+                }
+                if (j != i) {
+                    devices.set(j, entry);
+                    moved = true;
+                }
+            }
+            return moved;
         }
 
         @Override
@@ -224,12 +377,17 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.get(i).device;
         }
 
         @Override
         public long getItemId(int i) {
-            return i;
+            return mLeDevices.get(i).id;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
 
         @Override
@@ -241,41 +399,76 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
+                viewHolder.deviceInfo = (TextView) view.findViewById(R.id.device_info);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
+            bindView(viewHolder, mLeDevices.get(i));
+            return view;
+        }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+        private void bindView(ViewHolder viewHolder, ScanDeviceTable.Entry entry) {
+            // Read first, so that an update racing with the bind is picked up next frame.
+            viewHolder.version = entry.version;
+            if (viewHolder.entry != entry) {
+                viewHolder.entry = entry;
+                viewHolder.deviceAddress.setText(entry.address);
+            }
+            String deviceName = entry.device.getName();
+            if (deviceName == null || deviceName.length() == 0) deviceName = entry.advertisedName;
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
-
-            return view;
+            viewHolder.deviceRssi.setText(Math.round(entry.smoothedRssi) + " dBm");
+            // Bot status read from the advertisement, without connecting.
+            final StringBuilder info = mInfo;
+            info.setLength(0);
+            if (entry.batteryPercent != AdvertisementRecord.UNKNOWN) {
+                info.append("Battery ").append(entry.batteryPercent).append('%');
+            }
+            final int firmware = entry.firmwareVersion;
+            if (firmware != AdvertisementRecord.UNKNOWN) {
+                if (info.length() > 0) info.append("  ");
+                info.append("FW ").append(firmware >> 8).append('.').append(firmware & 0xFF);
+            }
+            viewHolder.deviceInfo.setText(info.toString());
+            viewHolder.deviceInfo.setVisibility(info.length() > 0 ? View.VISIBLE : View.GONE);
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    // Device scan callback, already on the main thread.
+    private final BotScanner.Listener mScanListener = new BotScanner.Listener() {
+        @Override
+        public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord,
+                                  long timestampNanos) {
+            mLeDeviceListAdapter.updateDevice(device, rssi, scanRecord, timestampNanos);
+        }
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onDeviceUpdated(BluetoothDevice device, int rssi, byte[] scanRecord,
+                                    long timestampNanos) {
+            mLeDeviceListAdapter.updateDevice(device, rssi, scanRecord, timestampNanos);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mHandler.removeCallbacks(mStopScanRunnable);
+            mHandler.removeCallbacks(mAgeOutRunnable);
+            mScanning = false;
+            invalidateOptionsMenu();
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
+        TextView deviceInfo;
+        // Entry and entry version the views currently show.
+        ScanDeviceTable.Entry entry;
+        int version;
     }
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the bot service layout of every bot that has been discovered, across app runs,
+ * so that a reconnecting bot can be driven before service discovery has finished.
+ *
+ * An entry holds the {@code GattTransport.PROPERTY_*} bits of each
+ * {@code BotGattAttributes.CHAR_*} characteristic, -1 for those the bot lacks.  Entries are
+ * stored as short strings in {@code SharedPreferences}, keyed by device address, with a format
+ * version, the time they were written and a checksum, all of which are checked on lookup.
+ */
+public class DiscoveryCache {
+    public static final String PREFS_NAME = "discovery_cache";
+
+    private static final int FORMAT_VERSION = 1;
+    // Bot firmware may be updated; an old layout is not trusted forever.
+    private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private final SharedPreferences mPreferences;
+
+    // Guarded by this.
+    private long mHits;
+    private long mMisses;
+    private long mInvalid;
+    private long mMismatches;
+
+    /**
+     * Lookup and confirmation counters.
+     */
+    public static class Stats {
+        /** Lookups that found a valid entry. */
+        public long hits;
+        /** Lookups for a bot without an entry. */
+        public long misses;
+        /** Entries that were discarded as corrupt, outdated or expired. */
+        public long invalid;
+        /** Hits that service discovery then contradicted. */
+        public long mismatches;
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " invalid=" + invalid
+                    + " mismatches=" + mismatches;
+        }
+    }
+
+    public DiscoveryCache(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * @return The cached characteristic properties of the bot, or null on a miss.
+     */
+    public int[] lookup(String address) {
+        final String entry = mPreferences.getString(address, null);
+        if (entry == null) {
+            synchronized (this) {
+                mMisses++;
+            }
+            return null;
+        }
+        final int[] properties = decode(entry, System.currentTimeMillis());
+        synchronized (this) {
+            if (properties == null) {
+                mInvalid++;
+            } else {
+                mHits++;
+            }
+        }
+        if (properties == null) {
+            mPreferences.edit().remove(address).apply();
+        }
+        return properties;
+    }
+
+    /**
+     * Records the layout found by service discovery.
+     *
+     * @param cached What {@link #lookup} returned for this connection, or null.  A mismatch
+     *               with the discovered layout is counted.
+     * @param properties The discovered properties, or null if the bot service is missing.
+     */
+    public void update(String address, int[] cached, int[] properties) {
+        if (cached != null && !Arrays.equals(cached, properties)) {
+            synchronized (this) {
+                mMismatches++;
+            }
+        }
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        if (properties == null) {
+            editor.remove(address);
+        } else {
+            editor.putString(address, encode(properties, System.currentTimeMillis()));
+        }
+        editor.apply();
+    }
+
+    public void clear() {
+        mPreferences.edit().clear().apply();
+    }
+
+    public synchronized Stats getStats() {
+        final Stats stats = new Stats();
+        stats.hits = mHits;
+        stats.misses = mMisses;
+        stats.invalid = mInvalid;
+        stats.mismatches = mMismatches;
+        return stats;
+    }
+
+    // "<version>:<written millis>:<p0>,<p1>,...:<checksum>"
+    static String encode(int[] properties, long nowMillis) {
+        final StringBuilder body = new StringBuilder();
+        body.append(FORMAT_VERSION).append(':').append(nowMillis).append(':');
+        for (int i = 0; i < properties.length; i++) {
+            if (i > 0) body.append(',');
+            body.append(properties[i]);
+        }
+        return body.append(':').append(Integer.toHexString(body.toString().hashCode()))
+                .toString();
+    }
+
+    static int[] decode(String entry, long nowMillis) {
+        final int checksumStart = entry.lastIndexOf(':');
+        if (checksumStart < 0) return null;
+        final String body = entry.substring(0, checksumStart + 1);
+        if (!Integer.toHexString(body.hashCode()).equals(entry.substring(checksumStart + 1))) {
+            return null;
+        }
+        final String[] fields = body.split(":");
+        if (fields.length != 3) return null;
+        try {
+            if (Integer.parseInt(fields[0]) != FORMAT_VERSION) return null;
+            final long age = nowMillis - Long.parseLong(fields[1]);
+            if (age < 0 || age > MAX_AGE_MS) return null;
+            final String[] values = fields[2].split(",");
+            if (values.length != BotGattAttributes.CHAR_COUNT) return null;
+            final int[] properties = new int[values.length];
+            boolean found = false;
+            for (int i = 0; i < values.length; i++) {
+                properties[i] = Integer.parseInt(values[i]);
+                if (properties[i] >= 0) found = true;
+            }
+            return found ? properties : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Turns a stream of analog joystick positions into as few drive commands as will follow it.
+ *
+ * A touch screen reports positions at its own rate, much faster than a bot link carries
+ * writes, and mostly with changes too small to matter.  Each position goes through three
+ * stages:
+ * <ul>
+ *     <li>a deadband around the centre, outside of which the travel is rescaled so that
+ *     leaving the deadband does not jump;</li>
+ *     <li>quantization to whole {@code BotGattAttributes.DRIVE_MAX} steps and a change
+ *     threshold against what was last sent, or, for bots that only take motion opcodes, a
+ *     comparison of the opcodes;</li>
+ *     <li>a rate cap: a command that comes too soon after the previous one is held back and
+ *     replaced by any later one, and the latest is sent once the interval has passed.</li>
+ * </ul>
+ * The number of writes therefore follows how much the input changes, not how often it is
+ * sampled.  Returning to the centre is always sent at once.
+ *
+ * Must be used on the thread the {@link Scheduler} runs tasks on.
+ */
+public class DriveTransmitter {
+
+    /**
+     * Where the commands go.
+     */
+    public interface Sink {
+        /**
+         * @param inputNanos {@code System.nanoTime()} of the input that led to the command.
+         * @return true if the command was queued.
+         */
+        boolean send(int speed, int steering, long inputNanos);
+
+        /**
+         * @return The shortest time between two commands the link keeps up with, in
+         *         nanoseconds, e.g. its connection interval.
+         */
+        long getMinIntervalNanos();
+    }
+
+    /**
+     * Filter parameters, read with every input.
+     */
+    public static class Config {
+        /**
+         * Width of the centre band of each axis that counts as released, as a fraction of the
+         * travel; below 1.
+         */
+        public float deadband = 0.1f;
+        /** Smallest change of speed or steering, in drive units, worth sending. */
+        public int threshold = 4;
+        /**
+         * Lower bound for the time between two commands, in milliseconds, on top of what the
+         * sink asks for.
+         */
+        public long minIntervalMs = 20;
+        /**
+         * Whether the sink only distinguishes motion opcodes, so that only a change of
+         * {@code BotGattAttributes.driveMotion} is worth sending.
+         */
+        public boolean discrete;
+    }
+
+    /**
+     * Counters since the transmitter was created.
+     */
+    public static class Stats {
+        /** Positions received. */
+        public long inputs;
+        /** Commands sent. */
+        public long writes;
+        /** Positions dropped by the deadband, the threshold or a newer position. */
+        public long suppressed;
+        /** Commands held back by the rate cap. */
+        public long deferred;
+
+        @Override
+        public String toString() {
+            return "inputs=" + inputs + " writes=" + writes + " suppressed=" + suppressed
+                    + " deferred=" + deferred;
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Sink mSink;
+    private Config mConfig = new Config();
+
+    private int mSentSpeed;
+    private int mSentSteering;
+    private long mSentNanos = Long.MIN_VALUE / 2;
+
+    // The command held back by the rate cap.
+    private boolean mPending;
+    private int mPendingSpeed;
+    private int mPendingSteering;
+    private long mPendingInputNanos;
+
+    // Guarded by this, so that getStats() may be called from any thread.
+    private long mInputs;
+    private long mWrites;
+    private long mSuppressed;
+    private long mDeferred;
+
+    private final Runnable mSendPending = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPending) return;
+            mPending = false;
+            send(mPendingSpeed, mPendingSteering, mPendingInputNanos);
+        }
+    };
+
+    public DriveTransmitter(Scheduler scheduler, Sink sink) {
+        mScheduler = scheduler;
+        mSink = sink;
+    }
+
+    public void setConfig(Config config) {
+        mConfig = config;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Takes a joystick position.
+     *
+     * @param x Steering, -1 (left) to 1 (right).
+     * @param y Speed, -1 (reverse) to 1 (ahead).
+     * @param inputNanos {@code System.nanoTime()} of the touch event.
+     */
+    public void setInput(float x, float y, long inputNanos) {
+        final Config config = mConfig;
+        synchronized (this) {
+            mInputs++;
+        }
+        final int speed = quantize(y, config.deadband);
+        final int steering = quantize(x, config.deadband);
+
+        if (speed == 0 && steering == 0) {
+            // Releasing the stick must never wait for the rate cap.
+            if (mPending) {
+                mPending = false;
+                mScheduler.removeCallbacks(mSendPending);
+                countSuppressed();
+            }
+            if (mSentSpeed == 0 && mSentSteering == 0) {
+                countSuppressed();
+                return;
+            }
+            send(0, 0, inputNanos);
+            return;
+        }
+
+        // Compared with the last command sent or, if one is held back, with that one.
+        final int lastSpeed = mPending ? mPendingSpeed : mSentSpeed;
+        final int lastSteering = mPending ? mPendingSteering : mSentSteering;
+        final boolean changed;
+        if (config.discrete) {
+            changed = BotGattAttributes.driveMotion(speed, steering)
+                    != BotGattAttributes.driveMotion(lastSpeed, lastSteering);
+        } else {
+            changed = Math.abs(speed - lastSpeed) >= config.threshold
+                    || Math.abs(steering - lastSteering) >= config.threshold;
+        }
+        if (!changed) {
+            countSuppressed();
+            return;
+        }
+
+        final long intervalNanos = Math.max(config.minIntervalMs * 1000000L,
+                mSink.getMinIntervalNanos());
+        final long waitNanos = mSentNanos + intervalNanos - mScheduler.nanoTime();
+        if (waitNanos <= 0 && !mPending) {
+            send(speed, steering, inputNanos);
+            return;
+        }
+        if (mPending) {
+            // Replaced by the newer position; the scheduled send picks it up.
+            countSuppressed();
+        } else {
+            synchronized (this) {
+                mDeferred++;
+            }
+            mScheduler.postDelayedNanos(mSendPending, Math.max(0, waitNanos));
+        }
+        mPending = true;
+        mPendingSpeed = speed;
+        mPendingSteering = steering;
+        mPendingInputNanos = inputNanos;
+    }
+
+    /**
+     * Drops any command held back and forgets what was sent, e.g. once the bot has
+     * disconnected; the next position is compared with a stopped bot.
+     */
+    public void reset() {
+        mPending = false;
+        mScheduler.removeCallbacks(mSendPending);
+        mSentSpeed = 0;
+        mSentSteering = 0;
+        mSentNanos = Long.MIN_VALUE / 2;
+    }
+
+    public synchronized Stats getStats() {
+        final Stats stats = new Stats();
+        stats.inputs = mInputs;
+        stats.writes = mWrites;
+        stats.suppressed = mSuppressed;
+        stats.deferred = mDeferred;
+        return stats;
+    }
+
+    private void send(int speed, int steering, long inputNanos) {
+        if (!mSink.send(speed, steering, inputNanos)) return;
+        mSentSpeed = speed;
+        mSentSteering = steering;
+        mSentNanos = mScheduler.nanoTime();
+        synchronized (this) {
+            mWrites++;
+        }
+    }
+
+    private synchronized void countSuppressed() {
+        mSuppressed++;
+    }
+
+    // Maps -1..1 to -DRIVE_MAX..DRIVE_MAX, with the deadband mapped to 0 and the rest of the
+    // travel stretched over the whole range.
+    static int quantize(float value, float deadband) {
+        final float magnitude = Math.min(1f, Math.abs(value));
+        if (magnitude <= deadband) return 0;
+        final float scaled = (magnitude - deadband) / (1f - deadband);
+        final int units = Math.round(scaled * BotGattAttributes.DRIVE_MAX);
+        return value < 0 ? -units : units;
+    }
+}
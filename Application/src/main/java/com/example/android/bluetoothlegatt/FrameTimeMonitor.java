@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.view.Choreographer;
+
+/**
+ * Measures how regularly the main thread renders, as the time between consecutive
+ * {@link Choreographer} frames.
+ *
+ * A frame that takes longer than {@link #JANK_THRESHOLD_NANOS} means the main thread was busy
+ * for at least a whole vsync period, which is when touch input and anything else it runs is
+ * held back.  Monitoring requests a frame every vsync, so it should only run while the screen
+ * being measured is in front.  {@link #start()} and {@link #stop()} must be called on the main
+ * thread; {@link #getStats()} may be called from any thread.
+ */
+public class FrameTimeMonitor {
+    // One and a half 60 Hz frames.
+    public static final long JANK_THRESHOLD_NANOS = 25000000L;
+
+    /**
+     * Frame times since the monitor was created.
+     */
+    public static class Stats {
+        public long frames;
+        /** Frames longer than {@link #JANK_THRESHOLD_NANOS}. */
+        public long jankyFrames;
+        public LatencyHistogram.Snapshot frameTime;
+
+        @Override
+        public String toString() {
+            return "frames=" + frames + " janky=" + jankyFrames
+                    + " frameTime=[" + frameTime + "]";
+        }
+    }
+
+    private final LatencyHistogram mFrameTime = new LatencyHistogram();
+    private boolean mRunning;
+    private long mLastFrameNanos;
+
+    // Guarded by this.
+    private long mJankyFrames;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) return;
+            if (mLastFrameNanos != 0) {
+                final long frameNanos = frameTimeNanos - mLastFrameNanos;
+                mFrameTime.record(frameNanos);
+                if (frameNanos > JANK_THRESHOLD_NANOS) {
+                    synchronized (FrameTimeMonitor.this) {
+                        mJankyFrames++;
+                    }
+                }
+            }
+            mLastFrameNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    public void start() {
+        if (mRunning) return;
+        mRunning = true;
+        // The gap since the monitor last ran is not a frame.
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    public void stop() {
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+    }
+
+    public Stats getStats() {
+        final Stats stats = new Stats();
+        stats.frameTime = mFrameTime.getSnapshot();
+        stats.frames = stats.frameTime.count;
+        synchronized (this) {
+            stats.jankyFrames = mJankyFrames;
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.UUID;
+
+/**
+ * Delivers GATT events from {@code BluetoothLeService} to in-process listeners.
+ *
+ * Unlike {@code sendBroadcast}, nothing leaves the process and nothing is allocated per event
+ * once the pool has warmed up: events are recycled {@link Event} objects carried by pooled
+ * {@code Message}s, and payloads are passed by reference.
+ */
+public class GattEventDispatcher {
+
+    /**
+     * Receives GATT events.  Methods are called on the looper the listener was registered
+     * with, or directly on the GATT worker thread if it was registered without one.
+     */
+    public interface Listener {
+        /**
+         * @param state One of {@code BluetoothLeService.STATE_*}.
+         */
+        void onConnectionStateChanged(String address, int state);
+
+        void onServicesDiscovered(String address);
+
+        /**
+         * The bot can be driven.  Commands sent from now on are queued behind service
+         * discovery if it is still running.
+         *
+         * @param fromCache True if the layout came from the {@link DiscoveryCache} and
+         *                  discovery has yet to confirm it.  If discovery finds a different
+         *                  layout, the event is delivered again with false.
+         */
+        void onBotReady(String address, boolean fromCache);
+
+        /**
+         * Discovery found no bot service, so the device cannot be driven, even if it was
+         * reported ready from the cache before.
+         */
+        void onBotUnsupported(String address);
+
+        /**
+         * @param value The value as delivered by the stack.  It is not copied, so listeners
+         *              must not modify it.
+         */
+        void onDataAvailable(String address, UUID characteristic, byte[] value);
+
+        /**
+         * A decoded sensor notification, see {@link SensorSample}.
+         */
+        void onSensorSample(String address, long timestampNanos, int distance, int left,
+                            int right, int behind);
+    }
+
+    private static final int EVENT_CONNECTION_STATE = 0;
+    private static final int EVENT_SERVICES_DISCOVERED = 1;
+    private static final int EVENT_DATA_AVAILABLE = 2;
+    private static final int EVENT_SENSOR_SAMPLE = 3;
+    private static final int EVENT_BOT_READY = 4;
+    private static final int EVENT_BOT_UNSUPPORTED = 5;
+
+    private static final int MSG_EVENT = 1;
+    private static final int MAX_POOL_SIZE = 64;
+
+    // A single pending delivery to a single listener.
+    private static final class Event {
+        int type;
+        Listener listener;
+        String address;
+        int state;
+        UUID characteristic;
+        byte[] value;
+        SensorSample sample = new SensorSample();
+        Event next;
+    }
+
+    private static final class Registration {
+        final Listener listener;
+        final Handler handler;
+
+        Registration(Listener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+    }
+
+    // Copy-on-write, so that dispatching needs neither a lock nor an iterator.
+    private volatile Registration[] mRegistrations = new Registration[0];
+
+    private final Object mPoolLock = new Object();
+    private Event mPool;
+    private int mPoolSize;
+
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (msg.what != MSG_EVENT) {
+                return false;
+            }
+            final Event event = (Event) msg.obj;
+            deliver(event);
+            recycle(event);
+            return true;
+        }
+    };
+
+    /**
+     * Registers a listener.
+     *
+     * @param looper Looper to deliver events on, or null to deliver them synchronously on the
+     *               GATT worker thread.
+     */
+    public synchronized void register(Listener listener, Looper looper) {
+        final Registration[] current = mRegistrations;
+        for (Registration registration : current) {
+            if (registration.listener == listener) return;
+        }
+        final Registration[] updated = new Registration[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = new Registration(listener,
+                looper == null ? null : new Handler(looper, mHandlerCallback));
+        mRegistrations = updated;
+    }
+
+    public synchronized void unregister(Listener listener) {
+        final Registration[] current = mRegistrations;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener != listener) continue;
+            final Registration[] updated = new Registration[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            mRegistrations = updated;
+            if (current[i].handler != null) {
+                // Drop events that were posted but not yet delivered.
+                current[i].handler.removeMessages(MSG_EVENT);
+            }
+            return;
+        }
+    }
+
+    public boolean hasListeners() {
+        return mRegistrations.length > 0;
+    }
+
+    public void dispatchConnectionState(String address, int state) {
+        dispatch(EVENT_CONNECTION_STATE, address, state, null, null);
+    }
+
+    public void dispatchServicesDiscovered(String address) {
+        dispatch(EVENT_SERVICES_DISCOVERED, address, 0, null, null);
+    }
+
+    public void dispatchBotReady(String address, boolean fromCache) {
+        dispatch(EVENT_BOT_READY, address, fromCache ? 1 : 0, null, null);
+    }
+
+    public void dispatchBotUnsupported(String address) {
+        dispatch(EVENT_BOT_UNSUPPORTED, address, 0, null, null);
+    }
+
+    public void dispatchDataAvailable(String address, UUID characteristic, byte[] value) {
+        dispatch(EVENT_DATA_AVAILABLE, address, 0, characteristic, value);
+    }
+
+    /**
+     * Delivers a decoded sample.  The sample is copied, so the caller may reuse it at once.
+     */
+    public void dispatchSensorSample(String address, SensorSample sample) {
+        dispatch(EVENT_SENSOR_SAMPLE, address, 0, null, null, sample);
+    }
+
+    private void dispatch(int type, String address, int state, UUID characteristic,
+                          byte[] value) {
+        dispatch(type, address, state, characteristic, value, null);
+    }
+
+    private void dispatch(int type, String address, int state, UUID characteristic,
+                          byte[] value, SensorSample sample) {
+        final Registration[] registrations = mRegistrations;
+        for (Registration registration : registrations) {
+            final Event event = obtain();
+            event.type = type;
+            event.listener = registration.listener;
+            event.address = address;
+            event.state = state;
+            event.characteristic = characteristic;
+            event.value = value;
+            if (sample != null) {
+                event.sample.set(sample);
+            }
+            if (registration.handler == null) {
+                deliver(event);
+                recycle(event);
+            } else {
+                Message.obtain(registration.handler, MSG_EVENT, event).sendToTarget();
+            }
+        }
+    }
+
+    private static void deliver(Event event) {
+        switch (event.type) {
+            case EVENT_CONNECTION_STATE:
+                event.listener.onConnectionStateChanged(event.address, event.state);
+                break;
+            case EVENT_SERVICES_DISCOVERED:
+                event.listener.onServicesDiscovered(event.address);
+                break;
+            case EVENT_BOT_READY:
+                event.listener.onBotReady(event.address, event.state != 0);
+                break;
+            case EVENT_BOT_UNSUPPORTED:
+                event.listener.onBotUnsupported(event.address);
+                break;
+            case EVENT_DATA_AVAILABLE:
+                event.listener.onDataAvailable(event.address, event.characteristic,
+                        event.value);
+                break;
+            case EVENT_SENSOR_SAMPLE:
+                final SensorSample sample = event.sample;
+                event.listener.onSensorSample(event.address, sample.timestampNanos,
+                        sample.distance, sample.left, sample.right, sample.behind);
+                break;
+        }
+    }
+
+    private Event obtain() {
+        synchronized (mPoolLock) {
+            final Event event = mPool;
+            if (event != null) {
+                mPool = event.next;
+                event.next = null;
+                mPoolSize--;
+                return event;
+            }
+        }
+        return new Event();
+    }
+
+    private void recycle(Event event) {
+        event.listener = null;
+        event.address = null;
+        event.characteristic = null;
+        event.value = null;
+        synchronized (mPoolLock) {
+            if (mPoolSize < MAX_POOL_SIZE) {
+                event.next = mPool;
+                mPool = event;
+                mPoolSize++;
+            }
+        }
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Serializes GATT operations on a single {@link GattTransport} connection.
+ *
+ * The Android stack only allows one outstanding request per connection; a second
+ * {@code writeCharacteristic} issued before the first one completes is rejected.  This queue
+ * starts the next operation only after the matching {@code BluetoothGattCallback} completion
+ * (or the operation's timeout) for the previous one has been delivered.
+ *
+ * The transport is only ever called on the scheduler's thread.  Queueing an operation, from
+ * any thread, just asks the scheduler to run the queue, so callers never wait on the stack
+ * and a stalled stack never blocks them.
+ *
+ * The queue has no Android dependencies, so it runs unchanged against the
+ * {@code SimulatedBot} of the test sources.
+ */
+public class GattOperationQueue {
+
+    public static final int OP_READ = 0;
+    public static final int OP_WRITE = 1;
+    public static final int OP_WRITE_DESCRIPTOR = 2;
+    public static final int OP_REQUEST_MTU = 3;
+    public static final int OP_DISCOVER_SERVICES = 4;
+
+    // Completion statuses that are not reported by the stack itself.  The stack's own statuses
+    // (GattTransport.GATT_SUCCESS, ...) are all non-negative.
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_STARTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+    public static final int STATUS_SUPERSEDED = -4;
+
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    // Connection interval assumed until write round trips have been measured.  Android's
+    // balanced connection parameters land in the 30-50ms range.
+    public static final long DEFAULT_CONNECTION_INTERVAL_NANOS = 30000000L;
+    private static final long MIN_CONNECTION_INTERVAL_NANOS = 7500000L;
+
+    // How often a write-without-response rejected by a busy stack is retried before failing.
+    private static final int MAX_NO_RESPONSE_RETRIES = 3;
+
+    /**
+     * Receives the outcome of a queued operation.  Invoked on the thread that delivered the
+     * completion, or the queue's scheduler thread for timeouts; in {@code BluetoothLeService}
+     * both are the GATT worker thread.
+     */
+    public interface Callback {
+        void onOperationComplete(Operation op, int status);
+    }
+
+    /**
+     * A single queued GATT request.
+     */
+    public static final class Operation implements Runnable {
+        final int type;
+        final UUID service;
+        final UUID characteristic;
+        final UUID descriptor;
+        final int mtu;
+        byte[] value;
+        int writeType = GattTransport.WRITE_TYPE_DEFAULT;
+        long timeoutMs = DEFAULT_TIMEOUT_MS;
+        Callback callback;
+        // Tracing timestamps on the scheduler's clock, see LatencyTracker.  pressNanos is 0
+        // unless the caller supplied it.
+        long pressNanos;
+        long enqueueNanos;
+        long startNanos;
+        int retries;
+
+        private GattOperationQueue mQueue;
+
+        private Operation(int type, UUID service, UUID characteristic, UUID descriptor,
+                          byte[] value, int mtu) {
+            this.type = type;
+            this.service = service;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.mtu = mtu;
+        }
+
+        public static Operation read(UUID service, UUID characteristic) {
+            return new Operation(OP_READ, service, characteristic, null, null, 0);
+        }
+
+        public static Operation write(UUID service, UUID characteristic, byte[] value) {
+            return new Operation(OP_WRITE, service, characteristic, null, value, 0);
+        }
+
+        public static Operation writeDescriptor(UUID service, UUID characteristic,
+                                                UUID descriptor, byte[] value) {
+            return new Operation(OP_WRITE_DESCRIPTOR, service, characteristic, descriptor,
+                    value, 0);
+        }
+
+        public static Operation requestMtu(int mtu) {
+            return new Operation(OP_REQUEST_MTU, null, null, null, null, mtu);
+        }
+
+        public static Operation discoverServices() {
+            return new Operation(OP_DISCOVER_SERVICES, null, null, null, null, 0);
+        }
+
+        public Operation setTimeout(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+            return this;
+        }
+
+        public Operation setCallback(Callback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        /**
+         * @param pressNanos When the user action that caused this operation happened, on the
+         *                   queue scheduler's clock, or 0 if unknown.
+         */
+        public Operation setPressTime(long pressNanos) {
+            this.pressNanos = pressNanos;
+            return this;
+        }
+
+        /**
+         * @param writeType {@code GattTransport.WRITE_TYPE_DEFAULT} or
+         *                  {@code WRITE_TYPE_NO_RESPONSE}.  Only meaningful for writes.
+         */
+        public Operation setWriteType(int writeType) {
+            this.writeType = writeType;
+            return this;
+        }
+
+        boolean isNoResponseWrite() {
+            return type == OP_WRITE
+                    && writeType == GattTransport.WRITE_TYPE_NO_RESPONSE;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        public UUID getCharacteristic() {
+            return characteristic;
+        }
+
+        // Fires when the operation has been in flight for longer than its timeout.
+        @Override
+        public void run() {
+            if (mQueue != null) {
+                mQueue.onTimeout(this);
+            }
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mInFlight;
+    private GattTransport mTransport;
+    private LatencyTracker mLatencyTracker;
+    private long mCoalescedCount;
+    private long mTimeouts;
+    private long mUnexpectedCompletions;
+
+    // Write-without-response pacing.  The peripheral can only take so many packets per
+    // connection event, so unacknowledged writes are spaced by the connection interval.
+    private long mPacingIntervalNanos;
+    private long mIntervalEstimateNanos = DEFAULT_CONNECTION_INTERVAL_NANOS;
+    private long mNextNoResponseNanos;
+    private long mAcceptedWrites;
+    private long mRejectedWrites;
+    // Set while an immediate run of the queue is posted, so that a burst of submissions posts
+    // it once.
+    private boolean mDriveScheduled;
+
+    // Time from queueing an operation to handing it to the transport.
+    private final LatencyHistogram mSubmitToSend = new LatencyHistogram();
+
+    private final Runnable mDriveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                mDriveScheduled = false;
+            }
+            drive();
+        }
+    };
+
+    /**
+     * @param scheduler Clock and timer for operation timeouts and write pacing.
+     */
+    public GattOperationQueue(Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Binds the queue to a connection.  Operations queued while no connection is bound are
+     * held until one is.
+     */
+    public void setTransport(GattTransport transport) {
+        synchronized (this) {
+            mTransport = transport;
+        }
+        scheduleDrive();
+    }
+
+    /**
+     * Records the latency stages of every acknowledged write into {@code tracker}, or stops
+     * recording if it is null.
+     */
+    public synchronized void setLatencyTracker(LatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * Adds an operation to the end of the queue and starts it if the connection is idle.
+     */
+    public void enqueue(Operation op) {
+        synchronized (this) {
+            op.mQueue = this;
+            op.enqueueNanos = mScheduler.nanoTime();
+            mPending.addLast(op);
+        }
+        scheduleDrive();
+    }
+
+    /**
+     * Queues a characteristic write with latest-wins semantics.  If a write to the same
+     * characteristic is still waiting in the queue, its value is replaced by this one and its
+     * callback is told {@link #STATUS_SUPERSEDED} along with the replacing operation; the queued
+     * write keeps its place in line.
+     * A write that is already in flight is never touched.
+     */
+    public void enqueueLatest(Operation op) {
+        if (op.type != OP_WRITE) {
+            enqueue(op);
+            return;
+        }
+        Callback previous = null;
+        boolean collapsed = false;
+        synchronized (this) {
+            for (Operation pending : mPending) {
+                if (pending.type == OP_WRITE && pending.characteristic.equals(op.characteristic)
+                        && pending.service.equals(op.service)) {
+                    // Hand the queued slot over to the new value and caller.
+                    previous = pending.callback;
+                    pending.value = op.value;
+                    pending.callback = op.callback;
+                    // Latency is measured for the value that will actually be sent.
+                    pending.pressNanos = op.pressNanos;
+                    pending.enqueueNanos = mScheduler.nanoTime();
+                    collapsed = true;
+                    break;
+                }
+            }
+            if (collapsed) {
+                mCoalescedCount++;
+            } else {
+                op.mQueue = this;
+                op.enqueueNanos = mScheduler.nanoTime();
+                mPending.addLast(op);
+            }
+        }
+        if (previous != null) {
+            previous.onOperationComplete(op, STATUS_SUPERSEDED);
+        }
+        scheduleDrive();
+    }
+
+    /**
+     * Fails every pending and in-flight operation with {@link #STATUS_CANCELLED}.  Called when
+     * the connection goes away, since no completion will arrive for them any more.
+     */
+    public void clear() {
+        Operation inFlight;
+        Operation[] pending;
+        synchronized (this) {
+            inFlight = mInFlight;
+            mInFlight = null;
+            pending = mPending.toArray(new Operation[mPending.size()]);
+            mPending.clear();
+        }
+        if (inFlight != null) {
+            mScheduler.removeCallbacks(inFlight);
+            notifyComplete(inFlight, STATUS_CANCELLED);
+        }
+        for (Operation op : pending) {
+            notifyComplete(op, STATUS_CANCELLED);
+        }
+    }
+
+    /**
+     * Reports a completion delivered by {@link GattTransport.Callback}.
+     *
+     * @param type The OP_* type the completion belongs to.
+     * @param uuid The characteristic the completion refers to, or null for MTU requests and
+     *             service discovery.
+     * @param status The status reported by the stack.
+     */
+    public void onOperationComplete(int type, UUID uuid, int status) {
+        Operation op;
+        synchronized (this) {
+            op = mInFlight;
+            if (op == null || op.type != type
+                    || (uuid != null && !uuid.equals(op.characteristic))) {
+                // Late completion of an operation that already timed out; ignored.
+                mUnexpectedCompletions++;
+                return;
+            }
+        }
+        if (finish(op, status)) {
+            scheduleDrive();
+        }
+    }
+
+    /**
+     * @return Number of queued writes that were collapsed into a newer value by
+     *         {@link #enqueueLatest(Operation)}.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return Number of {@code writeCharacteristic} calls the stack accepted.
+     */
+    public synchronized long getAcceptedWriteCount() {
+        return mAcceptedWrites;
+    }
+
+    /**
+     * @return Number of {@code writeCharacteristic} calls the stack rejected, including
+     *         write-without-response attempts that were later retried.
+     */
+    public synchronized long getRejectedWriteCount() {
+        return mRejectedWrites;
+    }
+
+    /**
+     * Overrides the spacing between writes-without-response.
+     *
+     * @param intervalNanos Fixed spacing, or 0 to follow the measured connection interval.
+     */
+    public synchronized void setPacingInterval(long intervalNanos) {
+        mPacingIntervalNanos = intervalNanos;
+    }
+
+    /**
+     * @return The spacing currently applied between writes-without-response.
+     */
+    public synchronized long getPacingInterval() {
+        return mPacingIntervalNanos > 0 ? mPacingIntervalNanos : mIntervalEstimateNanos;
+    }
+
+    /**
+     * @return The connection interval estimated from acknowledged write round trips.  An ATT
+     *         write request and its response can be no closer than one connection event, so the
+     *         shortest recent round trip approximates the interval.
+     */
+    public synchronized long getMeasuredConnectionInterval() {
+        return mIntervalEstimateNanos;
+    }
+
+    /**
+     * @return Number of operations that were failed with {@link #STATUS_TIMEOUT}.
+     */
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return Number of completions that did not match the operation in flight.
+     */
+    public synchronized long getUnexpectedCompletionCount() {
+        return mUnexpectedCompletions;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size() + (mInFlight != null ? 1 : 0);
+    }
+
+    /**
+     * @return Time from queueing operations to handing them to the transport, including the
+     *         wait behind earlier operations and for the scheduler's thread.
+     */
+    public LatencyHistogram.Snapshot getSubmitToSendLatency() {
+        return mSubmitToSend.getSnapshot();
+    }
+
+    // Runs the queue on the scheduler's thread.
+    private void scheduleDrive() {
+        synchronized (this) {
+            if (mDriveScheduled) return;
+            mDriveScheduled = true;
+        }
+        mScheduler.postDelayed(mDriveRunnable, 0);
+    }
+
+    private void onTimeout(Operation op) {
+        synchronized (this) {
+            if (mInFlight == op) mTimeouts++;
+        }
+        if (finish(op, STATUS_TIMEOUT)) {
+            drive();
+        }
+    }
+
+    // Starts pending operations until one is successfully in flight or the queue is empty.
+    private void drive() {
+        while (true) {
+            final Operation op;
+            final GattTransport transport;
+            long waitNanos = 0;
+            synchronized (this) {
+                if (mInFlight != null || mTransport == null || mPending.isEmpty()) {
+                    return;
+                }
+                if (mPending.peekFirst().isNoResponseWrite()) {
+                    waitNanos = mNextNoResponseNanos - mScheduler.nanoTime();
+                }
+                if (waitNanos > 0) {
+                    op = null;
+                    transport = null;
+                    // Any immediate run posted meanwhile is replaced by the delayed one below.
+                    mDriveScheduled = false;
+                } else {
+                    op = mPending.pollFirst();
+                    op.startNanos = mScheduler.nanoTime();
+                    mInFlight = op;
+                    transport = mTransport;
+                }
+            }
+            if (op == null) {
+                // Too early for the next unacknowledged write; come back when its slot opens.
+                mScheduler.removeCallbacks(mDriveRunnable);
+                mScheduler.postDelayedNanos(mDriveRunnable, waitNanos);
+                return;
+            }
+            if (op.retries == 0) {
+                mSubmitToSend.record(op.startNanos - op.enqueueNanos);
+            }
+            mScheduler.postDelayed(op, op.timeoutMs);
+            final boolean started = execute(transport, op);
+            if (op.type == OP_WRITE) {
+                onWriteIssued(op, started);
+            }
+            if (started) {
+                return;
+            }
+            if (op.isNoResponseWrite() && retry(op)) {
+                return;
+            }
+            finish(op, STATUS_NOT_STARTED);
+        }
+    }
+
+    private synchronized void onWriteIssued(Operation op, boolean accepted) {
+        final long interval = mPacingIntervalNanos > 0 ? mPacingIntervalNanos
+                : mIntervalEstimateNanos;
+        if (accepted) {
+            mAcceptedWrites++;
+        } else {
+            mRejectedWrites++;
+        }
+        if (op.isNoResponseWrite()) {
+            mNextNoResponseNanos = op.startNanos + interval;
+        }
+    }
+
+    // Puts a rejected write-without-response back at the head of the queue so that it is
+    // attempted again in the next pacing slot.
+    private boolean retry(Operation op) {
+        synchronized (this) {
+            if (mInFlight != op || op.retries >= MAX_NO_RESPONSE_RETRIES) {
+                return false;
+            }
+            op.retries++;
+            mInFlight = null;
+            mPending.addFirst(op);
+        }
+        mScheduler.removeCallbacks(op);
+        drive();
+        return true;
+    }
+
+    private synchronized void updateIntervalEstimate(long rttNanos) {
+        if (rttNanos < MIN_CONNECTION_INTERVAL_NANOS) {
+            rttNanos = MIN_CONNECTION_INTERVAL_NANOS;
+        }
+        // Follow a shorter round trip immediately, drift up slowly so that a single
+        // retransmission does not inflate the estimate.
+        if (rttNanos < mIntervalEstimateNanos) {
+            mIntervalEstimateNanos = rttNanos;
+        } else {
+            mIntervalEstimateNanos += (rttNanos - mIntervalEstimateNanos) / 16;
+        }
+    }
+
+    private boolean finish(Operation op, int status) {
+        final LatencyTracker tracker;
+        synchronized (this) {
+            if (mInFlight != op) {
+                return false;
+            }
+            mInFlight = null;
+            tracker = mLatencyTracker;
+        }
+        mScheduler.removeCallbacks(op);
+        if (op.type == OP_WRITE && status == GattTransport.GATT_SUCCESS) {
+            final long now = mScheduler.nanoTime();
+            if (!op.isNoResponseWrite()) {
+                updateIntervalEstimate(now - op.startNanos);
+            }
+            if (tracker != null) {
+                tracker.onWriteAcknowledged(op, now);
+            }
+        }
+        notifyComplete(op, status);
+        return true;
+    }
+
+    private static void notifyComplete(Operation op, int status) {
+        if (op.callback != null) {
+            op.callback.onOperationComplete(op, status);
+        }
+    }
+
+    private static boolean execute(GattTransport transport, Operation op) {
+        switch (op.type) {
+            case OP_READ:
+                return transport.readCharacteristic(op.service, op.characteristic);
+            case OP_WRITE:
+                return transport.writeCharacteristic(op.service, op.characteristic, op.value,
+                        op.writeType);
+            case OP_WRITE_DESCRIPTOR:
+                return transport.writeDescriptor(op.service, op.characteristic, op.descriptor,
+                        op.value);
+            case OP_REQUEST_MTU:
+                return transport.requestMtu(op.mtu);
+            case OP_DISCOVER_SERVICES:
+                return transport.discoverServices();
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * A GATT client connection to one peripheral, addressed by service and characteristic UUIDs.
+ *
+ * {@code BluetoothLeService} and {@link GattOperationQueue} only talk to the peripheral
+ * through this interface.  {@link AndroidGattTransport} implements it on top of
+ * {@code BluetoothGatt}; {@code SimulatedBot}, in the test sources, implements it in plain
+ * Java so that the command and telemetry paths can run without a radio.
+ *
+ * As with {@code BluetoothGatt}, only one request may be outstanding at a time; the request
+ * methods return false if the transport is busy or the target does not exist.  Constants
+ * have the same values as their Android counterparts.
+ */
+public interface GattTransport {
+    /** {@code BluetoothGatt.GATT_SUCCESS}. */
+    int GATT_SUCCESS = 0;
+    /** {@code BluetoothGatt.GATT_FAILURE}. */
+    int GATT_FAILURE = 0x101;
+    /** Link supervision timeout: the peripheral went out of range or powered off. */
+    int GATT_CONN_TIMEOUT = 0x08;
+    /** Generic stack error (133), typically a failed or timed-out connection attempt. */
+    int GATT_ERROR = 0x85;
+
+    /** {@code BluetoothGattCharacteristic.WRITE_TYPE_*}. */
+    int WRITE_TYPE_NO_RESPONSE = 0x01;
+    int WRITE_TYPE_DEFAULT = 0x02;
+
+    /** {@code BluetoothGattCharacteristic.PROPERTY_*}. */
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+
+    /** {@code BluetoothGatt.CONNECTION_PRIORITY_*}. */
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    /**
+     * Receives the outcome of requests and unsolicited events, in the order the peripheral
+     * produced them.
+     */
+    interface Callback {
+        void onConnectionStateChange(int status, boolean connected);
+
+        void onServicesDiscovered(int status);
+
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(UUID characteristic, int status);
+
+        void onDescriptorWrite(UUID characteristic, UUID descriptor, int status);
+
+        void onMtuChanged(int mtu, int status);
+
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+    }
+
+    /**
+     * Creates transports for {@code BluetoothLeService}.
+     */
+    interface Factory {
+        /**
+         * Creates a transport to the given device and starts connecting to it.
+         *
+         * @param autoConnect False to connect directly, true to let the stack connect in the
+         *                    background whenever the device is in range.
+         * @return The transport, or null if the device cannot be reached.
+         */
+        GattTransport create(String address, boolean autoConnect, Callback callback);
+    }
+
+    /**
+     * Reconnects after {@link #disconnect()} or a dropped link.  Like
+     * {@code BluetoothGatt#connect()}, this waits in the background for the device to be in
+     * range rather than failing.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Disconnects without reporting it and releases the transport.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * @return The {@code PROPERTY_*} bits of a characteristic found by service discovery, or
+     *         -1 if the peripheral does not have it.
+     */
+    int getCharacteristicProperties(UUID service, UUID characteristic);
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+
+    /**
+     * @param writeType {@link #WRITE_TYPE_DEFAULT} or {@link #WRITE_TYPE_NO_RESPONSE}.
+     */
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType);
+
+    boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value);
+
+    /**
+     * Enables or disables local delivery of notifications for a characteristic.  The
+     * peripheral only sends them once its client configuration descriptor is written.
+     */
+    boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enabled);
+
+    boolean requestMtu(int mtu);
+
+    boolean requestConnectionPriority(int priority);
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * An on-screen analog stick.  The knob follows the finger within the base circle and springs
+ * back to the centre when released.
+ *
+ * Every touch event is reported to the {@link Listener} as is, with the position in the unit
+ * circle; filtering and rate limiting are left to the receiver, see {@link DriveTransmitter}.
+ */
+public class JoystickView extends View {
+
+    /**
+     * Receives the knob position, on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param x -1 (left) to 1 (right).
+         * @param y -1 (down) to 1 (up); screen coordinates are flipped.
+         * @param eventNanos {@code System.nanoTime()} when the event was handled.
+         */
+        void onJoystickMoved(float x, float y, long eventNanos);
+    }
+
+    private final Paint mBasePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mKnobPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Listener mListener;
+
+    private float mCenterX;
+    private float mCenterY;
+    private float mBaseRadius;
+    private float mKnobRadius;
+    private float mX;
+    private float mY;
+
+    public JoystickView(Context context) {
+        super(context);
+        init();
+    }
+
+    public JoystickView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        mBasePaint.setColor(Color.LTGRAY);
+        mBasePaint.setStyle(Paint.Style.FILL);
+        mKnobPaint.setColor(Color.DKGRAY);
+        mKnobPaint.setStyle(Paint.Style.FILL);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        mBasePaint.setAlpha(enabled ? 255 : 96);
+        mKnobPaint.setAlpha(enabled ? 255 : 96);
+        if (!enabled) {
+            // Without a STOP: whoever disabled the stick has stopped the bot already.
+            mX = 0;
+            mY = 0;
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mCenterX = w / 2f;
+        mCenterY = h / 2f;
+        mKnobRadius = Math.min(w, h) / 6f;
+        mBaseRadius = Math.min(w, h) / 2f - mKnobRadius;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        canvas.drawCircle(mCenterX, mCenterY, mBaseRadius, mBasePaint);
+        canvas.drawCircle(mCenterX + mX * mBaseRadius, mCenterY - mY * mBaseRadius,
+                mKnobRadius, mKnobPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!isEnabled() || mBaseRadius <= 0) return false;
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+                float x = (event.getX() - mCenterX) / mBaseRadius;
+                float y = (mCenterY - event.getY()) / mBaseRadius;
+                final float length = (float) Math.sqrt(x * x + y * y);
+                if (length > 1f) {
+                    x /= length;
+                    y /= length;
+                }
+                mX = x;
+                mY = y;
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+                    performClick();
+                }
+                mX = 0;
+                mY = 0;
+                break;
+            default:
+                return true;
+        }
+        invalidate();
+        if (mListener != null) {
+            mListener.onJoystickMoved(mX, mY, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with a fixed set of buckets, cheap enough to record into on every
+ * command.
+ *
+ * Values are kept at microsecond resolution in log-linear buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} equal buckets, so a reported percentile is at most 12.5%, or
+ * 1 us for short values, above the true value, and never above the maximum.  Recording
+ * allocates nothing and takes no lock, and may be done from any thread.  Snapshots are not
+ * atomic with respect to concurrent recording, which can only skew them by the few values
+ * recorded while one is taken.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^MAX_EXPONENT us (about 19 hours) up share the last bucket, which reports
+    // the maximum.
+    private static final int MAX_EXPONENT = 36;
+    private static final int OVERFLOW_BUCKET = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int BUCKET_COUNT = OVERFLOW_BUCKET + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Summary of a histogram at one point in time.  All values are in nanoseconds.
+     */
+    public static class Snapshot {
+        public long count;
+        public long p50Nanos;
+        public long p99Nanos;
+        public long maxNanos;
+        public long meanNanos;
+
+        @Override
+        public String toString() {
+            return "n=" + count
+                    + " p50=" + p50Nanos / 1000 + "us"
+                    + " p99=" + p99Nanos / 1000 + "us"
+                    + " max=" + maxNanos / 1000 + "us"
+                    + " mean=" + meanNanos / 1000 + "us";
+        }
+    }
+
+    /**
+     * Records one latency.  Negative values, e.g. from timestamps taken on different clocks,
+     * are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) return;
+        mCounts.incrementAndGet(bucketOf(nanos / 1000));
+        mCount.incrementAndGet();
+        mSumNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return An upper bound of the given percentile, in nanoseconds, or 0 if nothing has been
+     *         recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                if (i == OVERFLOW_BUCKET) break;
+                // The bucket holds whole microseconds: the nanoseconds below the next one are
+                // part of it, so that values under 1 us are not reported as 0.
+                return Math.min((upperBoundOf(i) + 1) * 1000 - 1, mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    public Snapshot getSnapshot() {
+        final Snapshot snapshot = new Snapshot();
+        snapshot.count = mCount.get();
+        snapshot.p50Nanos = getPercentile(50);
+        snapshot.p99Nanos = getPercentile(99);
+        snapshot.maxNanos = mMaxNanos.get();
+        snapshot.meanNanos = snapshot.count == 0 ? 0 : mSumNanos.get() / snapshot.count;
+        return snapshot;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSumNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) return OVERFLOW_BUCKET;
+        final int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value, in microseconds, that falls into the bucket.
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
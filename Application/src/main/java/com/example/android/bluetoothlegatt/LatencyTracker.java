@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Stage-to-stage latencies of acknowledged command writes, per bot characteristic.
+ *
+ * A write passes four timestamps: the button press that caused it (when the caller supplied
+ * one), its enqueue, the {@code writeCharacteristic} call and the {@code onCharacteristicWrite}
+ * completion.  For writes without response the completion only means the local stack has
+ * taken the packet, not that the bot received it.
+ */
+public class LatencyTracker {
+    public static final int STAGE_PRESS_TO_ENQUEUE = 0;
+    public static final int STAGE_ENQUEUE_TO_SEND = 1;
+    public static final int STAGE_SEND_TO_ACK = 2;
+    /** End to end, from the button press to the completion. */
+    public static final int STAGE_PRESS_TO_ACK = 3;
+    public static final int STAGE_COUNT = 4;
+
+    /** Histogram index for writes to characteristics outside the bot service. */
+    public static final int OTHER_CHARACTERISTIC = BotGattAttributes.CHAR_COUNT;
+
+    private final LatencyHistogram[][] mHistograms =
+            new LatencyHistogram[BotGattAttributes.CHAR_COUNT + 1][STAGE_COUNT];
+
+    public LatencyTracker() {
+        for (LatencyHistogram[] stages : mHistograms) {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Records the stages of a write that has just been acknowledged.
+     */
+    void onWriteAcknowledged(GattOperationQueue.Operation op, long ackNanos) {
+        int charIndex = BotGattAttributes.indexOf(op.characteristic);
+        if (charIndex < 0) charIndex = OTHER_CHARACTERISTIC;
+        final LatencyHistogram[] stages = mHistograms[charIndex];
+        if (op.pressNanos != 0) {
+            stages[STAGE_PRESS_TO_ENQUEUE].record(op.enqueueNanos - op.pressNanos);
+            stages[STAGE_PRESS_TO_ACK].record(ackNanos - op.pressNanos);
+        }
+        stages[STAGE_ENQUEUE_TO_SEND].record(op.startNanos - op.enqueueNanos);
+        stages[STAGE_SEND_TO_ACK].record(ackNanos - op.startNanos);
+    }
+
+    /**
+     * @param charIndex {@code BotGattAttributes.CHAR_*} index, or {@link #OTHER_CHARACTERISTIC}.
+     * @param stage One of the STAGE_* constants.
+     */
+    public LatencyHistogram getHistogram(int charIndex, int stage) {
+        return mHistograms[charIndex][stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram[] stages : mHistograms) {
+            for (LatencyHistogram histogram : stages) {
+                histogram.reset();
+            }
+        }
+    }
+}
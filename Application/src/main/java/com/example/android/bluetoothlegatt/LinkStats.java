@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Timings and negotiated parameters of the most recent link setup with a bot.  All durations
+ * are in nanoseconds; a value of -1 means the step has not completed (or was skipped).
+ */
+public class LinkStats {
+    /** Time from {@code connect()} to {@code STATE_CONNECTED}. */
+    public long connectNanos = -1;
+    /** Time taken by the MTU exchange. */
+    public long mtuExchangeNanos = -1;
+    /** Time taken by service discovery. */
+    public long discoveryNanos = -1;
+    /** Time from {@code connect()} to the first acknowledged command. */
+    public long firstCommandNanos = -1;
+
+    /** Negotiated ATT MTU, 23 (the default) until an exchange succeeds. */
+    public int mtu = 23;
+    /** Last connection priority requested, one of {@code BluetoothGatt.CONNECTION_PRIORITY_*}. */
+    public int connectionPriority = -1;
+    /** Number of connection priority changes requested since connect. */
+    public int priorityChanges;
+
+    // Absolute timestamps the durations are derived from.
+    long connectStartNanos;
+    long stepStartNanos;
+
+    void reset(long now) {
+        connectNanos = -1;
+        mtuExchangeNanos = -1;
+        discoveryNanos = -1;
+        firstCommandNanos = -1;
+        mtu = 23;
+        connectionPriority = -1;
+        priorityChanges = 0;
+        connectStartNanos = now;
+        stepStartNanos = now;
+    }
+
+    LinkStats copy() {
+        LinkStats copy = new LinkStats();
+        copy.connectNanos = connectNanos;
+        copy.mtuExchangeNanos = mtuExchangeNanos;
+        copy.discoveryNanos = discoveryNanos;
+        copy.firstCommandNanos = firstCommandNanos;
+        copy.mtu = mtu;
+        copy.connectionPriority = connectionPriority;
+        copy.priorityChanges = priorityChanges;
+        copy.connectStartNanos = connectStartNanos;
+        copy.stepStartNanos = stepStartNanos;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "connect=" + connectNanos / 1000000 + "ms"
+                + " mtu=" + mtu + " (" + mtuExchangeNanos / 1000000 + "ms)"
+                + " discovery=" + discoveryNanos / 1000000 + "ms"
+                + " firstCommand=" + firstCommandNanos / 1000000 + "ms"
+                + " priority=" + connectionPriority;
+    }
+}
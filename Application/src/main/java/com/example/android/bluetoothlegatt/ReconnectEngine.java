@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Random;
+
+/**
+ * Brings a bot back after its link drops, without the operator having to reconnect.
+ *
+ * The engine is armed once a bot has become controllable (connected and its services
+ * resolved), and disarmed when the app disconnects on purpose.  A link loss while armed
+ * starts a recovery, made of a series of attempts:
+ * <ol>
+ * <li>The first attempt reuses the existing transport, which avoids registering a new GATT
+ *     client, unless the last failure left it unusable.</li>
+ * <li>The following ones open a fresh direct connection, each bounded by
+ *     {@link Config#attemptTimeoutMs}, separated by a jittered exponential backoff.</li>
+ * <li>An attempt whose link comes up but whose bot does not become controllable within
+ *     {@link Config#setupTimeoutMs}, e.g. because discovery failed, counts as failed
+ *     too.</li>
+ * <li>Once {@link Config#directAttempts} have failed, the engine either falls back to a
+ *     single {@code autoConnect} connection, which lets the stack re-attach in the background
+ *     whenever the bot reappears within {@link Config#autoConnectTimeoutMs}, or gives up.</li>
+ * </ol>
+ * A recovery that gives up is reported through {@link Target#onGaveUp()}.
+ * The recovery ends when the bot is controllable again; the time from the link loss to that
+ * point is recorded as its time-to-controllable.
+ *
+ * All timers run on the {@link Scheduler}; events may be reported from any thread.
+ */
+public class ReconnectEngine {
+    /** Reconnect the existing transport. */
+    public static final int ATTEMPT_REUSE = 0;
+    /** Open a new transport with a direct connection. */
+    public static final int ATTEMPT_DIRECT = 1;
+    /** Open a new transport with {@code autoConnect}, bounded by the longer fallback timeout. */
+    public static final int ATTEMPT_AUTO_CONNECT = 2;
+    // No attempt left: the recovery gives up.
+    private static final int GIVE_UP = -1;
+
+    /**
+     * Performs the attempts on behalf of the engine.
+     */
+    public interface Target {
+        /**
+         * Starts connecting.  The outcome is reported back through
+         * {@link #onConnected()} / {@link #onControllable()} or {@link #onDisconnected(int)}.
+         *
+         * @param kind One of the ATTEMPT_* constants.
+         * @return false if the attempt could not be started at all.
+         */
+        boolean startAttempt(int kind);
+
+        /**
+         * Abandons an attempt that has timed out, before or after its link came up,
+         * releasing its transport.  No further callbacks are expected from it.
+         */
+        void cancelAttempt();
+
+        /**
+         * The recovery has been abandoned; the engine stays disarmed until the bot is
+         * controllable again.  The target should release what the last attempt left behind
+         * and report the bot as gone.
+         */
+        void onGaveUp();
+    }
+
+    /**
+     * Recovery parameters.  Instances may be shared between engines, but should not be
+     * modified once in use.
+     */
+    public static class Config {
+        public boolean enabled = true;
+        /** Delay before the first attempt after a link loss. */
+        public long firstDelayMs = 0;
+        /** Delay after the first failed attempt; doubled after each further failure. */
+        public long baseDelayMs = 100;
+        public long maxDelayMs = 5000;
+        /** Fraction of each delay that is randomized, from 0 (none) to 1 (all of it). */
+        public double jitter = 0.5;
+        public long attemptTimeoutMs = 2000;
+        /** Time from the link coming up to the bot being controllable. */
+        public long setupTimeoutMs = 15000;
+        /** Attempts made before falling back to autoConnect or giving up. */
+        public int directAttempts = 6;
+        public boolean autoConnectFallback = true;
+        /** Time the autoConnect fallback waits for the bot to reappear before giving up. */
+        public long autoConnectTimeoutMs = 60000;
+        public boolean reuseTransport = true;
+    }
+
+    /**
+     * Counters since the engine was created.  Durations are in nanoseconds.
+     */
+    public static class Stats {
+        public long recoveries;
+        public long failures;
+        public long attempts;
+        public boolean recovering;
+        public long lastTimeToControllableNanos = -1;
+        public LatencyHistogram.Snapshot timeToControllable;
+
+        @Override
+        public String toString() {
+            return "recoveries=" + recoveries
+                    + " failures=" + failures
+                    + " attempts=" + attempts
+                    + " recovering=" + recovering
+                    + " last=" + lastTimeToControllableNanos / 1000000 + "ms"
+                    + " timeToControllable=[" + timeToControllable + "]";
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Target mTarget;
+    private final Random mRandom;
+    private final LatencyHistogram mTimeToControllable = new LatencyHistogram();
+    private volatile Config mConfig;
+
+    // Guarded by this.
+    private boolean mArmed;
+    private boolean mRecovering;
+    private boolean mAttemptPending;
+    // Between onConnected() and onControllable() of an attempt.
+    private boolean mSettingUp;
+    private boolean mTransportUsable = true;
+    private int mAttempt;
+    private long mLostNanos;
+    private long mRecoveries;
+    private long mFailures;
+    private long mAttempts;
+    private long mLastTimeToControllableNanos = -1;
+
+    private final Runnable mAttemptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectEngine.this) {
+                if (!mRecovering || !mAttemptPending) return;
+                mAttemptPending = false;
+                mTransportUsable = false;
+            }
+            mTarget.cancelAttempt();
+            scheduleNext();
+        }
+    };
+
+    private final Runnable mSetupTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectEngine.this) {
+                if (!mRecovering || !mSettingUp) return;
+                mSettingUp = false;
+                mTransportUsable = false;
+            }
+            mTarget.cancelAttempt();
+            scheduleNext();
+        }
+    };
+
+    public ReconnectEngine(Scheduler scheduler, Config config, Target target, Random random) {
+        mScheduler = scheduler;
+        mConfig = config;
+        mTarget = target;
+        mRandom = random;
+    }
+
+    public void setConfig(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * The bot is connected and its services are resolved.  Arms the engine, and completes
+     * the recovery in progress, if any.
+     */
+    public void onControllable() {
+        synchronized (this) {
+            mArmed = true;
+            mTransportUsable = true;
+            if (!mRecovering) return;
+            mRecovering = false;
+            mAttemptPending = false;
+            mSettingUp = false;
+            mRecoveries++;
+            mLastTimeToControllableNanos = mScheduler.nanoTime() - mLostNanos;
+            mTimeToControllable.record(mLastTimeToControllableNanos);
+        }
+        mScheduler.removeCallbacks(mTimeoutRunnable);
+        mScheduler.removeCallbacks(mSetupTimeoutRunnable);
+        mScheduler.removeCallbacks(mAttemptRunnable);
+    }
+
+    /**
+     * The link is up again.  The recovery only completes with {@link #onControllable()}; if
+     * that does not come within {@link Config#setupTimeoutMs}, the attempt is abandoned.
+     */
+    public void onConnected() {
+        synchronized (this) {
+            if (!mRecovering) return;
+            mAttemptPending = false;
+            mSettingUp = true;
+        }
+        mScheduler.removeCallbacks(mTimeoutRunnable);
+        mScheduler.removeCallbacks(mSetupTimeoutRunnable);
+        mScheduler.postDelayed(mSetupTimeoutRunnable, mConfig.setupTimeoutMs);
+    }
+
+    /**
+     * The link went down, or an attempt failed.
+     *
+     * @param status Status reported with the disconnection.
+     */
+    public void onDisconnected(int status) {
+        final long delayMs;
+        synchronized (this) {
+            if (!mArmed || !mConfig.enabled) return;
+            if (status != GattTransport.GATT_SUCCESS && status != GattTransport.GATT_CONN_TIMEOUT) {
+                // Errors such as GATT_ERROR tend to stick to the client they occurred on.
+                mTransportUsable = false;
+            }
+            mSettingUp = false;
+            if (mRecovering) {
+                mAttemptPending = false;
+                delayMs = -1;
+            } else {
+                mRecovering = true;
+                mLostNanos = mScheduler.nanoTime();
+                mAttempt = 0;
+                delayMs = mConfig.firstDelayMs;
+            }
+        }
+        mScheduler.removeCallbacks(mTimeoutRunnable);
+        mScheduler.removeCallbacks(mSetupTimeoutRunnable);
+        if (delayMs < 0) {
+            scheduleNext();
+        } else {
+            mScheduler.removeCallbacks(mAttemptRunnable);
+            mScheduler.postDelayed(mAttemptRunnable, delayMs);
+        }
+    }
+
+    /**
+     * Stops any recovery and ignores link losses until the bot is controllable again; for
+     * disconnections the app asked for.
+     */
+    public void disarm() {
+        synchronized (this) {
+            mArmed = false;
+            mRecovering = false;
+            mAttemptPending = false;
+            mSettingUp = false;
+        }
+        mScheduler.removeCallbacks(mTimeoutRunnable);
+        mScheduler.removeCallbacks(mSetupTimeoutRunnable);
+        mScheduler.removeCallbacks(mAttemptRunnable);
+    }
+
+    /**
+     * Skips the backoff delay of a recovery that is waiting for its next attempt.
+     *
+     * @return false if no recovery is waiting.
+     */
+    public boolean retryNow() {
+        synchronized (this) {
+            if (!mRecovering || mAttemptPending || mSettingUp) return false;
+        }
+        mScheduler.removeCallbacks(mAttemptRunnable);
+        mScheduler.postDelayed(mAttemptRunnable, 0);
+        return true;
+    }
+
+    public synchronized boolean isRecovering() {
+        return mRecovering;
+    }
+
+    public synchronized Stats getStats() {
+        final Stats stats = new Stats();
+        stats.recoveries = mRecoveries;
+        stats.failures = mFailures;
+        stats.attempts = mAttempts;
+        stats.recovering = mRecovering;
+        stats.lastTimeToControllableNanos = mLastTimeToControllableNanos;
+        stats.timeToControllable = mTimeToControllable.getSnapshot();
+        return stats;
+    }
+
+    private void attempt() {
+        final Config config = mConfig;
+        final int kind;
+        synchronized (this) {
+            if (!mRecovering || mAttemptPending || mSettingUp) return;
+            if (mAttempt == 0 && config.reuseTransport && mTransportUsable) {
+                kind = ATTEMPT_REUSE;
+            } else if (mAttempt < config.directAttempts) {
+                kind = ATTEMPT_DIRECT;
+            } else if (config.autoConnectFallback && mAttempt == config.directAttempts) {
+                kind = ATTEMPT_AUTO_CONNECT;
+            } else {
+                kind = GIVE_UP;
+            }
+            if (kind == GIVE_UP) {
+                mRecovering = false;
+                mArmed = false;
+                mFailures++;
+            } else {
+                mAttempt++;
+                mAttempts++;
+                mAttemptPending = true;
+            }
+        }
+        if (kind == GIVE_UP) {
+            mTarget.onGaveUp();
+            return;
+        }
+        if (!mTarget.startAttempt(kind)) {
+            synchronized (this) {
+                mAttemptPending = false;
+                mTransportUsable = false;
+            }
+            scheduleNext();
+        } else {
+            mScheduler.postDelayed(mTimeoutRunnable, kind == ATTEMPT_AUTO_CONNECT
+                    ? config.autoConnectTimeoutMs : config.attemptTimeoutMs);
+        }
+    }
+
+    private void scheduleNext() {
+        final Config config = mConfig;
+        final long delayMs;
+        synchronized (this) {
+            if (!mRecovering) return;
+            final int failures = Math.max(0, mAttempt - 1);
+            long delay = config.baseDelayMs << Math.min(failures, 30);
+            if (delay > config.maxDelayMs || delay < 0) delay = config.maxDelayMs;
+            final long random = (long) (delay * config.jitter * mRandom.nextDouble());
+            delayMs = delay - (long) (delay * config.jitter) + random;
+        }
+        mScheduler.removeCallbacks(mAttemptRunnable);
+        mScheduler.postDelayed(mAttemptRunnable, delayMs);
+    }
+}
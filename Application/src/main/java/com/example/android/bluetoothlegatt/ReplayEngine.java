@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+
+/**
+ * Plays a {@link SessionRecorder} log back into a {@link Sink}, either at the recorded pace,
+ * at a multiple of it, or as fast as the sink accepts records.
+ *
+ * The replay runs on the thread of its {@link Scheduler}: {@link #start()} schedules the first
+ * record, and each record is handed to the sink when it falls due, so that the thread keeps
+ * running its other work in between.  With a {@code SimulatedScheduler}, in the test sources,
+ * a replay runs in virtual time.  It ends once the log is exhausted or {@link #cancel()} is
+ * called, see {@link #isFinished()}.  {@code BluetoothLeService#newReplay} provides an engine
+ * that feeds the records through the service's notification and command paths.
+ */
+public class ReplayEngine {
+
+    /**
+     * Receives replayed records, on the scheduler's thread.  {@code value} is reused for the
+     * next record, so a sink that keeps it must copy the first {@code length} bytes.
+     */
+    public interface Sink {
+        void onCommand(int charIndex, byte[] value, int length);
+
+        void onNotification(int charIndex, byte[] value, int length);
+    }
+
+    /** Speed for {@link #setSpeed(double)} that ignores the recorded timing. */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    public static final double REAL_TIME = 1;
+
+    // Records handed to the sink in one go before the rest of the thread's work gets a turn.
+    private static final int MAX_RECORDS_PER_STEP = 64;
+
+    private final Scheduler mScheduler;
+    private final SessionLogReader mReader;
+    private final Sink mSink;
+    private volatile double mSpeed = REAL_TIME;
+    private volatile boolean mStarted;
+    private volatile boolean mCancelled;
+    private long mStartNanos;
+
+    // Only used on the scheduler's thread.
+    private final SessionLogReader.Record mRecord = new SessionLogReader.Record();
+    // Set while mRecord has been read but not yet handed to the sink.
+    private boolean mPending;
+    // Anchors mapping recorded time to scheduler time; reset when the speed changes.
+    private long mAnchorRecorded = -1;
+    private long mAnchorReplay;
+    private double mAnchorSpeed;
+
+    // Written on the scheduler's thread, read by anyone through getStats().
+    private final Stats mStats = new Stats();
+
+    private final Runnable mStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    /**
+     * Outcome of a replay.  Lag is how late each record was handed to the sink relative to
+     * its scheduled time, which shows whether the sink keeps up with the requested speed.
+     */
+    public static class Stats {
+        public long commands;
+        public long notifications;
+        public long elapsedNanos;
+        public long maxLagNanos;
+        public long totalLagNanos;
+        public boolean finished;
+        public boolean cancelled;
+        /** Set if reading the log failed part way through. */
+        public IOException error;
+
+        Stats copy() {
+            Stats copy = new Stats();
+            copy.commands = commands;
+            copy.notifications = notifications;
+            copy.elapsedNanos = elapsedNanos;
+            copy.maxLagNanos = maxLagNanos;
+            copy.totalLagNanos = totalLagNanos;
+            copy.finished = finished;
+            copy.cancelled = cancelled;
+            copy.error = error;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            final long records = commands + notifications;
+            return "commands=" + commands + " notifications=" + notifications
+                    + " elapsed=" + elapsedNanos / 1000000 + "ms"
+                    + " maxLag=" + maxLagNanos / 1000 + "us"
+                    + " meanLag=" + (records == 0 ? 0 : totalLagNanos / records / 1000) + "us"
+                    + (finished ? "" : " running")
+                    + (cancelled ? " cancelled" : "")
+                    + (error != null ? " error=" + error : "");
+        }
+    }
+
+    public ReplayEngine(Scheduler scheduler, SessionLogReader reader, Sink sink) {
+        mScheduler = scheduler;
+        mReader = reader;
+        mSink = sink;
+    }
+
+    /**
+     * @param speed {@link #REAL_TIME}, a factor such as 10 for ten times the recorded pace, or
+     *              {@link #AS_FAST_AS_POSSIBLE}.  May be changed while replaying.
+     */
+    public ReplayEngine setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        mSpeed = speed;
+        return this;
+    }
+
+    /**
+     * Starts the replay on the scheduler's thread.  An engine plays its log once.
+     */
+    public void start() {
+        if (mStarted) {
+            throw new IllegalStateException("Replay already started");
+        }
+        mStarted = true;
+        mStartNanos = mScheduler.nanoTime();
+        mScheduler.postDelayed(mStepRunnable, 0);
+    }
+
+    /**
+     * Stops the replay before the next record.  May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        if (mStarted) {
+            // Wakes a replay waiting for its next record, so that it closes the log now.
+            mScheduler.removeCallbacks(mStepRunnable);
+            mScheduler.postDelayed(mStepRunnable, 0);
+        }
+    }
+
+    /**
+     * @return true once the log is exhausted, the replay cancelled or reading failed.
+     */
+    public boolean isFinished() {
+        synchronized (mStats) {
+            return mStats.finished;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (mStats) {
+            return mStats.copy();
+        }
+    }
+
+    // Hands every record that is due to the sink and schedules the step again for the next.
+    private void step() {
+        synchronized (mStats) {
+            if (mStats.finished) return;
+        }
+        try {
+            int delivered = 0;
+            while (!mCancelled) {
+                if (!mPending) {
+                    if (!mReader.next(mRecord)) break;
+                    mPending = true;
+                }
+                if (delivered == MAX_RECORDS_PER_STEP) {
+                    mScheduler.postDelayed(mStepRunnable, 0);
+                    return;
+                }
+                final double speed = mSpeed;
+                final long now = mScheduler.nanoTime();
+                long lag = 0;
+                if (speed != AS_FAST_AS_POSSIBLE) {
+                    if (mAnchorRecorded < 0 || speed != mAnchorSpeed) {
+                        mAnchorRecorded = mRecord.timestampNanos;
+                        mAnchorReplay = now;
+                        mAnchorSpeed = speed;
+                    }
+                    final long due = mAnchorReplay
+                            + (long) ((mRecord.timestampNanos - mAnchorRecorded) / speed);
+                    if (due > now) {
+                        mScheduler.postDelayedNanos(mStepRunnable, due - now);
+                        return;
+                    }
+                    lag = now - due;
+                } else {
+                    mAnchorRecorded = -1;
+                }
+                mPending = false;
+                deliver(mRecord, lag);
+                delivered++;
+            }
+            finish(null);
+        } catch (IOException e) {
+            finish(e);
+        }
+    }
+
+    private void deliver(SessionLogReader.Record record, long lag) {
+        if (record.type == SessionRecorder.TYPE_COMMAND) {
+            mSink.onCommand(record.charIndex, record.value, record.length);
+        } else if (record.type == SessionRecorder.TYPE_NOTIFICATION) {
+            mSink.onNotification(record.charIndex, record.value, record.length);
+        }
+        synchronized (mStats) {
+            if (record.type == SessionRecorder.TYPE_COMMAND) {
+                mStats.commands++;
+            } else if (record.type == SessionRecorder.TYPE_NOTIFICATION) {
+                mStats.notifications++;
+            }
+            mStats.totalLagNanos += lag;
+            if (lag > mStats.maxLagNanos) mStats.maxLagNanos = lag;
+            mStats.elapsedNanos = mScheduler.nanoTime() - mStartNanos;
+        }
+    }
+
+    private void finish(IOException error) {
+        mReader.close();
+        synchronized (mStats) {
+            mStats.error = error;
+            mStats.elapsedNanos = mScheduler.nanoTime() - mStartNanos;
+            mStats.cancelled = mCancelled;
+            mStats.finished = true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Devices found by a scan, keyed by address.
+ *
+ * Repeated advertisements update their entry in place, so recording one costs a hash lookup
+ * and never touches the UI.  Each entry carries an ID that stays the same for as long as the
+ * device stays in the table, and a smoothed RSSI to rank devices by proximity, which lets a
+ * list adapter pick up new devices and changed rows in one pass per frame.  The table may be
+ * updated from any thread.
+ */
+public class ScanDeviceTable {
+    // RSSI filter: a scalar Kalman filter whose estimate may drift by PROCESS_NOISE dB^2 per
+    // second, e.g. as the phone is carried around, and whose readings are off by
+    // sqrt(MEASUREMENT_NOISE) dB, mostly from fading.  Unlike a fixed-weight average, it
+    // trusts a reading more after a long silence than within a burst of advertisements.
+    private static final float PROCESS_NOISE = 4f;
+    private static final float MEASUREMENT_NOISE = 36f;
+
+    /**
+     * One device.  The scan fields are updated in place; {@link #version} grows with every
+     * update, so that a view can tell whether what it shows is current.
+     */
+    public static class Entry {
+        public final long id;
+        public final BluetoothDevice device;
+        public final String address;
+
+        /** RSSI of the latest advertisement. */
+        public volatile int rssi;
+        /** Filtered RSSI, steadier than {@link #rssi}; higher means closer. */
+        public volatile float smoothedRssi;
+        // Variance of smoothedRssi; guarded by the table.
+        float rssiVariance;
+        /** Time of the latest advertisement, on the {@code elapsedRealtimeNanos} clock. */
+        public volatile long lastSeenNanos;
+        public volatile byte[] scanRecord;
+        /** Local name from the advertisement, or null if it has none. */
+        public volatile String advertisedName;
+        /** Bot status from the advertisement, see {@link AdvertisementRecord}. */
+        public volatile int batteryPercent = AdvertisementRecord.UNKNOWN;
+        public volatile int firmwareVersion = AdvertisementRecord.UNKNOWN;
+        public volatile int version;
+
+        Entry(long id, BluetoothDevice device) {
+            this.id = id;
+            this.device = device;
+            this.address = device.getAddress();
+        }
+    }
+
+    // All guarded by this.
+    private final HashMap<String, Entry> mByAddress = new HashMap<String, Entry>();
+    // Entries added since the last drainAdded().
+    private final ArrayList<Entry> mAdded = new ArrayList<Entry>();
+    private long mNextId;
+
+    /**
+     * Records an advertisement.
+     *
+     * @param advertisement {@code scanRecord} already parsed by the caller, or null if the
+     *                      record is unavailable.
+     * @return true if the device is new to the table.
+     */
+    public boolean update(BluetoothDevice device, int rssi, byte[] scanRecord,
+                          AdvertisementRecord advertisement, long timestampNanos) {
+        final String address = device.getAddress();
+        Entry entry;
+        final boolean added;
+        synchronized (this) {
+            entry = mByAddress.get(address);
+            added = entry == null;
+            if (added) {
+                entry = new Entry(mNextId++, device);
+                mByAddress.put(address, entry);
+                mAdded.add(entry);
+                entry.smoothedRssi = rssi;
+                entry.rssiVariance = MEASUREMENT_NOISE;
+            } else {
+                final float seconds =
+                        Math.max(0, timestampNanos - entry.lastSeenNanos) / 1e9f;
+                final float variance = entry.rssiVariance + PROCESS_NOISE * seconds;
+                final float gain = variance / (variance + MEASUREMENT_NOISE);
+                entry.smoothedRssi += gain * (rssi - entry.smoothedRssi);
+                entry.rssiVariance = (1 - gain) * variance;
+            }
+            entry.rssi = rssi;
+            entry.lastSeenNanos = timestampNanos;
+            if (scanRecord != null) entry.scanRecord = scanRecord;
+            if (advertisement != null) {
+                // Only allocates when the name has changed.
+                if (!advertisement.localNameEquals(entry.advertisedName)) {
+                    entry.advertisedName = advertisement.getLocalName();
+                }
+                entry.batteryPercent = advertisement.getBotBatteryPercent();
+                entry.firmwareVersion = advertisement.getBotFirmwareVersion();
+            }
+            entry.version++;
+        }
+        return added;
+    }
+
+    public synchronized Entry get(String address) {
+        return mByAddress.get(address);
+    }
+
+    public synchronized int size() {
+        return mByAddress.size();
+    }
+
+    /**
+     * Moves the entries added since the last call to the end of {@code out}, in the order
+     * they were added.
+     *
+     * @return true if anything was appended.
+     */
+    public synchronized boolean drainAdded(ArrayList<Entry> out) {
+        if (mAdded.isEmpty()) return false;
+        out.addAll(mAdded);
+        mAdded.clear();
+        return true;
+    }
+
+    /**
+     * Drops a device, e.g. once it has not been seen for a while.  It is added back as a new
+     * entry, with a new ID, if it advertises again.
+     */
+    public synchronized void remove(Entry entry) {
+        if (mByAddress.get(entry.address) == entry) {
+            mByAddress.remove(entry.address);
+        }
+        mAdded.remove(entry);
+    }
+
+    public synchronized void clear() {
+        mByAddress.clear();
+        mAdded.clear();
+    }
+}
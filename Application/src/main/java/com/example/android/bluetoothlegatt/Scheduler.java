@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Clock and delayed execution for {@link GattOperationQueue} and the components around it.
+ *
+ * {@link HandlerScheduler} runs tasks on an Android {@code Handler} in real time;
+ * {@code SimulatedScheduler}, in the test sources, runs them in virtual time so that
+ * simulations are repeatable.
+ */
+public interface Scheduler {
+    /**
+     * @return The current time in nanoseconds, on the same clock tasks are scheduled with.
+     */
+    long nanoTime();
+
+    void postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Sub-millisecond variant of {@link #postDelayed(Runnable, long)}, for implementations
+     * that support it; others round up to whole milliseconds.
+     */
+    void postDelayedNanos(Runnable task, long delayNanos);
+
+    /**
+     * Removes every pending posting of {@code task}.
+     */
+    void removeCallbacks(Runnable task);
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of {@link SensorSample}s with one producer and any number of consumers.
+ *
+ * The producer never waits: once the ring is full the oldest samples are overwritten.  Each
+ * consumer reads through its own {@link Cursor}, which notices when it has fallen more than
+ * a ring's length behind and skips forward, counting the samples it lost.  Samples are kept
+ * in a preallocated primitive array, so neither publishing nor polling allocates.
+ */
+public class SensorRingBuffer {
+    // Each slot is two longs: the receive timestamp and the four UINT16 readings packed
+    // together, so that a slot can be read without taking a lock.
+    private static final int SLOT_WIDTH = 2;
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLongArray mSlots;
+
+    // Number of samples published so far; slot (n & mMask) holds sample n.
+    private final AtomicLong mPublished = new AtomicLong();
+
+    /**
+     * @param capacity Minimum number of samples to retain, rounded up to a power of two.
+     */
+    public SensorRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mSlots = new AtomicLongArray(size * SLOT_WIDTH);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return Total number of samples published since the buffer was created.
+     */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    /**
+     * Appends a sample.  Must only be called from one thread at a time.
+     */
+    public void publish(long timestampNanos, int distance, int left, int right, int behind) {
+        final long sequence = mPublished.get();
+        final int slot = (int) (sequence & mMask) * SLOT_WIDTH;
+        mSlots.lazySet(slot, timestampNanos);
+        mSlots.lazySet(slot + 1, pack(distance, left, right, behind));
+        // Ordered after the slot writes, so readers that see the new count see the sample.
+        mPublished.lazySet(sequence + 1);
+    }
+
+    public void publish(SensorSample sample) {
+        publish(sample.timestampNanos, sample.distance, sample.left, sample.right,
+                sample.behind);
+    }
+
+    /**
+     * @return A cursor positioned after the most recent sample, so it only sees samples
+     *         published from now on.
+     */
+    public Cursor newCursor() {
+        return new Cursor(mPublished.get());
+    }
+
+    /**
+     * @return A cursor positioned at the oldest sample still in the ring.
+     */
+    public Cursor newCursorFromOldest() {
+        return new Cursor(Math.max(0, mPublished.get() - mCapacity));
+    }
+
+    private static long pack(int distance, int left, int right, int behind) {
+        return (distance & 0xFFFFL)
+                | (left & 0xFFFFL) << 16
+                | (right & 0xFFFFL) << 32
+                | (behind & 0xFFFFL) << 48;
+    }
+
+    /**
+     * A consumer's read position.  A cursor must only be used from one thread at a time, but
+     * any number of cursors may read the same buffer concurrently.
+     */
+    public class Cursor {
+        private long mNext;
+        private long mOverruns;
+
+        private Cursor(long next) {
+            mNext = next;
+        }
+
+        /**
+         * @return Number of samples published but not yet polled, capped at the capacity.
+         */
+        public int available() {
+            return (int) Math.min(mCapacity, mPublished.get() - mNext);
+        }
+
+        /**
+         * @return Number of samples this cursor missed because the producer overwrote them.
+         */
+        public long getOverrunCount() {
+            return mOverruns;
+        }
+
+        /**
+         * Copies the next sample into {@code out}.
+         *
+         * @return false if there is no new sample, in which case {@code out} is unchanged.
+         */
+        public boolean poll(SensorSample out) {
+            while (true) {
+                final long published = mPublished.get();
+                if (mNext >= published) {
+                    return false;
+                }
+                if (published - mNext > mCapacity) {
+                    skipTo(published - mCapacity);
+                }
+                final int slot = (int) (mNext & mMask) * SLOT_WIDTH;
+                final long timestamp = mSlots.get(slot);
+                final long readings = mSlots.get(slot + 1);
+                // The producer may have lapped us while we were copying.  The copy is intact
+                // only if the sample being written now goes to a different slot.
+                final long writing = mPublished.get();
+                if (writing - mNext >= mCapacity) {
+                    skipTo(writing - mCapacity + 1);
+                    continue;
+                }
+                out.timestampNanos = timestamp;
+                out.distance = (int) (readings & 0xFFFF);
+                out.left = (int) (readings >>> 16 & 0xFFFF);
+                out.right = (int) (readings >>> 32 & 0xFFFF);
+                out.behind = (int) (readings >>> 48 & 0xFFFF);
+                mNext++;
+                return true;
+            }
+        }
+
+        /**
+         * Skips every pending sample, e.g. after the consumer was paused.
+         */
+        public void skipToLatest() {
+            mNext = mPublished.get();
+        }
+
+        private void skipTo(long next) {
+            mOverruns += next - mNext;
+            mNext = next;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * One decoded reading of the bot's distance sensors.  Instances are meant to be reused:
+ * {@link #decode(byte[], long)} overwrites every field in place.
+ */
+public class SensorSample {
+    /** {@code System.nanoTime()} at which the notification was received. */
+    public long timestampNanos;
+    public int distance;
+    public int left;
+    public int right;
+    public int behind;
+
+    /**
+     * Parses a notification from {@code BotGattAttributes.bot_sensor_char_uuid} into this
+     * sample.  Nothing is allocated.
+     *
+     * @param value Raw notification payload.
+     * @param timestampNanos Receive time to record with the sample.
+     * @return false if the payload is too short, in which case the sample is left unchanged.
+     */
+    public boolean decode(byte[] value, long timestampNanos) {
+        if (value == null || value.length < BotGattAttributes.SENSOR_FRAME_LENGTH) {
+            return false;
+        }
+        this.timestampNanos = timestampNanos;
+        distance = uint16(value, BotGattAttributes.SENSOR_FRAME_DISTANCE);
+        left = uint16(value, BotGattAttributes.SENSOR_FRAME_LEFT);
+        right = uint16(value, BotGattAttributes.SENSOR_FRAME_RIGHT);
+        behind = uint16(value, BotGattAttributes.SENSOR_FRAME_BEHIND);
+        return true;
+    }
+
+    public void set(SensorSample other) {
+        timestampNanos = other.timestampNanos;
+        distance = other.distance;
+        left = other.left;
+        right = other.right;
+        behind = other.behind;
+    }
+
+    // Little-endian UINT16, same as getIntValue(FORMAT_UINT16, offset).
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8);
+    }
+
+    @Override
+    public String toString() {
+        return "distance=" + distance + " left=" + left + " right=" + right
+                + " behind=" + behind;
+    }
+}
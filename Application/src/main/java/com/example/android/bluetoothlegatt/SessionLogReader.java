@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads back a log written by {@link SessionRecorder}, one record at a time and in order
+ * across all of its segments.
+ */
+public class SessionLogReader {
+
+    /**
+     * A single record.  {@link SessionLogReader#next(Record)} overwrites it in place.
+     */
+    public static class Record {
+        public long timestampNanos;
+        /** {@code SessionRecorder.TYPE_*}. */
+        public int type;
+        /** {@code BotGattAttributes.CHAR_*} index, or -1 for another characteristic. */
+        public int charIndex;
+        /** Number of valid bytes in {@link #value}. */
+        public int length;
+        /** Length of the original payload, which may be more than was stored. */
+        public int originalLength;
+        public final byte[] value = new byte[SessionRecorder.MAX_PAYLOAD];
+    }
+
+    private final File[] mSegments;
+    private int mSegmentIndex = -1;
+    private MappedByteBuffer mBuffer;
+    private int mRecordCount;
+    private int mPosition;
+
+    /**
+     * @param directory Directory holding the segment files.
+     * @param prefix The recording's file name prefix, see {@link SessionRecorder#getPrefix()}.
+     */
+    public SessionLogReader(File directory, final String prefix) throws IOException {
+        final File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(SessionRecorder.FILE_SUFFIX);
+            }
+        });
+        if (segments == null || segments.length == 0) {
+            throw new IOException("No recording " + prefix + " in " + directory);
+        }
+        // Segment numbers are zero-padded, so name order is segment order.
+        Arrays.sort(segments);
+        mSegments = segments;
+    }
+
+    /**
+     * Reads the next record into {@code out}.
+     *
+     * @return false once every segment has been read.
+     * @throws IOException if a segment cannot be read, or holds a record for a characteristic
+     *         this build does not know, e.g. because it is corrupt.
+     */
+    public boolean next(Record out) throws IOException {
+        while (mBuffer == null || mPosition == mRecordCount) {
+            if (mSegmentIndex + 1 == mSegments.length) {
+                return false;
+            }
+            openSegment(++mSegmentIndex);
+        }
+        final int position = SessionRecorder.HEADER_SIZE + mPosition * SessionRecorder.RECORD_SIZE;
+        final MappedByteBuffer buffer = mBuffer;
+        out.timestampNanos = buffer.getLong(position + SessionRecorder.RECORD_TIMESTAMP);
+        out.type = buffer.get(position + SessionRecorder.RECORD_TYPE);
+        final int charIndex = buffer.get(position + SessionRecorder.RECORD_CHAR) & 0xFF;
+        if (charIndex != SessionRecorder.CHAR_UNKNOWN
+                && charIndex >= BotGattAttributes.CHAR_COUNT) {
+            throw new IOException("Invalid characteristic " + charIndex + " in record "
+                    + mPosition + " of " + mSegments[mSegmentIndex]);
+        }
+        out.charIndex = charIndex == SessionRecorder.CHAR_UNKNOWN ? -1 : charIndex;
+        out.length = Math.min(buffer.get(position + SessionRecorder.RECORD_LENGTH) & 0xFF,
+                SessionRecorder.MAX_PAYLOAD);
+        out.originalLength = buffer.get(position + SessionRecorder.RECORD_ORIGINAL_LENGTH) & 0xFF;
+        for (int i = 0; i < out.length; i++) {
+            out.value[i] = buffer.get(position + SessionRecorder.RECORD_PAYLOAD + i);
+        }
+        mPosition++;
+        return true;
+    }
+
+    public void close() {
+        mBuffer = null;
+        mSegmentIndex = mSegments.length;
+    }
+
+    private void openSegment(int index) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(mSegments[index], "r");
+        try {
+            final MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < SessionRecorder.HEADER_SIZE
+                    || buffer.getInt(SessionRecorder.HEADER_MAGIC) != SessionRecorder.MAGIC
+                    || buffer.getShort(SessionRecorder.HEADER_VERSION) != SessionRecorder.VERSION
+                    || buffer.getShort(SessionRecorder.HEADER_RECORD_SIZE)
+                            != SessionRecorder.RECORD_SIZE) {
+                throw new IOException("Not a session log segment: " + mSegments[index]);
+            }
+            final int capacity = (buffer.limit() - SessionRecorder.HEADER_SIZE)
+                    / SessionRecorder.RECORD_SIZE;
+            mRecordCount = Math.min(buffer.getInt(SessionRecorder.HEADER_COUNT), capacity);
+            mPosition = 0;
+            mBuffer = buffer;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+}
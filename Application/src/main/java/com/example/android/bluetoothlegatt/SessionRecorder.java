@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Appends the commands sent to one bot and the notifications received from it to a binary
+ * log of fixed-width records.
+ *
+ * The log is a sequence of memory-mapped segment files named
+ * {@code <address>-<start millis>-<segment>.bin}.  Each segment starts with a
+ * {@link #HEADER_SIZE}-byte header, followed by {@link #RECORD_SIZE}-byte records:
+ *
+ * <pre>
+ * header:  0 int    MAGIC             record:  0 long  timestamp (System.nanoTime)
+ *          4 short  VERSION                    8 byte  TYPE_*
+ *          6 short  RECORD_SIZE                9 byte  BotGattAttributes.CHAR_* or CHAR_UNKNOWN
+ *          8 int    HEADER_SIZE               10 byte  stored payload length
+ *         12 int    segment index             11 byte  original payload length (max 255)
+ *         16 long   start, wall clock ms      12 byte[MAX_PAYLOAD] payload
+ *         24 long   start, System.nanoTime
+ *         32 int    record count
+ *         40 long   first record timestamp
+ *         48 long   last record timestamp
+ *         56 byte[6] device address
+ * </pre>
+ *
+ * The record count and timestamps in the header are updated with every record, so a segment
+ * can be read back without scanning it.  All values are little-endian.
+ *
+ * Recording a record is a bounds check and a copy into the mapping under a short lock; the
+ * next segment is created and mapped on a background thread before the current one fills up.
+ * If it is not ready in time, records are dropped and counted rather than blocking the caller.
+ */
+public class SessionRecorder {
+    public static final int MAGIC = 0x52544F42;  // "BOTR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+    public static final int MAX_PAYLOAD = 20;
+    public static final String FILE_SUFFIX = ".bin";
+
+    public static final int TYPE_COMMAND = 1;
+    public static final int TYPE_NOTIFICATION = 2;
+    public static final int CHAR_UNKNOWN = 0xFF;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    // Header offsets.
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_RECORD_SIZE = 6;
+    static final int HEADER_HEADER_SIZE = 8;
+    static final int HEADER_SEGMENT = 12;
+    static final int HEADER_START_MILLIS = 16;
+    static final int HEADER_START_NANOS = 24;
+    static final int HEADER_COUNT = 32;
+    static final int HEADER_FIRST_NANOS = 40;
+    static final int HEADER_LAST_NANOS = 48;
+    static final int HEADER_ADDRESS = 56;
+
+    // Record offsets.
+    static final int RECORD_TIMESTAMP = 0;
+    static final int RECORD_TYPE = 8;
+    static final int RECORD_CHAR = 9;
+    static final int RECORD_LENGTH = 10;
+    static final int RECORD_ORIGINAL_LENGTH = 11;
+    static final int RECORD_PAYLOAD = 12;
+
+    private static final class Segment {
+        final int index;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int count;
+
+        Segment(int index, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File mDirectory;
+    private final String mPrefix;
+    private final byte[] mAddress;
+    private final int mSegmentSize;
+    private final int mRecordsPerSegment;
+    private final long mStartMillis;
+    private final long mStartNanos;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // All guarded by this.
+    private Segment mCurrent;
+    private Segment mNext;
+    private boolean mPreparing;
+    private boolean mClosed;
+    private long mRecorded;
+    private long mDropped;
+    private int mSegmentFailures;
+
+    /**
+     * Creates the first segment.
+     *
+     * @param directory Directory for the segment files; created if needed.
+     * @param address Address of the bot being recorded.
+     * @param segmentSize Size of each segment file in bytes.
+     */
+    public SessionRecorder(File directory, String address, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mStartMillis = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+        mPrefix = address.replace(":", "") + "-" + mStartMillis + "-";
+        mAddress = parseAddress(address);
+        mRecordsPerSegment = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+        mSegmentSize = HEADER_SIZE + mRecordsPerSegment * RECORD_SIZE;
+        mCurrent = createSegment(0);
+    }
+
+    public SessionRecorder(File directory, String address) throws IOException {
+        this(directory, address, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Appends a record.  Payloads longer than {@link #MAX_PAYLOAD} are truncated.
+     *
+     * @param type {@link #TYPE_COMMAND} or {@link #TYPE_NOTIFICATION}.
+     * @param charIndex A {@code BotGattAttributes.CHAR_*} index, or -1 for any other
+     *                  characteristic.
+     * @return false if the recorder is closed or the record had to be dropped.
+     */
+    public boolean record(int type, long timestampNanos, int charIndex, byte[] value) {
+        final int length = value == null ? 0 : value.length;
+        final int stored = Math.min(length, MAX_PAYLOAD);
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            Segment segment = mCurrent;
+            if (segment.count == mRecordsPerSegment) {
+                if (mNext == null) {
+                    mDropped++;
+                    prepareNextLocked();
+                    return false;
+                }
+                finishSegmentLocked(segment);
+                segment = mCurrent = mNext;
+                mNext = null;
+            }
+            final MappedByteBuffer buffer = segment.buffer;
+            final int position = HEADER_SIZE + segment.count * RECORD_SIZE;
+            buffer.putLong(position + RECORD_TIMESTAMP, timestampNanos);
+            buffer.put(position + RECORD_TYPE, (byte) type);
+            buffer.put(position + RECORD_CHAR, (byte) (charIndex < 0 ? CHAR_UNKNOWN : charIndex));
+            buffer.put(position + RECORD_LENGTH, (byte) stored);
+            buffer.put(position + RECORD_ORIGINAL_LENGTH, (byte) Math.min(length, 0xFF));
+            for (int i = 0; i < stored; i++) {
+                buffer.put(position + RECORD_PAYLOAD + i, value[i]);
+            }
+            if (segment.count == 0) {
+                buffer.putLong(HEADER_FIRST_NANOS, timestampNanos);
+            }
+            buffer.putLong(HEADER_LAST_NANOS, timestampNanos);
+            buffer.putInt(HEADER_COUNT, ++segment.count);
+            mRecorded++;
+            if (segment.count == mRecordsPerSegment / 2) {
+                prepareNextLocked();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops recording, flushes the segments to disk in the background and removes the
+     * segment that was prepared but never used.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            finishSegmentLocked(mCurrent);
+            if (mNext != null) {
+                discardSegmentLocked(mNext);
+                mNext = null;
+            }
+        }
+        mExecutor.shutdown();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return File name prefix shared by all segments of this recording.
+     */
+    public String getPrefix() {
+        return mPrefix;
+    }
+
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecorded;
+    }
+
+    /**
+     * @return Number of records dropped because the next segment was not ready.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mCurrent.index + 1;
+    }
+
+    /**
+     * @return Number of segments that could not be created.
+     */
+    public synchronized int getSegmentFailureCount() {
+        return mSegmentFailures;
+    }
+
+    private void prepareNextLocked() {
+        if (mPreparing || mNext != null) return;
+        mPreparing = true;
+        final int index = mCurrent.index + 1;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Segment segment = null;
+                try {
+                    segment = createSegment(index);
+                } catch (IOException e) {
+                    synchronized (SessionRecorder.this) {
+                        mSegmentFailures++;
+                    }
+                }
+                synchronized (SessionRecorder.this) {
+                    mPreparing = false;
+                    if (segment == null) return;
+                    if (mClosed) {
+                        discardSegmentLocked(segment);
+                    } else {
+                        mNext = segment;
+                    }
+                }
+            }
+        });
+    }
+
+    private void finishSegmentLocked(final Segment segment) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                segment.buffer.force();
+                closeQuietly(segment.raf);
+            }
+        });
+    }
+
+    private void discardSegmentLocked(final Segment segment) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly(segment.raf);
+                segment.file.delete();
+            }
+        });
+    }
+
+    private Segment createSegment(int index) throws IOException {
+        final File file = new File(mDirectory,
+                mPrefix + String.format("%04d", index) + FILE_SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(mSegmentSize);
+            final MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putShort(HEADER_VERSION, (short) VERSION);
+            buffer.putShort(HEADER_RECORD_SIZE, (short) RECORD_SIZE);
+            buffer.putInt(HEADER_HEADER_SIZE, HEADER_SIZE);
+            buffer.putInt(HEADER_SEGMENT, index);
+            buffer.putLong(HEADER_START_MILLIS, mStartMillis);
+            buffer.putLong(HEADER_START_NANOS, mStartNanos);
+            buffer.putInt(HEADER_COUNT, 0);
+            for (int i = 0; i < mAddress.length; i++) {
+                buffer.put(HEADER_ADDRESS + i, mAddress[i]);
+            }
+            return new Segment(index, file, raf, buffer);
+        } catch (IOException e) {
+            closeQuietly(raf);
+            file.delete();
+            throw e;
+        }
+    }
+
+    // "AA:BB:CC:DD:EE:FF" to six bytes; anything else is recorded as zeros.
+    private static byte[] parseAddress(String address) {
+        final byte[] bytes = new byte[6];
+        final String[] parts = address.split(":");
+        if (parts.length != bytes.length) return bytes;
+        try {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+            }
+        } catch (NumberFormatException e) {
+            return new byte[6];
+        }
+        return bytes;
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
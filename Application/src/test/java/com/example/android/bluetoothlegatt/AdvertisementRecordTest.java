@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class AdvertisementRecordTest {
+    private static final UUID OTHER_SERVICE =
+            UUID.fromString("12345678-9abc-def0-1122-334455667788");
+
+    private final AdvertisementRecord mRecord = new AdvertisementRecord();
+
+    @Test
+    public void parsesBotAdvertisement() {
+        final byte[] record = pad(31,
+                2, 0x01, 0x06,
+                3, 0x03, 0xF0, 0xFF,
+                2, 0x0A, 0xF4,
+                6, 0xFF, 0xFF, 0xFF, 87, 1, 2,
+                4, 0x09, 'B', 'o', 't');
+        assertTrue(mRecord.parse(record));
+        assertEquals(0x06, mRecord.getFlags());
+        assertEquals(-12, mRecord.getTxPowerLevel());
+        assertTrue(mRecord.isBot());
+        assertEquals("Bot", mRecord.getLocalName());
+        assertTrue(mRecord.localNameEquals("Bot"));
+        assertFalse(mRecord.localNameEquals("Bo"));
+        assertFalse(mRecord.localNameEquals("Bots"));
+        assertEquals(BotGattAttributes.BOT_MANUFACTURER_ID, mRecord.getManufacturerId());
+        assertEquals(87, mRecord.getBotBatteryPercent());
+        assertEquals(0x0102, mRecord.getBotFirmwareVersion());
+    }
+
+    @Test
+    public void rejectsNullAndEmptyRecords() {
+        assertFalse(mRecord.parse(null));
+        assertFalse(mRecord.isBot());
+        assertFalse(mRecord.parse(new byte[31]));
+        assertFalse(mRecord.parse(new byte[0]));
+        assertNull(mRecord.getLocalName());
+        assertTrue(mRecord.localNameEquals(null));
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getFlags());
+        assertEquals(Integer.MIN_VALUE, mRecord.getTxPowerLevel());
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getBotBatteryPercent());
+    }
+
+    @Test
+    public void stopsAtStructureRunningPastEnd() {
+        // The name claims 9 bytes but only 3 follow.
+        final byte[] record = bytes(
+                2, 0x01, 0x06,
+                10, 0x09, 'B', 'o', 't');
+        assertTrue(mRecord.parse(record));
+        assertEquals(0x06, mRecord.getFlags());
+        assertFalse(mRecord.hasLocalName());
+        assertNull(mRecord.getLocalName());
+    }
+
+    @Test
+    public void acceptsStructureEndingExactlyAtEnd() {
+        final byte[] record = bytes(4, 0x09, 'B', 'o', 't');
+        assertTrue(mRecord.parse(record));
+        assertEquals("Bot", mRecord.getLocalName());
+    }
+
+    @Test
+    public void lengthByteAsLastByteIsIgnored() {
+        final byte[] record = bytes(2, 0x01, 0x06, 5);
+        assertTrue(mRecord.parse(record));
+        assertEquals(0x06, mRecord.getFlags());
+    }
+
+    @Test
+    public void ignoresTooShortFields() {
+        final byte[] record = bytes(
+                1, 0x01,
+                1, 0x0A,
+                2, 0xFF, 0xFF);
+        assertTrue(mRecord.parse(record));
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getFlags());
+        assertEquals(Integer.MIN_VALUE, mRecord.getTxPowerLevel());
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getManufacturerId());
+    }
+
+    @Test
+    public void botStatusNeedsEnoughManufacturerData() {
+        final byte[] record = bytes(5, 0xFF, 0xFF, 0xFF, 87, 1);
+        assertTrue(mRecord.parse(record));
+        assertEquals(2, mRecord.getManufacturerDataLength());
+        assertEquals(87, mRecord.getManufacturerByte(0));
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getManufacturerByte(2));
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getManufacturerByte(-1));
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getBotBatteryPercent());
+        assertEquals(AdvertisementRecord.UNKNOWN, mRecord.getBotFirmwareVersion());
+    }
+
+    @Test
+    public void ignoresTruncatedUuidInList() {
+        // One whole 16-bit UUID, then half of the bot's.
+        final byte[] record = bytes(4, 0x03, 0x0F, 0x18, 0xF0);
+        assertTrue(mRecord.parse(record));
+        assertFalse(mRecord.isBot());
+        assertTrue(mRecord.hasServiceUuid(
+                UUID.fromString("0000180F-0000-1000-8000-00805F9B34FB")));
+    }
+
+    @Test
+    public void findsServiceUuidOfEveryWidth() {
+        final byte[] uuid32 = bytes(5, 0x05, 0xF0, 0xFF, 0x00, 0x00);
+        assertTrue(mRecord.parse(uuid32));
+        assertTrue(mRecord.isBot());
+
+        final byte[] uuid128 = new byte[18];
+        uuid128[0] = 17;
+        uuid128[1] = 0x07;
+        putUuid128(uuid128, 2, OTHER_SERVICE);
+        assertTrue(mRecord.parse(uuid128));
+        assertTrue(mRecord.hasServiceUuid(OTHER_SERVICE));
+        assertFalse(mRecord.isBot());
+
+        putUuid128(uuid128, 2, BotGattAttributes.BOT_SERVICE);
+        assertTrue(mRecord.parse(uuid128));
+        assertTrue(mRecord.isBot());
+    }
+
+    @Test
+    public void completeNameWinsOverShortName() {
+        final byte[] record = bytes(
+                3, 0x08, 'B', 'o',
+                4, 0x09, 'B', 'o', 't',
+                3, 0x08, 'X', 'Y');
+        assertTrue(mRecord.parse(record));
+        assertEquals("Bot", mRecord.getLocalName());
+    }
+
+    @Test
+    public void stopsNameAtMalformedUtf8() {
+        // 'A', then a two-byte sequence cut short by the end of the field.
+        final byte[] record = bytes(3, 0x09, 'A', 0xC3);
+        assertTrue(mRecord.parse(record));
+        assertEquals("A", mRecord.getLocalName());
+        assertFalse(mRecord.localNameEquals("A"));
+
+        final byte[] utf8 = bytes(3, 0x09, 0xC3, 0xA9);
+        assertTrue(mRecord.parse(utf8));
+        assertEquals("\u00e9", mRecord.getLocalName());
+        assertTrue(mRecord.localNameEquals("\u00e9"));
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    // A scan record padded with zeros, as the stack reports it.
+    private static byte[] pad(int length, int... values) {
+        final byte[] bytes = new byte[length];
+        System.arraycopy(bytes(values), 0, bytes, 0, values.length);
+        return bytes;
+    }
+
+    private static void putUuid128(byte[] record, int offset, UUID uuid) {
+        final long lsb = uuid.getLeastSignificantBits();
+        final long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            record[offset + i] = (byte) (lsb >>> (8 * i));
+            record[offset + 8 + i] = (byte) (msb >>> (8 * i));
+        }
+    }
+}
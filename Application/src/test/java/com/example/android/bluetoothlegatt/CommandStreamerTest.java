@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandStreamerTest {
+    private static final long MS = 1000000L;
+
+    private final SimulatedScheduler mScheduler = new SimulatedScheduler();
+    private final RecordingSink mSink = new RecordingSink();
+    private CommandStreamer mStreamer;
+
+    @Before
+    public void setUp() {
+        mStreamer = new CommandStreamer(mScheduler, mSink);
+    }
+
+    @Test
+    public void repeatsHeldCommandEveryPeriod() {
+        mStreamer.setCommand(50, -20, 0);
+        for (long t = 100; t <= 1000; t += 100) {
+            mScheduler.runUntil(t * MS - 1);
+            mStreamer.heartbeat();
+        }
+        mScheduler.runUntil(1000 * MS);
+
+        assertEquals(11, mSink.sent.size());
+        for (int i = 0; i < mSink.sent.size(); i++) {
+            assertEquals(i * 100 * MS, mSink.sent.get(i)[0]);
+            assertEquals(50, mSink.sent.get(i)[1]);
+            assertEquals(-20, mSink.sent.get(i)[2]);
+        }
+        assertEquals(0, mStreamer.getStats().deadManStops);
+    }
+
+    @Test
+    public void stopsBotOncePeriodAfterHeartbeatTimeout() {
+        final CommandStreamer.Config config = mStreamer.getConfig();
+        mStreamer.setCommand(50, 0, 0);
+        mScheduler.runFor(2000 * MS);
+
+        // The command itself counts as a heartbeat at 0, so the tick at 300 still drives and
+        // the one at 400 stops: within heartbeatTimeoutMs + periodMs.
+        final List<long[]> stops = mSink.stops();
+        assertEquals(config.stopRepeats + 1, stops.size());
+        assertEquals((config.heartbeatTimeoutMs + config.periodMs) * MS, stops.get(0)[0]);
+        for (int i = 1; i < stops.size(); i++) {
+            assertEquals(config.periodMs * MS, stops.get(i)[0] - stops.get(i - 1)[0]);
+        }
+        assertEquals(4 + stops.size(), mSink.sent.size());
+        assertEquals(1, mStreamer.getStats().deadManStops);
+
+        // Once the STOPs are out, the streamer is quiet.
+        assertEquals(0, mScheduler.getPendingCount());
+        assertTrue(mStreamer.heartbeat());
+        assertFalse(mStreamer.heartbeat());
+    }
+
+    @Test
+    public void honoursConfiguredCadence() {
+        final CommandStreamer.Config config = new CommandStreamer.Config();
+        config.periodMs = 40;
+        config.heartbeatTimeoutMs = 100;
+        config.stopRepeats = 1;
+        mStreamer.setConfig(config);
+        mStreamer.setCommand(10, 10, 0);
+        mScheduler.runFor(1000 * MS);
+
+        final List<long[]> stops = mSink.stops();
+        assertEquals(2, stops.size());
+        // Ticks at 40, 80 and 120; the one at 120 is the first past the timeout.
+        assertEquals(120 * MS, stops.get(0)[0]);
+        assertEquals(160 * MS, stops.get(1)[0]);
+    }
+
+    @Test
+    public void explicitStopIsRepeated() {
+        mStreamer.setCommand(50, 0, 0);
+        mScheduler.runUntil(250 * MS);
+        mStreamer.heartbeat();
+        mStreamer.stop();
+        mScheduler.runFor(2000 * MS);
+
+        final List<long[]> stops = mSink.stops();
+        assertEquals(mStreamer.getConfig().stopRepeats + 1, stops.size());
+        assertEquals(250 * MS, stops.get(0)[0]);
+        assertEquals(350 * MS, stops.get(1)[0]);
+        assertEquals(0, mStreamer.getStats().deadManStops);
+        assertFalse(mStreamer.heartbeat());
+    }
+
+    @Test
+    public void newCommandRestartsCadence() {
+        mStreamer.setCommand(50, 0, 0);
+        mScheduler.runUntil(150 * MS);
+        mStreamer.setCommand(60, 0, 7);
+        mScheduler.runUntil(250 * MS);
+
+        assertEquals(4, mSink.sent.size());
+        assertEquals(150 * MS, mSink.sent.get(2)[0]);
+        assertEquals(60, mSink.sent.get(2)[1]);
+        assertEquals(7, mSink.sent.get(2)[3]);
+        // Repetitions carry no input time.
+        assertEquals(250 * MS, mSink.sent.get(3)[0]);
+        assertEquals(0, mSink.sent.get(3)[3]);
+    }
+
+    // Records what the streamer sends as {time, speed, steering, inputNanos}.
+    private final class RecordingSink implements CommandStreamer.Sink {
+        final List<long[]> sent = new ArrayList<long[]>();
+
+        @Override
+        public boolean send(int speed, int steering, long inputNanos) {
+            sent.add(new long[] {mScheduler.nanoTime(), speed, steering, inputNanos});
+            return true;
+        }
+
+        List<long[]> stops() {
+            final List<long[]> stops = new ArrayList<long[]>();
+            for (long[] command : sent) {
+                if (command[1] == 0 && command[2] == 0) stops.add(command);
+            }
+            return stops;
+        }
+    }
+}
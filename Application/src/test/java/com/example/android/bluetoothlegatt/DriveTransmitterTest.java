@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DriveTransmitterTest {
+    private static final long MS = 1000000L;
+
+    private final SimulatedScheduler mScheduler = new SimulatedScheduler();
+    private final RecordingSink mSink = new RecordingSink(mScheduler);
+    private DriveTransmitter mTransmitter;
+
+    @Before
+    public void setUp() {
+        mTransmitter = new DriveTransmitter(mScheduler, mSink);
+    }
+
+    // Feeds a position at the current virtual time, as the touch screen would.
+    private void input(float x, float y) {
+        mTransmitter.setInput(x, y, mScheduler.nanoTime());
+    }
+
+    // Sweeps the speed from 0.2 to 1 over two seconds with the given number of touch events,
+    // and returns the number of writes.
+    private static int sweep(int events) {
+        final SimulatedScheduler scheduler = new SimulatedScheduler();
+        final RecordingSink sink = new RecordingSink(scheduler);
+        final DriveTransmitter transmitter = new DriveTransmitter(scheduler, sink);
+        final long durationNanos = 2000 * MS;
+        for (int i = 0; i <= events; i++) {
+            final long t = durationNanos * i / events;
+            scheduler.runUntil(t);
+            transmitter.setInput(0, 0.2f + 0.8f * i / events, t);
+        }
+        scheduler.runUntilIdle(100);
+        assertEquals(events + 1, transmitter.getStats().inputs);
+        // The stick is followed to within the change threshold.
+        final DriveTransmitter.Config config = transmitter.getConfig();
+        assertTrue(DriveTransmitter.quantize(1f, config.deadband) - sink.last()[1]
+                < config.threshold);
+        return sink.sent.size();
+    }
+
+    @Test
+    public void writesFollowInputChangeNotEventCount() {
+        final int sparse = sweep(200);
+        final int dense = sweep(2000);
+        // 89 drive units of travel at a threshold of 4: at most one write per 4 units.
+        final int span = DriveTransmitter.quantize(1f, 0.1f)
+                - DriveTransmitter.quantize(0.2f, 0.1f);
+        assertTrue("sparse=" + sparse, sparse <= 1 + span / 4);
+        assertTrue("dense=" + dense, dense <= 1 + span / 4);
+        assertTrue("sparse=" + sparse + " dense=" + dense, Math.abs(dense - sparse) <= 1);
+    }
+
+    @Test
+    public void heldPositionIsSentOnce() {
+        for (int i = 0; i < 1000; i++) {
+            mScheduler.runUntil(i * MS);
+            // Finger tremor, well below the change threshold.
+            input(0.3f + (i % 3) * 0.005f, 0.6f - (i % 2) * 0.005f);
+        }
+        mScheduler.runUntilIdle(100);
+
+        assertEquals(1, mSink.sent.size());
+        final DriveTransmitter.Stats stats = mTransmitter.getStats();
+        assertEquals(1000, stats.inputs);
+        assertEquals(1, stats.writes);
+        assertEquals(999, stats.suppressed);
+    }
+
+    @Test
+    public void inputsInsideDeadbandSendNothing() {
+        final float deadband = mTransmitter.getConfig().deadband;
+        for (int i = 0; i < 500; i++) {
+            mScheduler.runUntil(i * MS);
+            final float wobble = deadband * ((i % 21) - 10) / 10f;
+            input(wobble, -wobble);
+        }
+        mScheduler.runUntilIdle(100);
+
+        assertEquals(0, mSink.sent.size());
+        assertEquals(0, mScheduler.getPendingCount());
+        assertEquals(500, mTransmitter.getStats().suppressed);
+    }
+
+    @Test
+    public void returningToDeadbandStopsOnceAndAtOnce() {
+        input(0, 1);
+        mScheduler.runUntil(MS);
+        // Well inside the rate cap of the first command.
+        input(0.05f, 0.05f);
+        input(0, 0);
+        mScheduler.runUntilIdle(100);
+
+        assertEquals(2, mSink.sent.size());
+        assertEquals(MS, mSink.last()[0]);
+        assertEquals(0, mSink.last()[1]);
+        assertEquals(0, mSink.last()[2]);
+    }
+
+    @Test
+    public void rateCapHoldsUnderBurst() {
+        mSink.minIntervalNanos = 30 * MS;
+        // A flick back and forth: every event is a large change, 2000 of them within 100 ms.
+        for (int i = 0; i < 2000; i++) {
+            mScheduler.runUntil(i * MS / 20);
+            input((i % 7) / 7f, (i % 2 == 0) ? 1f : -1f);
+        }
+        mScheduler.runUntilIdle(100);
+
+        final long intervalNanos = Math.max(mTransmitter.getConfig().minIntervalMs * MS,
+                mSink.minIntervalNanos);
+        for (int i = 1; i < mSink.sent.size(); i++) {
+            final long gap = mSink.sent.get(i)[0] - mSink.sent.get(i - 1)[0];
+            assertTrue("gap " + gap + " at write " + i, gap >= intervalNanos);
+        }
+        // One immediate write, then one per interval for the rest of the burst and one held
+        // back past its end.
+        assertTrue("writes=" + mSink.sent.size(),
+                mSink.sent.size() <= 2 + 100 * MS / intervalNanos);
+        // The last position of the burst is the one that is sent last.
+        assertEquals(DriveTransmitter.quantize(-1f, 0.1f), mSink.last()[1]);
+        assertEquals(DriveTransmitter.quantize(1999 % 7 / 7f, 0.1f), mSink.last()[2]);
+        assertEquals(1999 * MS / 20, mSink.last()[3]);
+    }
+
+    private static final class RecordingSink implements DriveTransmitter.Sink {
+        final SimulatedScheduler scheduler;
+        final List<long[]> sent = new ArrayList<long[]>();
+        long minIntervalNanos;
+
+        RecordingSink(SimulatedScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public boolean send(int speed, int steering, long inputNanos) {
+            sent.add(new long[] {scheduler.nanoTime(), speed, steering, inputNanos});
+            return true;
+        }
+
+        @Override
+        public long getMinIntervalNanos() {
+            return minIntervalNanos;
+        }
+
+        long[] last() {
+            return sent.get(sent.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class GattOperationQueueTest {
+    private static final UUID SERVICE = UUID.fromString("0000a000-0000-1000-8000-00805f9b34fb");
+    private static final UUID MOTION = UUID.fromString("0000a001-0000-1000-8000-00805f9b34fb");
+    private static final UUID RELAY = UUID.fromString("0000a002-0000-1000-8000-00805f9b34fb");
+
+    private final SimulatedScheduler mScheduler = new SimulatedScheduler();
+    private final RecordingTransport mTransport = new RecordingTransport();
+    private final RecordingCallback mCallback = new RecordingCallback();
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new GattOperationQueue(mScheduler);
+        mQueue.setTransport(mTransport);
+    }
+
+    @Test
+    public void startsNextOperationOnlyAfterCompletion() {
+        mQueue.enqueue(GattOperationQueue.Operation.read(SERVICE, MOTION));
+        mQueue.enqueue(write(RELAY, 1));
+        mScheduler.runFor(0);
+        assertEquals(1, mTransport.issued.size());
+        assertEquals("read " + MOTION, mTransport.issued.get(0));
+
+        mQueue.onOperationComplete(GattOperationQueue.OP_READ, MOTION, GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(0);
+        assertEquals(2, mTransport.issued.size());
+        assertEquals("write " + RELAY + " 1", mTransport.issued.get(1));
+    }
+
+    @Test
+    public void ignoresCompletionForAnotherCharacteristic() {
+        mQueue.enqueue(write(MOTION, 1));
+        mQueue.enqueue(write(RELAY, 2));
+        mScheduler.runFor(0);
+
+        mQueue.onOperationComplete(GattOperationQueue.OP_WRITE, RELAY, GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(0);
+        assertEquals(1, mTransport.issued.size());
+        assertEquals(1, mQueue.getUnexpectedCompletionCount());
+    }
+
+    @Test
+    public void timeoutFailsOperationAndStartsNext() {
+        mQueue.enqueue(write(MOTION, 1).setTimeout(100).setCallback(mCallback));
+        mQueue.enqueue(write(RELAY, 2));
+        mScheduler.runFor(99000000L);
+        assertEquals(1, mTransport.issued.size());
+
+        mScheduler.runFor(1000000L);
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, mCallback.lastStatus);
+        assertEquals(1, mQueue.getTimeoutCount());
+        assertEquals(2, mTransport.issued.size());
+    }
+
+    @Test
+    public void latestWriteReplacesQueuedValueInPlace() {
+        final RecordingCallback first = new RecordingCallback();
+        final RecordingCallback second = new RecordingCallback();
+        mQueue.enqueue(GattOperationQueue.Operation.read(SERVICE, RELAY));
+        mQueue.enqueueLatest(write(MOTION, 1).setCallback(first));
+        mQueue.enqueue(write(RELAY, 7));
+        final GattOperationQueue.Operation latest = write(MOTION, 2).setCallback(second);
+        mQueue.enqueueLatest(latest);
+        mScheduler.runFor(0);
+
+        assertEquals(1, first.count);
+        assertEquals(GattOperationQueue.STATUS_SUPERSEDED, first.lastStatus);
+        assertSame(latest, first.lastOp);
+        assertEquals(1, mQueue.getCoalescedCount());
+        assertEquals(3, mQueue.getPendingCount());
+
+        completeAll();
+        final List<String> expected = new ArrayList<String>();
+        expected.add("read " + RELAY);
+        expected.add("write " + MOTION + " 2");
+        expected.add("write " + RELAY + " 7");
+        assertEquals(expected, mTransport.issued);
+        assertEquals(GattTransport.GATT_SUCCESS, second.lastStatus);
+        assertEquals(1, first.count);
+    }
+
+    @Test
+    public void latestWriteLeavesWriteInFlightAlone() {
+        final RecordingCallback first = new RecordingCallback();
+        mQueue.enqueueLatest(write(MOTION, 1).setCallback(first));
+        mScheduler.runFor(0);
+        mQueue.enqueueLatest(write(MOTION, 2));
+        mScheduler.runFor(0);
+
+        assertEquals(0, first.count);
+        assertEquals(0, mQueue.getCoalescedCount());
+        completeAll();
+        assertEquals(2, mTransport.issued.size());
+        assertEquals("write " + MOTION + " 1", mTransport.issued.get(0));
+        assertEquals("write " + MOTION + " 2", mTransport.issued.get(1));
+        assertEquals(GattTransport.GATT_SUCCESS, first.lastStatus);
+    }
+
+    @Test
+    public void latestWriteOnlyCollapsesSameCharacteristic() {
+        mQueue.enqueue(GattOperationQueue.Operation.read(SERVICE, MOTION));
+        mQueue.enqueueLatest(write(MOTION, 1));
+        mQueue.enqueueLatest(write(RELAY, 2));
+        mQueue.enqueueLatest(write(RELAY, 3));
+        mQueue.enqueueLatest(write(MOTION, 4));
+        mScheduler.runFor(0);
+
+        assertEquals(2, mQueue.getCoalescedCount());
+        completeAll();
+        assertEquals("write " + MOTION + " 4", mTransport.issued.get(1));
+        assertEquals("write " + RELAY + " 3", mTransport.issued.get(2));
+        assertEquals(3, mTransport.issued.size());
+    }
+
+    @Test
+    public void clearCancelsPendingAndInFlight() {
+        final RecordingCallback inFlight = new RecordingCallback();
+        final RecordingCallback pending = new RecordingCallback();
+        mQueue.enqueue(write(MOTION, 1).setCallback(inFlight));
+        mQueue.enqueue(write(RELAY, 2).setCallback(pending));
+        mScheduler.runFor(0);
+
+        mQueue.clear();
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, inFlight.lastStatus);
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, pending.lastStatus);
+        assertEquals(0, mQueue.getPendingCount());
+        // The timeout of the cancelled write must not fire later.
+        mScheduler.runFor(GattOperationQueue.DEFAULT_TIMEOUT_MS * 1000000L);
+        assertEquals(1, inFlight.count);
+        assertEquals(0, mQueue.getTimeoutCount());
+    }
+
+    @Test
+    public void rejectedOperationFailsWithNotStarted() {
+        mTransport.accept = false;
+        mQueue.enqueue(write(MOTION, 1).setCallback(mCallback));
+        mScheduler.runFor(0);
+        assertEquals(GattOperationQueue.STATUS_NOT_STARTED, mCallback.lastStatus);
+        assertEquals(1, mQueue.getRejectedWriteCount());
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+    @Test
+    public void holdsOperationsUntilTransportIsBound() {
+        final GattOperationQueue queue = new GattOperationQueue(mScheduler);
+        queue.enqueue(write(MOTION, 1));
+        mScheduler.runFor(0);
+        assertEquals(0, mTransport.issued.size());
+
+        queue.setTransport(mTransport);
+        mScheduler.runFor(0);
+        assertEquals(1, mTransport.issued.size());
+    }
+
+    @Test
+    public void writeValueIsSentAsQueued() {
+        final byte[] value = new byte[] {3, 4};
+        mQueue.enqueue(GattOperationQueue.Operation.write(SERVICE, MOTION, value));
+        mScheduler.runFor(0);
+        assertArrayEquals(value, mTransport.lastValue);
+    }
+
+    private static GattOperationQueue.Operation write(UUID characteristic, int value) {
+        return GattOperationQueue.Operation.write(SERVICE, characteristic,
+                new byte[] {(byte) value});
+    }
+
+    // Acknowledges whatever is in flight until the queue is empty.
+    private void completeAll() {
+        mScheduler.runFor(0);
+        int completed = 0;
+        while (mQueue.getPendingCount() > 0) {
+            final String last = mTransport.issued.get(mTransport.issued.size() - 1);
+            final String[] parts = last.split(" ");
+            final int type = "read".equals(parts[0]) ? GattOperationQueue.OP_READ
+                    : GattOperationQueue.OP_WRITE;
+            mQueue.onOperationComplete(type, UUID.fromString(parts[1]),
+                    GattTransport.GATT_SUCCESS);
+            mScheduler.runFor(0);
+            if (++completed > 100) throw new AssertionError("Queue does not drain");
+        }
+    }
+
+    private static final class RecordingCallback implements GattOperationQueue.Callback {
+        int count;
+        int lastStatus = Integer.MIN_VALUE;
+        GattOperationQueue.Operation lastOp;
+
+        @Override
+        public void onOperationComplete(GattOperationQueue.Operation op, int status) {
+            count++;
+            lastStatus = status;
+            lastOp = op;
+        }
+    }
+
+    // Records what the queue asks of the stack; completions are delivered by the test.
+    private static final class RecordingTransport implements GattTransport {
+        final List<String> issued = new ArrayList<String>();
+        byte[] lastValue;
+        boolean accept = true;
+
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean discoverServices() {
+            issued.add("discover");
+            return accept;
+        }
+
+        @Override
+        public int getCharacteristicProperties(UUID service, UUID characteristic) {
+            return PROPERTY_WRITE;
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+            issued.add("read " + characteristic);
+            return accept;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                           int writeType) {
+            issued.add("write " + characteristic + " " + value[0]);
+            lastValue = value;
+            return accept;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor,
+                                       byte[] value) {
+            issued.add("descriptor " + characteristic);
+            return accept;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                     boolean enabled) {
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            issued.add("mtu " + mtu);
+            return accept;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private static final long US = 1000;
+    // Far above every value under test, so that percentiles are not capped by the maximum.
+    private static final long LARGE = 1000000 * US;
+
+    // Upper bound reported for the bucket of the given value, which is recorded next to a
+    // larger one and so is the 50th percentile.
+    private static long boundOf(long nanos) {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(nanos);
+        histogram.record(LARGE);
+        return histogram.getPercentile(50);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.p99Nanos);
+        assertEquals(0, snapshot.meanNanos);
+    }
+
+    @Test
+    public void ignoresNegativeValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void bucketsBelowEightMicrosecondsAreOneMicrosecondWide() {
+        assertEquals(US - 1, boundOf(0));
+        assertEquals(US - 1, boundOf(500));
+        assertEquals(2 * US - 1, boundOf(US));
+        assertEquals(2 * US - 1, boundOf(2 * US - 1));
+        assertEquals(8 * US - 1, boundOf(7 * US));
+    }
+
+    @Test
+    public void bucketBoundariesFollowPowersOfTwo() {
+        // 8 to 15 us: eight buckets of 1 us.
+        assertEquals(9 * US - 1, boundOf(8 * US));
+        assertEquals(16 * US - 1, boundOf(15 * US));
+        // 16 to 31 us: eight buckets of 2 us.
+        assertEquals(18 * US - 1, boundOf(16 * US));
+        assertEquals(18 * US - 1, boundOf(18 * US - 1));
+        assertEquals(20 * US - 1, boundOf(18 * US));
+        assertEquals(32 * US - 1, boundOf(31 * US));
+        // 1024 to 2047 us: eight buckets of 128 us.
+        assertEquals(1152 * US - 1, boundOf(1024 * US));
+        assertEquals(2048 * US - 1, boundOf(2047 * US));
+    }
+
+    @Test
+    public void percentilesAreCappedByTheMaximum() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(300);
+        assertEquals(300, histogram.getPercentile(50));
+        histogram.record(1500 * US);
+        assertEquals(1500 * US, histogram.getPercentile(100));
+        assertEquals(1500 * US, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesBoundTheTrueValue() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * US);
+        }
+        final double[] percentiles = {1, 10, 50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            final long exact = (long) Math.ceil(percentile * 10) * US;
+            final long reported = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue(percentile + ": " + reported + " too far above " + exact,
+                    reported <= exact + exact / 8 + US);
+        }
+        assertEquals(1000 * US, histogram.getPercentile(100));
+        assertEquals(500500 * US / 1000, histogram.getSnapshot().meanNanos);
+    }
+
+    @Test
+    public void overflowBucketReportsTheMaximum() {
+        final long limitMicros = 1L << 36;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record((limitMicros - 1) * US);
+        histogram.record(limitMicros * US);
+        histogram.record((limitMicros + (7L << 33)) * US);
+        histogram.record(Long.MAX_VALUE);
+
+        // The last regular bucket still has a bound below the overflow.
+        assertEquals(limitMicros * US - 1, histogram.getPercentile(25));
+        // Everything from 2^36 us up is only known to be at most the maximum.
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(75));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5 * US);
+        histogram.record(LARGE);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.meanNanos);
+
+        histogram.record(3 * US);
+        assertEquals(1, histogram.getCount());
+        assertEquals(3 * US, histogram.getPercentile(50));
+        assertEquals(3 * US, histogram.getSnapshot().meanNanos);
+    }
+}
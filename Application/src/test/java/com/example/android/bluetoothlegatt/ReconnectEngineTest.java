@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ReconnectEngineTest {
+    private static final long MS = 1000000L;
+
+    private final SimulatedScheduler mScheduler = new SimulatedScheduler();
+    private final RecordingTarget mTarget = new RecordingTarget();
+    private ReconnectEngine.Config mConfig;
+    private ReconnectEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mConfig = new ReconnectEngine.Config();
+        // Without jitter the backoff delays are exact.
+        mConfig.jitter = 0;
+        mEngine = new ReconnectEngine(mScheduler, mConfig, mTarget, new Random(1));
+    }
+
+    @Test
+    public void ignoresLinkLossUntilControllable() {
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(60000 * MS);
+        assertEquals(0, mTarget.attempts.size());
+        assertFalse(mEngine.isRecovering());
+    }
+
+    @Test
+    public void reusesTransportFirstAndRecordsTimeToControllable() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_CONN_TIMEOUT);
+        mScheduler.runFor(0);
+        assertEquals(1, mTarget.attempts.size());
+        assertEquals(ReconnectEngine.ATTEMPT_REUSE, mTarget.kind(0));
+
+        mScheduler.runFor(30 * MS);
+        mEngine.onConnected();
+        mScheduler.runFor(20 * MS);
+        mEngine.onControllable();
+
+        final ReconnectEngine.Stats stats = mEngine.getStats();
+        assertFalse(stats.recovering);
+        assertEquals(1, stats.recoveries);
+        assertEquals(50 * MS, stats.lastTimeToControllableNanos);
+        // Neither timeout fires after the recovery.
+        mScheduler.runFor(60000 * MS);
+        assertEquals(1, mTarget.attempts.size());
+        assertEquals(0, mTarget.cancels);
+    }
+
+    @Test
+    public void errorStatusSkipsReuse() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_ERROR);
+        mScheduler.runFor(0);
+        assertEquals(ReconnectEngine.ATTEMPT_DIRECT, mTarget.kind(0));
+    }
+
+    @Test
+    public void backsOffThenFallsBackToAutoConnectThenGivesUp() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(60000 * MS);
+
+        // One reuse and five direct attempts, each abandoned after attemptTimeoutMs and
+        // followed by a doubling delay, then one autoConnect attempt with a longer timeout.
+        assertEquals(mConfig.directAttempts + 1, mTarget.attempts.size());
+        assertEquals(ReconnectEngine.ATTEMPT_REUSE, mTarget.kind(0));
+        for (int i = 1; i < mConfig.directAttempts; i++) {
+            assertEquals(ReconnectEngine.ATTEMPT_DIRECT, mTarget.kind(i));
+            final long delayMs = Math.min(mConfig.baseDelayMs << (i - 1), mConfig.maxDelayMs);
+            assertEquals((mConfig.attemptTimeoutMs + delayMs) * MS,
+                    mTarget.time(i) - mTarget.time(i - 1));
+        }
+        assertEquals(ReconnectEngine.ATTEMPT_AUTO_CONNECT,
+                mTarget.kind(mConfig.directAttempts));
+        assertEquals(mConfig.directAttempts, mTarget.cancels);
+        assertTrue(mEngine.isRecovering());
+        assertEquals(0, mTarget.gaveUp);
+
+        // The autoConnect attempt failing ends the recovery.
+        mEngine.onDisconnected(GattTransport.GATT_ERROR);
+        mScheduler.runFor(60000 * MS);
+        assertEquals(mConfig.directAttempts + 1, mTarget.attempts.size());
+        assertFalse(mEngine.isRecovering());
+        assertEquals(1, mEngine.getStats().failures);
+        assertEquals(1, mTarget.gaveUp);
+
+        // Disarmed after giving up, so a further loss is ignored.
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(60000 * MS);
+        assertEquals(mConfig.directAttempts + 1, mTarget.attempts.size());
+    }
+
+    @Test
+    public void givesUpWhenAutoConnectTimesOut() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(60000 * MS);
+        final long autoConnectNanos = mTarget.time(mConfig.directAttempts);
+        assertEquals(ReconnectEngine.ATTEMPT_AUTO_CONNECT,
+                mTarget.kind(mConfig.directAttempts));
+
+        mScheduler.runUntil(autoConnectNanos + mConfig.autoConnectTimeoutMs * MS - 1);
+        assertTrue(mEngine.isRecovering());
+        assertEquals(mConfig.directAttempts, mTarget.cancels);
+
+        // The autoConnect transport is abandoned, and the next turn finds no attempt left.
+        mScheduler.runFor(1 + mConfig.maxDelayMs * MS);
+        assertEquals(mConfig.directAttempts + 1, mTarget.cancels);
+        assertFalse(mEngine.isRecovering());
+        assertEquals(1, mTarget.gaveUp);
+        assertEquals(1, mEngine.getStats().failures);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void givesUpWithoutFallback() {
+        mConfig.autoConnectFallback = false;
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(60000 * MS);
+        assertEquals(mConfig.directAttempts, mTarget.attempts.size());
+        assertFalse(mEngine.isRecovering());
+        assertEquals(1, mTarget.gaveUp);
+    }
+
+    @Test
+    public void abandonsAttemptThatNeverBecomesControllable() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(10 * MS);
+        mEngine.onConnected();
+
+        // The attempt timeout no longer applies once the link is up.
+        mScheduler.runFor(mConfig.setupTimeoutMs * MS - 1);
+        assertEquals(0, mTarget.cancels);
+        mScheduler.runFor(1);
+        assertEquals(1, mTarget.cancels);
+        assertTrue(mEngine.isRecovering());
+
+        // The abandoned transport is not reused.
+        mScheduler.runFor(mConfig.baseDelayMs * MS);
+        assertEquals(2, mTarget.attempts.size());
+        assertEquals(ReconnectEngine.ATTEMPT_DIRECT, mTarget.kind(1));
+        assertFalse(mEngine.retryNow());
+    }
+
+    @Test
+    public void disconnectDuringSetupCancelsSetupTimeout() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(0);
+        mEngine.onConnected();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(mConfig.baseDelayMs * MS);
+        assertEquals(2, mTarget.attempts.size());
+
+        mEngine.onConnected();
+        mEngine.onControllable();
+        mScheduler.runFor(60000 * MS);
+        assertEquals(0, mTarget.cancels);
+        assertEquals(1, mEngine.getStats().recoveries);
+    }
+
+    @Test
+    public void attemptThatCannotStartIsRetriedFresh() {
+        mTarget.accept = false;
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(0);
+        mTarget.accept = true;
+        mScheduler.runFor(mConfig.baseDelayMs * MS);
+        assertEquals(2, mTarget.attempts.size());
+        assertEquals(ReconnectEngine.ATTEMPT_DIRECT, mTarget.kind(1));
+        assertEquals(mConfig.baseDelayMs * MS, mTarget.time(1) - mTarget.time(0));
+    }
+
+    @Test
+    public void retryNowSkipsBackoff() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(0);
+        // Busy with an attempt.
+        assertFalse(mEngine.retryNow());
+
+        mScheduler.runFor(mConfig.attemptTimeoutMs * MS);
+        assertTrue(mEngine.retryNow());
+        mScheduler.runFor(0);
+        assertEquals(2, mTarget.attempts.size());
+        assertEquals(mConfig.attemptTimeoutMs * MS, mTarget.time(1));
+    }
+
+    @Test
+    public void disarmStopsRecovery() {
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(0);
+        mEngine.disarm();
+        mScheduler.runFor(60000 * MS);
+        assertEquals(1, mTarget.attempts.size());
+        assertEquals(0, mTarget.cancels);
+        assertFalse(mEngine.isRecovering());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void disabledConfigDoesNotRecover() {
+        mConfig.enabled = false;
+        mEngine.onControllable();
+        mEngine.onDisconnected(GattTransport.GATT_SUCCESS);
+        mScheduler.runFor(60000 * MS);
+        assertEquals(0, mTarget.attempts.size());
+    }
+
+    // Records every attempt as {time, kind}; outcomes are reported by the test.
+    private final class RecordingTarget implements ReconnectEngine.Target {
+        final List<long[]> attempts = new ArrayList<long[]>();
+        int cancels;
+        int gaveUp;
+        boolean accept = true;
+
+        @Override
+        public boolean startAttempt(int kind) {
+            attempts.add(new long[] {mScheduler.nanoTime(), kind});
+            return accept;
+        }
+
+        @Override
+        public void cancelAttempt() {
+            cancels++;
+        }
+
+        @Override
+        public void onGaveUp() {
+            gaveUp++;
+        }
+
+        long time(int index) {
+            return attempts.get(index)[0];
+        }
+
+        int kind(int index) {
+            return (int) attempts.get(index)[1];
+        }
+    }
+}
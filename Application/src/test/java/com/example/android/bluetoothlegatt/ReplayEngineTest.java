@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReplayEngineTest {
+    private static final long MS = 1000000L;
+    private static final int RECORDS = 10;
+
+    private final SimulatedScheduler mScheduler = new SimulatedScheduler();
+    private final RecordingSink mSink = new RecordingSink();
+    private File mDirectory;
+    private String mPrefix;
+
+    // Records 0 to RECORDS - 1 at 100 ms intervals, starting at an arbitrary 5 s; even ones are
+    // commands carrying their number, odd ones notifications.
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("replay", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        final SessionRecorder recorder = new SessionRecorder(mDirectory, SimulatedLink.ADDRESS);
+        for (int i = 0; i < RECORDS; i++) {
+            recorder.record(i % 2 == 0 ? SessionRecorder.TYPE_COMMAND
+                            : SessionRecorder.TYPE_NOTIFICATION,
+                    5000 * MS + i * 100 * MS, BotGattAttributes.CHAR_MOTION,
+                    new byte[] {(byte) i});
+        }
+        recorder.close();
+        mPrefix = recorder.getPrefix();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void replaysAtRecordedPace() throws IOException {
+        final ReplayEngine engine = newEngine();
+        mScheduler.runFor(1000 * MS);
+        engine.start();
+        mScheduler.runFor(10000 * MS);
+
+        assertTrue(engine.isFinished());
+        assertEquals(RECORDS, mSink.received.size());
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(1000 * MS + i * 100 * MS, mSink.time(i));
+            assertEquals(i, mSink.value(i));
+            assertEquals(i % 2 == 0, mSink.isCommand(i));
+        }
+        final ReplayEngine.Stats stats = engine.getStats();
+        assertEquals(RECORDS / 2, stats.commands);
+        assertEquals(RECORDS / 2, stats.notifications);
+        assertEquals(900 * MS, stats.elapsedNanos);
+        assertEquals(0, stats.maxLagNanos);
+        assertFalse(stats.cancelled);
+    }
+
+    @Test
+    public void scalesPaceWithSpeed() throws IOException {
+        final ReplayEngine engine = newEngine().setSpeed(4);
+        engine.start();
+        mScheduler.runFor(10000 * MS);
+        assertEquals(RECORDS, mSink.received.size());
+        assertEquals(25 * MS, mSink.time(1));
+        assertEquals((RECORDS - 1) * 25 * MS, mSink.time(RECORDS - 1));
+    }
+
+    @Test
+    public void replaysWithoutWaitingAsFastAsPossible() throws IOException {
+        final ReplayEngine engine = newEngine().setSpeed(ReplayEngine.AS_FAST_AS_POSSIBLE);
+        engine.start();
+        mScheduler.runFor(0);
+        assertTrue(engine.isFinished());
+        assertEquals(RECORDS, mSink.received.size());
+        assertEquals(0, mSink.time(RECORDS - 1));
+    }
+
+    @Test
+    public void speedChangeTakesEffectFromNextRecord() throws IOException {
+        final ReplayEngine engine = newEngine();
+        engine.start();
+        mScheduler.runFor(250 * MS);
+        assertEquals(3, mSink.received.size());
+        engine.setSpeed(2);
+        mScheduler.runFor(10000 * MS);
+        // Record 3 was due at 300 ms; the new pace starts from there.
+        assertEquals(300 * MS, mSink.time(3));
+        assertEquals(350 * MS, mSink.time(4));
+    }
+
+    @Test
+    public void cancelStopsBeforeNextRecord() throws IOException {
+        final ReplayEngine engine = newEngine();
+        engine.start();
+        mScheduler.runFor(150 * MS);
+        engine.cancel();
+        mScheduler.runFor(0);
+
+        assertTrue(engine.isFinished());
+        assertTrue(engine.getStats().cancelled);
+        assertEquals(2, mSink.received.size());
+        assertEquals(150 * MS, engine.getStats().elapsedNanos);
+        mScheduler.runFor(10000 * MS);
+        assertEquals(2, mSink.received.size());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void stopsAtRecordForUnknownCharacteristic() throws IOException {
+        final File directory = new File(mDirectory, "corrupt");
+        final SessionRecorder recorder = new SessionRecorder(directory, SimulatedLink.ADDRESS);
+        recorder.record(SessionRecorder.TYPE_COMMAND, 0, BotGattAttributes.CHAR_MOTION,
+                new byte[] {1});
+        recorder.record(SessionRecorder.TYPE_NOTIFICATION, 0, BotGattAttributes.CHAR_COUNT,
+                new byte[] {2});
+        recorder.record(SessionRecorder.TYPE_COMMAND, 0, -1, new byte[] {3});
+        recorder.close();
+
+        final ReplayEngine engine = new ReplayEngine(mScheduler,
+                new SessionLogReader(directory, recorder.getPrefix()), mSink);
+        engine.start();
+        mScheduler.runFor(0);
+        assertTrue(engine.isFinished());
+        assertTrue(engine.getStats().error != null);
+        assertEquals(1, mSink.received.size());
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startsOnlyOnce() throws IOException {
+        final ReplayEngine engine = newEngine();
+        engine.start();
+        engine.start();
+    }
+
+    private ReplayEngine newEngine() throws IOException {
+        return new ReplayEngine(mScheduler, new SessionLogReader(mDirectory, mPrefix), mSink);
+    }
+
+    // Records what the engine delivers as {time, type, value}.
+    private final class RecordingSink implements ReplayEngine.Sink {
+        final List<long[]> received = new ArrayList<long[]>();
+
+        @Override
+        public void onCommand(int charIndex, byte[] value, int length) {
+            received.add(new long[] {mScheduler.nanoTime(), SessionRecorder.TYPE_COMMAND,
+                    value[0]});
+        }
+
+        @Override
+        public void onNotification(int charIndex, byte[] value, int length) {
+            received.add(new long[] {mScheduler.nanoTime(), SessionRecorder.TYPE_NOTIFICATION,
+                    value[0]});
+        }
+
+        long time(int index) {
+            return received.get(index)[0];
+        }
+
+        long value(int index) {
+            return received.get(index)[2];
+        }
+
+        boolean isCommand(int index) {
+            return received.get(index)[1] == SessionRecorder.TYPE_COMMAND;
+        }
+    }
+}
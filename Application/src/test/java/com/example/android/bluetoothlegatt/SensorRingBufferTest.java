@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SensorRingBufferTest {
+    private final SensorSample mSample = new SensorSample();
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new SensorRingBuffer(1).getCapacity());
+        assertEquals(8, new SensorRingBuffer(5).getCapacity());
+        assertEquals(64, new SensorRingBuffer(64).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new SensorRingBuffer(0);
+    }
+
+    @Test
+    public void pollsSamplesInOrder() {
+        final SensorRingBuffer buffer = new SensorRingBuffer(4);
+        final SensorRingBuffer.Cursor cursor = buffer.newCursor();
+        assertFalse(cursor.poll(mSample));
+
+        buffer.publish(10, 1, 2, 3, 4);
+        buffer.publish(20, 0xFFFF, 0, 0xFFFF, 0);
+        assertEquals(2, cursor.available());
+
+        assertTrue(cursor.poll(mSample));
+        assertEquals(10, mSample.timestampNanos);
+        assertEquals(1, mSample.distance);
+        assertEquals(2, mSample.left);
+        assertEquals(3, mSample.right);
+        assertEquals(4, mSample.behind);
+
+        assertTrue(cursor.poll(mSample));
+        assertEquals(20, mSample.timestampNanos);
+        assertEquals(0xFFFF, mSample.distance);
+        assertEquals(0, mSample.left);
+        assertEquals(0xFFFF, mSample.right);
+        assertEquals(0, mSample.behind);
+
+        assertFalse(cursor.poll(mSample));
+        assertEquals(20, mSample.timestampNanos);
+        assertEquals(0, cursor.getOverrunCount());
+    }
+
+    @Test
+    public void newCursorOnlySeesLaterSamples() {
+        final SensorRingBuffer buffer = new SensorRingBuffer(4);
+        publish(buffer, 0, 3);
+        final SensorRingBuffer.Cursor cursor = buffer.newCursor();
+        assertEquals(0, cursor.available());
+        publish(buffer, 3, 1);
+        assertTrue(cursor.poll(mSample));
+        assertEquals(3, mSample.timestampNanos);
+    }
+
+    @Test
+    public void overwritesOldestAndCountsOverruns() {
+        final SensorRingBuffer buffer = new SensorRingBuffer(4);
+        final SensorRingBuffer.Cursor cursor = buffer.newCursor();
+        publish(buffer, 0, 10);
+        assertEquals(10, buffer.getPublishedCount());
+        assertEquals(4, cursor.available());
+
+        // Samples 0 to 5 were overwritten, and sample 6 shares its slot with the next one to
+        // be published, so the cursor resumes at sample 7.
+        for (int i = 7; i < 10; i++) {
+            assertTrue(cursor.poll(mSample));
+            assertEquals(i, mSample.timestampNanos);
+            assertEquals(i, mSample.distance);
+        }
+        assertFalse(cursor.poll(mSample));
+        assertEquals(7, cursor.getOverrunCount());
+    }
+
+    @Test
+    public void cursorFromOldestStartsAtOldestRetained() {
+        final SensorRingBuffer buffer = new SensorRingBuffer(4);
+        publish(buffer, 0, 2);
+        SensorRingBuffer.Cursor cursor = buffer.newCursorFromOldest();
+        assertTrue(cursor.poll(mSample));
+        assertEquals(0, mSample.timestampNanos);
+
+        // Once the ring has wrapped, the oldest sample is the one the producer writes over
+        // next, so reading starts after it.
+        publish(buffer, 2, 5);
+        cursor = buffer.newCursorFromOldest();
+        assertTrue(cursor.poll(mSample));
+        assertEquals(4, mSample.timestampNanos);
+        assertEquals(1, cursor.getOverrunCount());
+    }
+
+    @Test
+    public void cursorsReadIndependently() {
+        final SensorRingBuffer buffer = new SensorRingBuffer(4);
+        final SensorRingBuffer.Cursor fast = buffer.newCursor();
+        final SensorRingBuffer.Cursor slow = buffer.newCursor();
+        publish(buffer, 0, 2);
+        assertTrue(fast.poll(mSample));
+        assertTrue(fast.poll(mSample));
+        assertEquals(2, slow.available());
+
+        fast.skipToLatest();
+        slow.skipToLatest();
+        assertEquals(0, slow.available());
+        assertEquals(0, slow.getOverrunCount());
+    }
+
+    // A consumer lapped by a producer on another thread must skip what was overwritten and
+    // never return a sample mixed from two writes.
+    @Test(timeout = 10000)
+    public void lappedReaderNeverSeesTornSamples() throws InterruptedException {
+        final int count = 200000;
+        final SensorRingBuffer buffer = new SensorRingBuffer(8);
+        final SensorRingBuffer.Cursor cursor = buffer.newCursor();
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publish(buffer, 0, count);
+            }
+        });
+        producer.start();
+
+        long polled = 0;
+        long last = -1;
+        while (producer.isAlive() || cursor.available() > 0) {
+            if (!cursor.poll(mSample)) continue;
+            final long sequence = mSample.timestampNanos;
+            assertTrue("Out of order: " + sequence + " after " + last, sequence > last);
+            final int expected = (int) (sequence & 0xFFFF);
+            assertEquals(expected, mSample.distance);
+            assertEquals(expected, mSample.left);
+            assertEquals(expected, mSample.right);
+            assertEquals(expected, mSample.behind);
+            last = sequence;
+            polled++;
+        }
+        producer.join();
+        assertEquals(count - 1, last);
+        assertEquals(count, polled + cursor.getOverrunCount());
+    }
+
+    // Publishes samples first to first + count - 1, each carrying its number in every field.
+    private static void publish(SensorRingBuffer buffer, long first, int count) {
+        for (long i = first; i < first + count; i++) {
+            final int value = (int) (i & 0xFFFF);
+            buffer.publish(i, value, value, value, value);
+        }
+    }
+}
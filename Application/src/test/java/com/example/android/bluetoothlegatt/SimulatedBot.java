@@ -0,0 +1,847 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A bot peripheral simulated in plain Java, seen through the {@link GattTransport} a real one
+ * would be reached by.  It implements the {@link BotGattAttributes} service: motion, four
+ * relays, the optional command frame and periodic sensor notifications.
+ *
+ * The link is modelled at the level that matters for command latency and throughput:
+ * <ul>
+ * <li>Packets only move at connection events, every connection interval.  The interval
+ *     follows {@link #requestConnectionPriority(int)}.</li>
+ * <li>Each transmission is lost, and retried at the next event, with probability
+ *     {@link Config#lossRate}; delivery then gets up to {@link Config#jitterNanos} of extra
+ *     latency.</li>
+ * <li>A request and its response take at least one event each way.  Writes without response
+ *     are accepted into a {@link Config#txBufferPackets} deep buffer that drains at
+ *     {@link Config#packetsPerEvent} per event.</li>
+ * <li>Like {@code BluetoothGatt}, only one request may be outstanding, and further requests
+ *     are rejected (counted as busy rejections) until its callback has been delivered.</li>
+ * <li>The bot can be taken out of range with {@link #setInRange(boolean)}.  The link then
+ *     drops after the supervision timeout; direct connection attempts fail after
+ *     {@link Config#directConnectTimeoutNanos}, background ones wait for the bot to return.
+ *     </li>
+ * </ul>
+ *
+ * All timing comes from the {@link Scheduler}.  With a {@link SimulatedScheduler} and a fixed
+ * {@link Config#seed}, a run is fully repeatable.
+ */
+public class SimulatedBot implements GattTransport {
+
+    /**
+     * Link and peripheral parameters.  Durations are in nanoseconds.
+     */
+    public static class Config {
+        public long connectionIntervalNanos = 30000000L;
+        public long highPriorityIntervalNanos = 11250000L;
+        public long lowPowerIntervalNanos = 100000000L;
+        /** Upper bound of the uniformly distributed extra latency added to each delivery. */
+        public long jitterNanos;
+        /** Probability that a single transmission has to be retried at the next event. */
+        public double lossRate;
+        public int packetsPerEvent = 4;
+        public int txBufferPackets = 8;
+        /** Time the local stack takes to accept a write without response. */
+        public long stackLatencyNanos = 1000000L;
+        public long connectNanos = 50000000L;
+        /** Time without packets after which a link to a bot out of range is reported lost. */
+        public long supervisionTimeoutNanos = 2000000000L;
+        /** Time after which the stack gives up a direct connection with GATT_ERROR. */
+        public long directConnectTimeoutNanos = 30000000000L;
+        /** Number of connection events service discovery takes. */
+        public int discoveryEvents = 8;
+        public int maxMtu = 247;
+        public boolean commandFrameSupported = true;
+        public boolean driveFrameSupported = true;
+        public long sensorPeriodNanos = 100000000L;
+        public long seed = 1;
+    }
+
+    /**
+     * Receives every write as it is applied by the simulated bot, e.g. to measure end-to-end
+     * latency.  Called on the scheduler's thread.
+     */
+    public interface Observer {
+        void onWriteApplied(int charIndex, byte[] value, long nanos);
+    }
+
+    /**
+     * Creates one simulated bot per address, all sharing a scheduler and configuration.
+     */
+    public static class Factory implements GattTransport.Factory {
+        private final Scheduler mScheduler;
+        private final Config mConfig;
+        private final HashMap<String, SimulatedBot> mBots = new HashMap<String, SimulatedBot>();
+
+        public Factory(Scheduler scheduler, Config config) {
+            mScheduler = scheduler;
+            mConfig = config;
+        }
+
+        @Override
+        public GattTransport create(String address, boolean autoConnect,
+                                    GattTransport.Callback callback) {
+            final SimulatedBot bot;
+            synchronized (mBots) {
+                final SimulatedBot previous = mBots.get(address);
+                bot = new SimulatedBot(mScheduler, mConfig, address, callback);
+                // The bot's position does not depend on which client talks to it.
+                if (previous != null) bot.mInRange = previous.isInRange();
+                mBots.put(address, bot);
+            }
+            bot.connect(autoConnect);
+            return bot;
+        }
+
+        /**
+         * @return The bot most recently created for the address, or null.
+         */
+        public SimulatedBot getBot(String address) {
+            synchronized (mBots) {
+                return mBots.get(address);
+            }
+        }
+    }
+
+    private static final int ATT_DEFAULT_MTU = 23;
+    private static final int[] PROPERTIES = new int[BotGattAttributes.CHAR_COUNT];
+    static {
+        PROPERTIES[BotGattAttributes.CHAR_MOTION] = PROPERTY_READ | PROPERTY_WRITE
+                | PROPERTY_WRITE_NO_RESPONSE;
+        for (int i = BotGattAttributes.CHAR_RELAY1; i <= BotGattAttributes.CHAR_RELAY4; i++) {
+            PROPERTIES[i] = PROPERTY_READ | PROPERTY_WRITE;
+        }
+        PROPERTIES[BotGattAttributes.CHAR_COMMAND] = PROPERTY_READ | PROPERTY_WRITE
+                | PROPERTY_WRITE_NO_RESPONSE;
+        PROPERTIES[BotGattAttributes.CHAR_SENSOR] = PROPERTY_READ | PROPERTY_NOTIFY;
+        PROPERTIES[BotGattAttributes.CHAR_DRIVE] = PROPERTY_READ | PROPERTY_WRITE
+                | PROPERTY_WRITE_NO_RESPONSE;
+    }
+    private static final UUID CLIENT_CHAR_CONFIG =
+            UUID.fromString(BotGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final Scheduler mScheduler;
+    private final Config mConfig;
+    private final GattTransport.Callback mCallback;
+    private final Random mRandom;
+    private volatile Observer mObserver;
+
+    // Link state, all guarded by this.  Scheduled tasks carry the generation they were created
+    // in and do nothing once a disconnect has moved it on.
+    private int mGeneration;
+    private boolean mClosed;
+    private boolean mConnecting;
+    private boolean mConnected;
+    private boolean mInRange = true;
+    // Counts range changes, so that a pending link loss is dropped when the bot comes back.
+    private int mRangeEpoch;
+    private boolean mAutoConnect;
+    private boolean mDiscovered;
+    private boolean mBusy;
+    private long mAnchorNanos;
+    private long mIntervalNanos;
+    private long mTxEventNanos = -1;
+    private int mTxEventPackets;
+    private int mTxQueued;
+    private int mMtu = ATT_DEFAULT_MTU;
+    private boolean mNotifyRegistered;
+    private boolean mSensorEnabled;
+
+    // Bot state.
+    private int mMotion = BotGattAttributes.STOP;
+    // Latest drive frame; the motion above follows it.
+    private int mSpeed;
+    private int mSteering;
+    private final int[] mRelays = {BotGattAttributes.RELAY_OFF, BotGattAttributes.RELAY_OFF,
+            BotGattAttributes.RELAY_OFF, BotGattAttributes.RELAY_OFF};
+    private int mDistance = 200;
+    private int mLeft = 100;
+    private int mRight = 100;
+    private int mBehind = 200;
+
+    // Counters.
+    private long mWritesApplied;
+    private long mBusyRejections;
+    private long mRetransmissions;
+    private long mNotificationsSent;
+
+    public SimulatedBot(Scheduler scheduler, Config config, String address,
+                        GattTransport.Callback callback) {
+        mScheduler = scheduler;
+        mConfig = config;
+        mCallback = callback;
+        mRandom = new Random(config.seed ^ address.hashCode());
+        mIntervalNanos = config.connectionIntervalNanos;
+    }
+
+    public void setObserver(Observer observer) {
+        mObserver = observer;
+    }
+
+    @Override
+    public boolean connect() {
+        return connect(true);
+    }
+
+    private boolean connect(boolean autoConnect) {
+        final boolean inRange;
+        synchronized (this) {
+            if (mClosed) return false;
+            if (mConnected || mConnecting) return true;
+            mConnecting = true;
+            mAutoConnect = autoConnect;
+            ++mGeneration;
+            inRange = mInRange;
+        }
+        if (inRange) {
+            scheduleConnection();
+        } else if (!autoConnect) {
+            scheduleConnectFailure();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the bot into or out of radio range.
+     */
+    public void setInRange(boolean inRange) {
+        final boolean connecting;
+        final boolean connected;
+        synchronized (this) {
+            if (mInRange == inRange) return;
+            mInRange = inRange;
+            mRangeEpoch++;
+            connecting = mConnecting;
+            connected = mConnected;
+            // A pending connection starts over; an established one just loses its packets.
+            if (mConnecting) ++mGeneration;
+        }
+        if (inRange && connecting) {
+            scheduleConnection();
+        } else if (!inRange && connecting) {
+            synchronized (this) {
+                if (mAutoConnect) return;
+            }
+            scheduleConnectFailure();
+        } else if (!inRange && connected) {
+            scheduleLinkLoss();
+        }
+    }
+
+    public synchronized boolean isInRange() {
+        return mInRange;
+    }
+
+    private void scheduleConnection() {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        schedule(mConfig.connectNanos, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration) return;
+                    mConnecting = false;
+                    mConnected = true;
+                    mDiscovered = false;
+                    mBusy = false;
+                    mTxQueued = 0;
+                    mTxEventNanos = -1;
+                    mMtu = ATT_DEFAULT_MTU;
+                    mSensorEnabled = false;
+                    mIntervalNanos = mConfig.connectionIntervalNanos;
+                    mAnchorNanos = mScheduler.nanoTime();
+                }
+                mCallback.onConnectionStateChange(GATT_SUCCESS, true);
+            }
+        });
+    }
+
+    private void scheduleConnectFailure() {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        schedule(mConfig.directConnectTimeoutNanos, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration) return;
+                    mConnecting = false;
+                    ++mGeneration;
+                }
+                mCallback.onConnectionStateChange(GATT_ERROR, false);
+            }
+        });
+    }
+
+    private void scheduleLinkLoss() {
+        final int generation;
+        final int epoch;
+        synchronized (this) {
+            generation = mGeneration;
+            epoch = mRangeEpoch;
+        }
+        schedule(mConfig.supervisionTimeoutNanos, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration || epoch != mRangeEpoch) return;
+                    mConnected = false;
+                    ++mGeneration;
+                }
+                mCallback.onConnectionStateChange(GATT_CONN_TIMEOUT, false);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        final int generation;
+        final long delay;
+        synchronized (this) {
+            if (mClosed || (!mConnected && !mConnecting)) return;
+            mConnected = false;
+            mConnecting = false;
+            generation = ++mGeneration;
+            delay = mIntervalNanos;
+        }
+        schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration) return;
+                }
+                mCallback.onConnectionStateChange(GATT_SUCCESS, false);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mConnected = false;
+        mConnecting = false;
+        mGeneration++;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final int generation;
+        final long delay;
+        synchronized (this) {
+            if (!startRequestLocked()) return false;
+            generation = mGeneration;
+            final long now = mScheduler.nanoTime();
+            delay = nextEventLocked(now) + (mConfig.discoveryEvents - 1) * mIntervalNanos - now;
+        }
+        schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration || !mInRange) return;
+                    mDiscovered = true;
+                    mBusy = false;
+                }
+                mCallback.onServicesDiscovered(GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized int getCharacteristicProperties(UUID service, UUID characteristic) {
+        final int index = indexOf(service, characteristic);
+        return index < 0 ? -1 : PROPERTIES[index];
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, final UUID characteristic) {
+        final int index;
+        synchronized (this) {
+            index = indexOf(service, characteristic);
+            if (index < 0 || (PROPERTIES[index] & PROPERTY_READ) == 0
+                    || !startRequestLocked()) {
+                return false;
+            }
+        }
+        request(new Request() {
+            @Override
+            void apply() {
+            }
+
+            @Override
+            void complete() {
+                final byte[] value;
+                synchronized (SimulatedBot.this) {
+                    value = readValueLocked(index);
+                }
+                mCallback.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, final UUID characteristic, byte[] value,
+                                       int writeType) {
+        final byte[] copy = value.clone();
+        final int index;
+        synchronized (this) {
+            index = indexOf(service, characteristic);
+            if (index < 0) return false;
+            final int required = writeType == WRITE_TYPE_NO_RESPONSE
+                    ? PROPERTY_WRITE_NO_RESPONSE : PROPERTY_WRITE;
+            if ((PROPERTIES[index] & required) == 0) return false;
+            if (writeType == WRITE_TYPE_NO_RESPONSE && mTxQueued >= mConfig.txBufferPackets) {
+                mBusyRejections++;
+                return false;
+            }
+            if (!startRequestLocked()) return false;
+        }
+        if (writeType == WRITE_TYPE_NO_RESPONSE) {
+            writeWithoutResponse(index, characteristic, copy);
+        } else {
+            request(new Request() {
+                @Override
+                void apply() {
+                    applyWrite(index, copy);
+                }
+
+                @Override
+                void complete() {
+                    mCallback.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, final UUID characteristic,
+                                   final UUID descriptor, byte[] value) {
+        final boolean enable = value.length > 0 && (value[0] & 0x01) != 0;
+        synchronized (this) {
+            if (indexOf(service, characteristic) != BotGattAttributes.CHAR_SENSOR
+                    || !CLIENT_CHAR_CONFIG.equals(descriptor) || !startRequestLocked()) {
+                return false;
+            }
+        }
+        request(new Request() {
+            @Override
+            void apply() {
+                final boolean start;
+                synchronized (SimulatedBot.this) {
+                    start = enable && !mSensorEnabled;
+                    mSensorEnabled = enable;
+                }
+                if (start) {
+                    startSensor();
+                }
+            }
+
+            @Override
+            void complete() {
+                mCallback.onDescriptorWrite(characteristic, descriptor, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                                                              boolean enabled) {
+        if (indexOf(service, characteristic) != BotGattAttributes.CHAR_SENSOR) return false;
+        mNotifyRegistered = enabled;
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        synchronized (this) {
+            if (!startRequestLocked()) return false;
+        }
+        request(new Request() {
+            @Override
+            void apply() {
+                synchronized (SimulatedBot.this) {
+                    mMtu = Math.max(ATT_DEFAULT_MTU, Math.min(mtu, mConfig.maxMtu));
+                }
+            }
+
+            @Override
+            void complete() {
+                final int negotiated;
+                synchronized (SimulatedBot.this) {
+                    negotiated = mMtu;
+                }
+                mCallback.onMtuChanged(negotiated, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority) {
+        if (!mConnected) return false;
+        // The new interval takes effect from the next connection event.
+        mAnchorNanos = nextEventLocked(mScheduler.nanoTime());
+        mTxEventNanos = -1;
+        switch (priority) {
+            case CONNECTION_PRIORITY_HIGH:
+                mIntervalNanos = mConfig.highPriorityIntervalNanos;
+                break;
+            case CONNECTION_PRIORITY_LOW_POWER:
+                mIntervalNanos = mConfig.lowPowerIntervalNanos;
+                break;
+            default:
+                mIntervalNanos = mConfig.connectionIntervalNanos;
+                break;
+        }
+        return true;
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    public synchronized long getConnectionInterval() {
+        return mIntervalNanos;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized int getMotion() {
+        return mMotion;
+    }
+
+    public synchronized int getSpeed() {
+        return mSpeed;
+    }
+
+    public synchronized int getSteering() {
+        return mSteering;
+    }
+
+    /**
+     * @param idx Relay number, 1 to 4.
+     * @return {@code BotGattAttributes.RELAY_ON} or {@code RELAY_OFF}.
+     */
+    public synchronized int getRelay(int idx) {
+        return mRelays[idx - 1];
+    }
+
+    public synchronized long getWritesApplied() {
+        return mWritesApplied;
+    }
+
+    /**
+     * @return Number of requests rejected because one was outstanding or the buffer for
+     *         writes without response was full.
+     */
+    public synchronized long getBusyRejections() {
+        return mBusyRejections;
+    }
+
+    public synchronized long getRetransmissions() {
+        return mRetransmissions;
+    }
+
+    public synchronized long getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    // A request/response exchange: the request reaches the bot at a connection event, where
+    // it is applied, and the response comes back at a later one.
+    private abstract class Request implements Runnable {
+        final int generation;
+        boolean delivered;
+
+        Request() {
+            synchronized (SimulatedBot.this) {
+                generation = mGeneration;
+            }
+        }
+
+        abstract void apply();
+
+        abstract void complete();
+
+        @Override
+        public void run() {
+            final long delay;
+            synchronized (SimulatedBot.this) {
+                // Out of range, neither the request nor its response gets through.
+                if (generation != mGeneration || !mInRange) return;
+                if (delivered) {
+                    mBusy = false;
+                    delay = -1;
+                } else {
+                    delivered = true;
+                    final long now = mScheduler.nanoTime();
+                    delay = transmitLocked(now + 1) - now;
+                }
+            }
+            if (delay < 0) {
+                complete();
+            } else {
+                apply();
+                schedule(delay, this);
+            }
+        }
+    }
+
+    private void request(Request request) {
+        final long delay;
+        synchronized (this) {
+            final long now = mScheduler.nanoTime();
+            delay = transmitLocked(now) - now;
+        }
+        schedule(delay, request);
+    }
+
+    private void writeWithoutResponse(final int index, final UUID characteristic,
+                                      final byte[] value) {
+        final int generation;
+        final long delay;
+        synchronized (this) {
+            generation = mGeneration;
+            mTxQueued++;
+            final long now = mScheduler.nanoTime();
+            long event = nextEventLocked(now);
+            if (event < mTxEventNanos) event = mTxEventNanos;
+            if (event == mTxEventNanos && mTxEventPackets >= mConfig.packetsPerEvent) {
+                event += mIntervalNanos;
+            }
+            if (event != mTxEventNanos) {
+                mTxEventNanos = event;
+                mTxEventPackets = 0;
+            }
+            mTxEventPackets++;
+            delay = retransmitLocked(event) - now;
+        }
+        // The local stack hands the packet to the controller and reports the write done.
+        schedule(mConfig.stackLatencyNanos, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration) return;
+                    mBusy = false;
+                }
+                mCallback.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+            }
+        });
+        schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration) return;
+                    mTxQueued--;
+                    if (!mInRange) return;
+                }
+                applyWrite(index, value);
+            }
+        });
+    }
+
+    private void applyWrite(int index, byte[] value) {
+        final long now;
+        synchronized (this) {
+            now = mScheduler.nanoTime();
+            if (index == BotGattAttributes.CHAR_COMMAND) {
+                if (value.length < BotGattAttributes.COMMAND_FRAME_LENGTH) return;
+                mMotion = value[BotGattAttributes.COMMAND_FRAME_MOTION] & 0xFF;
+                final int mask = value[BotGattAttributes.COMMAND_FRAME_RELAYS];
+                for (int i = 0; i < mRelays.length; i++) {
+                    mRelays[i] = (mask & BotGattAttributes.relayBit(i + 1)) != 0
+                            ? BotGattAttributes.RELAY_ON : BotGattAttributes.RELAY_OFF;
+                }
+            } else if (index == BotGattAttributes.CHAR_DRIVE) {
+                if (value.length < BotGattAttributes.DRIVE_FRAME_LENGTH) return;
+                mSpeed = value[BotGattAttributes.DRIVE_FRAME_SPEED];
+                mSteering = value[BotGattAttributes.DRIVE_FRAME_STEERING];
+                mMotion = BotGattAttributes.driveMotion(mSpeed, mSteering);
+            } else if (value.length > 0) {
+                if (index == BotGattAttributes.CHAR_MOTION) {
+                    mMotion = value[0] & 0xFF;
+                } else {
+                    mRelays[index - BotGattAttributes.CHAR_RELAY1] = value[0] & 0xFF;
+                }
+            }
+            mWritesApplied++;
+        }
+        final Observer observer = mObserver;
+        if (observer != null) {
+            observer.onWriteApplied(index, value, now);
+        }
+    }
+
+    private void startSensor() {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        schedule(mConfig.sensorPeriodNanos, new Runnable() {
+            @Override
+            public void run() {
+                final byte[] frame;
+                final long delay;
+                synchronized (SimulatedBot.this) {
+                    if (generation != mGeneration || !mSensorEnabled) return;
+                    updateSensorsLocked();
+                    frame = readValueLocked(BotGattAttributes.CHAR_SENSOR);
+                    final long now = mScheduler.nanoTime();
+                    delay = transmitLocked(now) - now;
+                }
+                schedule(delay, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (SimulatedBot.this) {
+                            if (generation != mGeneration || !mInRange
+                                    || !mNotifyRegistered) {
+                                return;
+                            }
+                            mNotificationsSent++;
+                        }
+                        mCallback.onCharacteristicChanged(
+                                BotGattAttributes.BOT_CHARACTERISTICS[
+                                        BotGattAttributes.CHAR_SENSOR], frame);
+                    }
+                });
+                schedule(mConfig.sensorPeriodNanos, this);
+            }
+        });
+    }
+
+    // Moves the simulated obstacles according to the current motion, with a little noise.
+    private void updateSensorsLocked() {
+        final int step = 2;
+        switch (mMotion) {
+            case BotGattAttributes.FORWARD:
+                mDistance -= step;
+                mBehind += step;
+                break;
+            case BotGattAttributes.BACK:
+                mDistance += step;
+                mBehind -= step;
+                break;
+            case BotGattAttributes.LEFT:
+                mLeft -= step;
+                mRight += step;
+                break;
+            case BotGattAttributes.RIGHT:
+                mLeft += step;
+                mRight -= step;
+                break;
+        }
+        mDistance = clamp(mDistance + mRandom.nextInt(3) - 1);
+        mLeft = clamp(mLeft + mRandom.nextInt(3) - 1);
+        mRight = clamp(mRight + mRandom.nextInt(3) - 1);
+        mBehind = clamp(mBehind + mRandom.nextInt(3) - 1);
+    }
+
+    private static int clamp(int cm) {
+        return Math.max(5, Math.min(400, cm));
+    }
+
+    private byte[] readValueLocked(int index) {
+        switch (index) {
+            case BotGattAttributes.CHAR_MOTION:
+                return new byte[] {(byte) mMotion};
+            case BotGattAttributes.CHAR_COMMAND: {
+                int mask = 0;
+                for (int i = 0; i < mRelays.length; i++) {
+                    if (mRelays[i] == BotGattAttributes.RELAY_ON) {
+                        mask |= BotGattAttributes.relayBit(i + 1);
+                    }
+                }
+                return new byte[] {(byte) mMotion, (byte) mask};
+            }
+            case BotGattAttributes.CHAR_DRIVE:
+                return new byte[] {(byte) mSpeed, (byte) mSteering};
+            case BotGattAttributes.CHAR_SENSOR: {
+                final byte[] frame = new byte[BotGattAttributes.SENSOR_FRAME_LENGTH];
+                putUint16(frame, BotGattAttributes.SENSOR_FRAME_DISTANCE, mDistance);
+                putUint16(frame, BotGattAttributes.SENSOR_FRAME_LEFT, mLeft);
+                putUint16(frame, BotGattAttributes.SENSOR_FRAME_RIGHT, mRight);
+                putUint16(frame, BotGattAttributes.SENSOR_FRAME_BEHIND, mBehind);
+                return frame;
+            }
+            default:
+                return new byte[] {(byte) mRelays[index - BotGattAttributes.CHAR_RELAY1]};
+        }
+    }
+
+    private static void putUint16(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) value;
+        frame[offset + 1] = (byte) (value >> 8);
+    }
+
+    private int indexOf(UUID service, UUID characteristic) {
+        if (!mDiscovered || !BotGattAttributes.BOT_SERVICE.equals(service)) return -1;
+        final int index = BotGattAttributes.indexOf(characteristic);
+        if (index == BotGattAttributes.CHAR_COMMAND && !mConfig.commandFrameSupported) return -1;
+        if (index == BotGattAttributes.CHAR_DRIVE && !mConfig.driveFrameSupported) return -1;
+        return index;
+    }
+
+    // Claims the single request slot, as BluetoothGatt does.
+    private boolean startRequestLocked() {
+        if (!mConnected) return false;
+        if (mBusy) {
+            mBusyRejections++;
+            return false;
+        }
+        mBusy = true;
+        return true;
+    }
+
+    private long nextEventLocked(long nanos) {
+        if (nanos <= mAnchorNanos) return mAnchorNanos;
+        final long events = (nanos - mAnchorNanos + mIntervalNanos - 1) / mIntervalNanos;
+        return mAnchorNanos + events * mIntervalNanos;
+    }
+
+    // Time at which a packet queued at the given time reaches the other side.
+    private long transmitLocked(long nanos) {
+        return retransmitLocked(nextEventLocked(nanos));
+    }
+
+    private long retransmitLocked(long event) {
+        while (mConfig.lossRate > 0 && mRandom.nextDouble() < mConfig.lossRate) {
+            event += mIntervalNanos;
+            mRetransmissions++;
+        }
+        if (mConfig.jitterNanos > 0) {
+            event += (long) (mRandom.nextDouble() * mConfig.jitterNanos);
+        }
+        return event;
+    }
+
+    private void schedule(long delayNanos, Runnable task) {
+        mScheduler.postDelayedNanos(task, delayNanos);
+    }
+}
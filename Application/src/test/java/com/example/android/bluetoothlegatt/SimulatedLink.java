@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * A {@link BotSession} connected to a {@link SimulatedBot} in virtual time: the part of what
+ * {@code BluetoothLeService} sets up for a bot that does not need the framework.  Transport
+ * completions go to the session's queue; nothing else is dispatched.
+ *
+ * Everything runs on the thread that calls the {@link SimulatedScheduler}'s {@code run*}
+ * methods.
+ */
+public class SimulatedLink {
+    public static final String ADDRESS = "00:11:22:33:44:55";
+
+    private final SimulatedScheduler mScheduler = new SimulatedScheduler();
+    private final SimulatedBot.Factory mFactory;
+    private final BotSession mSession;
+
+    public SimulatedLink(SimulatedBot.Config config) {
+        mFactory = new SimulatedBot.Factory(mScheduler, config);
+        mSession = new BotSession(ADDRESS, mScheduler);
+        // The service's defaults.
+        mSession.managePriority = true;
+        mSession.idlePriorityDelayMs = BluetoothLeService.DEFAULT_IDLE_PRIORITY_DELAY_MS;
+    }
+
+    /**
+     * Connects to the bot, discovers its services and resolves the bot characteristics.
+     *
+     * @param timeoutNanos Virtual time to wait for the link.
+     * @throws IllegalStateException if the bot did not connect in time.
+     */
+    public void connect(long timeoutNanos) {
+        final BotSession session = mSession;
+        session.transport = mFactory.create(ADDRESS, false, new QueueCallback(session.queue));
+        session.queue.setTransport(session.transport);
+        mScheduler.runFor(timeoutNanos);
+        if (!getBot().isConnected()) {
+            throw new IllegalStateException("Simulated bot did not connect");
+        }
+        session.connectionState = BluetoothLeService.STATE_CONNECTED;
+        if (!session.resolveCharacteristics()) {
+            throw new IllegalStateException("Bot service not found");
+        }
+    }
+
+    public SimulatedScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public BotSession getSession() {
+        return mSession;
+    }
+
+    public SimulatedBot getBot() {
+        return mFactory.getBot(ADDRESS);
+    }
+
+    // Routes transport completions to the queue, like BluetoothLeService's session callback.
+    private static final class QueueCallback implements GattTransport.Callback {
+        private final GattOperationQueue mQueue;
+
+        QueueCallback(GattOperationQueue queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void onConnectionStateChange(int status, boolean connected) {
+            if (connected) {
+                mQueue.enqueue(GattOperationQueue.Operation.discoverServices());
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+            mQueue.onOperationComplete(GattOperationQueue.OP_DISCOVER_SERVICES, null, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+            mQueue.onOperationComplete(GattOperationQueue.OP_READ, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, int status) {
+            mQueue.onOperationComplete(GattOperationQueue.OP_WRITE, characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+            mQueue.onOperationComplete(GattOperationQueue.OP_WRITE_DESCRIPTOR, characteristic,
+                    status);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+            mQueue.onOperationComplete(GattOperationQueue.OP_REQUEST_MTU, null, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+        }
+    }
+}
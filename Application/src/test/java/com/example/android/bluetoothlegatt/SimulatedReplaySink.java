@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Feeds a {@link ReplayEngine} into a {@link SimulatedLink}'s session the way
+ * {@code BluetoothLeService}'s replay sink does: commands go through the session's write path
+ * to the {@link SimulatedBot}, and sensor notifications are decoded into the session's sample
+ * and buffer.  Nothing is dispatched or recorded.
+ *
+ * Run the engine on the link's scheduler.
+ */
+public class SimulatedReplaySink implements ReplayEngine.Sink {
+    private final BotSession mSession;
+    private long mCommandsRejected;
+
+    public SimulatedReplaySink(BotSession session) {
+        mSession = session;
+    }
+
+    @Override
+    public void onCommand(int charIndex, byte[] value, int length) {
+        final BotSession session = mSession;
+        final boolean queued;
+        if (charIndex == BotGattAttributes.CHAR_COMMAND
+                && length == BotGattAttributes.COMMAND_FRAME_LENGTH) {
+            queued = session.writeScene(value[BotGattAttributes.COMMAND_FRAME_MOTION] & 0xFF,
+                    value[BotGattAttributes.COMMAND_FRAME_RELAYS] & 0xFF, 0);
+        } else if (charIndex == BotGattAttributes.CHAR_MOTION && length == 1) {
+            queued = session.writeMotion(value[0] & 0xFF, 0);
+        } else if (charIndex >= 0 && charIndex < BotGattAttributes.CHAR_COUNT && length == 1) {
+            queued = session.writeCommand(charIndex,
+                    BluetoothLeService.UINT8_VALUES[value[0] & 0xFF], null, 0);
+        } else {
+            queued = false;
+        }
+        if (!queued) mCommandsRejected++;
+    }
+
+    @Override
+    public void onNotification(int charIndex, byte[] value, int length) {
+        final BotSession session = mSession;
+        synchronized (session) {
+            session.notificationsReceived++;
+            if (charIndex == BotGattAttributes.CHAR_SENSOR
+                    && length >= BotGattAttributes.SENSOR_FRAME_LENGTH
+                    && session.sensorSample.decode(value, session.scheduler.nanoTime())) {
+                session.sensorBuffer.publish(session.sensorSample);
+            }
+        }
+    }
+
+    /**
+     * @return Replayed commands the session's write path did not queue.
+     */
+    public long getCommandsRejected() {
+        return mCommandsRejected;
+    }
+}
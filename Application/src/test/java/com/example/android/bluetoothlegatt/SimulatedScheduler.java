@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * {@link Scheduler} with a virtual clock.  Nothing runs until the owner calls one of the
+ * {@code run*} methods, which execute due tasks in time order (ties in posting order) and
+ * advance the clock to each task's due time.  Given the same inputs, a simulation therefore
+ * produces the same sequence of events every time, however fast the host machine is.
+ *
+ * Tasks may be posted from any thread, but should only be run from one.
+ */
+public class SimulatedScheduler implements Scheduler {
+
+    private static final class Task implements Comparable<Task> {
+        final long dueNanos;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long dueNanos, long sequence, Runnable runnable) {
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueNanos != other.dueNanos) return dueNanos < other.dueNanos ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+    private long mNowNanos;
+    private long mSequence;
+
+    @Override
+    public synchronized long nanoTime() {
+        return mNowNanos;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        postDelayedNanos(task, delayMs * 1000000L);
+    }
+
+    @Override
+    public synchronized void postDelayedNanos(Runnable task, long delayNanos) {
+        mTasks.add(new Task(mNowNanos + Math.max(0, delayNanos), mSequence++, task));
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable task) {
+        final Iterator<Task> it = mTasks.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == task) it.remove();
+        }
+    }
+
+    /**
+     * Runs the earliest pending task.
+     *
+     * @return false if there was none.
+     */
+    public boolean runNext() {
+        final Task task;
+        synchronized (this) {
+            task = mTasks.poll();
+            if (task == null) return false;
+            if (task.dueNanos > mNowNanos) mNowNanos = task.dueNanos;
+        }
+        task.runnable.run();
+        return true;
+    }
+
+    /**
+     * Runs every task due up to {@code nanos} and then sets the clock to it.
+     */
+    public void runUntil(long nanos) {
+        while (true) {
+            synchronized (this) {
+                final Task next = mTasks.peek();
+                if (next == null || next.dueNanos > nanos) {
+                    if (nanos > mNowNanos) mNowNanos = nanos;
+                    return;
+                }
+            }
+            runNext();
+        }
+    }
+
+    public void runFor(long nanos) {
+        runUntil(nanoTime() + nanos);
+    }
+
+    /**
+     * Runs tasks until none are left, or at most {@code maxTasks} of them, for simulations
+     * with periodic tasks that never go idle.
+     *
+     * @return Number of tasks run.
+     */
+    public int runUntilIdle(int maxTasks) {
+        int count = 0;
+        while (count < maxTasks && runNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized int getPendingCount() {
+        return mTasks.size();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BotGattAttributes} lookups, by name and by index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AttributeLookupBenchmark {
+    private static final String UNKNOWN = "Unknown";
+
+    // Not final, so that the JIT cannot fold the lookups into constants.
+    private String mMotionString = BotGattAttributes.bot_motion_char_uuid;
+    private UUID mMotionUuid =
+            BotGattAttributes.BOT_CHARACTERISTICS[BotGattAttributes.CHAR_MOTION];
+    private String mForeignString = "00002a00-0000-1000-8000-00805f9b34fb";
+
+    @Benchmark
+    public String lookupString() {
+        return BotGattAttributes.lookup(mMotionString, UNKNOWN);
+    }
+
+    @Benchmark
+    public String lookupMissing() {
+        return BotGattAttributes.lookup(mForeignString, UNKNOWN);
+    }
+
+    /**
+     * The way the device list names characteristics: from a {@code UUID}, formatted first.
+     */
+    @Benchmark
+    public String lookupUuidToString() {
+        return BotGattAttributes.lookup(mMotionUuid.toString(), UNKNOWN);
+    }
+
+    @Benchmark
+    public int indexOf() {
+        return BotGattAttributes.indexOf(mMotionUuid);
+    }
+}
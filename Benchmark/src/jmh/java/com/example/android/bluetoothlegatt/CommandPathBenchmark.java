@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one button press, from the arguments of a write call to the operation sitting in
+ * the session's queue, through the write path {@code BluetoothLeService} delegates to.
+ *
+ * The session is connected to a {@link SimulatedLink} whose clock is never advanced during the
+ * measurement, so the queue is never run and the first write stays pending.  Every later one
+ * takes the coalescing path of a real drive session: it replaces the pending motion instead
+ * of growing the queue.  The connection priority is managed as by default, so moving and
+ * stopping commands alternately cancel and schedule the drop back to balanced priority.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandPathBenchmark {
+    private BotSession mSession;
+    private int mCounter;
+
+    @Setup
+    public void setUp() {
+        final SimulatedLink link = new SimulatedLink(new SimulatedBot.Config());
+        link.connect(TimeUnit.SECONDS.toNanos(1));
+        mSession = link.getSession();
+    }
+
+    /**
+     * {@code BluetoothLeService.writeCustomCharacteristic}: parses both UUID strings, checks
+     * the characteristic exists and queues a freshly allocated UINT8 value.  The hop to the
+     * GATT worker thread is not included.
+     */
+    @Benchmark
+    public boolean writeCustomCharacteristic() {
+        final UUID service = UUID.fromString(BotGattAttributes.bot_service_uuid);
+        final UUID characteristic = UUID.fromString(BotGattAttributes.bot_motion_char_uuid);
+        return mSession.writeCustomCharacteristic(service, characteristic, nextMotion(), null);
+    }
+
+    /**
+     * {@code BluetoothLeService.writeMotion}: the handle table and shared UINT8 values.
+     */
+    @Benchmark
+    public boolean writeMotion() {
+        return mSession.writeMotion(nextMotion(), 0);
+    }
+
+    /**
+     * {@code BluetoothLeService.writeScene} on a bot with the packed command characteristic.
+     */
+    @Benchmark
+    public boolean writeScene() {
+        final int motion = nextMotion();
+        return mSession.writeScene(motion, mCounter, 0);
+    }
+
+    /**
+     * {@code BluetoothLeService.writeDrive} on a bot with the drive characteristic.
+     */
+    @Benchmark
+    public boolean writeDrive() {
+        final int step = mCounter++;
+        return mSession.writeDrive(step % (BotGattAttributes.DRIVE_MAX + 1), 0, 0);
+    }
+
+    private int nextMotion() {
+        return mCounter++ % (BotGattAttributes.RIGHT + 1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GattEventDispatcher} from the GATT callback to the listeners.
+ *
+ * Listeners are registered without a looper, so this measures the dispatcher's own work:
+ * event pooling, the copy of sensor samples and the listener calls.  Posting to a
+ * {@code Looper} needs the Android framework and is not covered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventDispatchBenchmark {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    private GattEventDispatcher mDispatcher;
+    private UUID mCharacteristic =
+            BotGattAttributes.BOT_CHARACTERISTICS[BotGattAttributes.CHAR_SENSOR];
+    private byte[] mValue = new byte[BotGattAttributes.SENSOR_FRAME_LENGTH];
+    private SensorSample mSample = new SensorSample();
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mDispatcher = new GattEventDispatcher();
+        for (int i = 0; i < listeners; i++) {
+            mDispatcher.register(new GattEventDispatcher.Listener() {
+                @Override
+                public void onConnectionStateChanged(String address, int state) {
+                    blackhole.consume(state);
+                }
+
+                @Override
+                public void onServicesDiscovered(String address) {
+                    blackhole.consume(address);
+                }
+
+                @Override
+                public void onBotReady(String address, boolean fromCache) {
+                    blackhole.consume(fromCache);
+                }
+
+                @Override
+                public void onBotUnsupported(String address) {
+                    blackhole.consume(address);
+                }
+
+                @Override
+                public void onDataAvailable(String address, UUID characteristic,
+                                            byte[] value) {
+                    blackhole.consume(value);
+                }
+
+                @Override
+                public void onSensorSample(String address, long timestampNanos, int distance,
+                                           int left, int right, int behind) {
+                    blackhole.consume(distance + left + right + behind);
+                }
+            }, null);
+        }
+    }
+
+    @Benchmark
+    public void dispatchDataAvailable() {
+        mDispatcher.dispatchDataAvailable(ADDRESS, mCharacteristic, mValue);
+    }
+
+    @Benchmark
+    public void dispatchSensorSample() {
+        mSample.timestampNanos++;
+        mDispatcher.dispatchSensorSample(ADDRESS, mSample);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A recorded session played back by {@link ReplayEngine} into a {@link SimulatedBot}, in
+ * virtual time.
+ *
+ * The log is {@link #DURATION_NANOS} of driving: a sensor notification every
+ * {@link #NOTIFICATION_PERIOD_NANOS} and a motion command every {@link #COMMAND_PERIOD_NANOS}.
+ * Each invocation connects a fresh link and replays the whole log through
+ * {@link SimulatedReplaySink} at the given speed, 0 being as fast as possible.  Like
+ * {@link SimulatedLinkBenchmark}, every invocation is checked to produce the same outcome,
+ * printed once per trial; the score is the host time it takes to simulate one replay.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+    static final long DURATION_NANOS = 10000000000L;
+    static final long NOTIFICATION_PERIOD_NANOS = 50000000L;
+    static final long COMMAND_PERIOD_NANOS = 100000000L;
+    private static final long DRAIN_NANOS = 2000000000L;
+    // Motion values cycled through by the recorded commands.
+    private static final int MOTIONS = 5;
+
+    @Param({"1", "10", "0"})
+    public double speed;
+
+    private File mDirectory;
+    private String mPrefix;
+    private String mFirst;
+
+    @Setup(Level.Trial)
+    public void record() throws IOException {
+        mDirectory = File.createTempFile("replay", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        final SessionRecorder recorder = new SessionRecorder(mDirectory, SimulatedLink.ADDRESS);
+        final byte[] frame = new byte[BotGattAttributes.SENSOR_FRAME_LENGTH];
+        final byte[] motion = new byte[1];
+        for (long t = 0; t < DURATION_NANOS; t += NOTIFICATION_PERIOD_NANOS) {
+            frame[BotGattAttributes.SENSOR_FRAME_DISTANCE] = (byte) (t / NOTIFICATION_PERIOD_NANOS);
+            recorder.record(SessionRecorder.TYPE_NOTIFICATION, t, BotGattAttributes.CHAR_SENSOR,
+                    frame);
+            if (t % COMMAND_PERIOD_NANOS == 0) {
+                motion[0] = (byte) (t / COMMAND_PERIOD_NANOS % MOTIONS);
+                recorder.record(SessionRecorder.TYPE_COMMAND, t, BotGattAttributes.CHAR_MOTION,
+                        motion);
+            }
+        }
+        recorder.close();
+        mPrefix = recorder.getPrefix();
+    }
+
+    @Benchmark
+    public String replay() throws IOException {
+        final SimulatedLink link = new SimulatedLink(new SimulatedBot.Config());
+        link.connect(TimeUnit.SECONDS.toNanos(1));
+        final SimulatedScheduler scheduler = link.getScheduler();
+        final BotSession session = link.getSession();
+        final SimulatedReplaySink sink = new SimulatedReplaySink(session);
+        final long writesBefore = link.getBot().getWritesApplied();
+
+        final ReplayEngine engine = new ReplayEngine(scheduler,
+                new SessionLogReader(mDirectory, mPrefix), sink).setSpeed(speed);
+        engine.start();
+        while (!engine.isFinished()) {
+            if (!scheduler.runNext()) {
+                throw new IllegalStateException("Replay stalled: " + engine.getStats());
+            }
+        }
+        scheduler.runFor(DRAIN_NANOS);
+
+        final String outcome = engine.getStats()
+                + " rejected=" + sink.getCommandsRejected()
+                + " applied=" + (link.getBot().getWritesApplied() - writesBefore)
+                + " coalesced=" + session.queue.getCoalescedCount()
+                + " published=" + session.sensorBuffer.getPublishedCount();
+        if (mFirst == null) {
+            mFirst = outcome;
+        } else if (!outcome.equals(mFirst)) {
+            throw new IllegalStateException("Replay is not repeatable: " + outcome
+                    + " after " + mFirst);
+        }
+        return outcome;
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.println("Virtual time, speed " + speed + ": " + mFirst);
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A held joystick streamed through the operation queue to a {@link SimulatedBot}, in virtual
+ * time.
+ *
+ * Each invocation connects a fresh link and writes {@link #COMMANDS} drive frames, one every
+ * {@link #COMMAND_PERIOD_NANOS}, then lets the queue drain.  The writes take the service's
+ * path with streaming on: without response, and with the link raised to high priority while
+ * the bot moves.
+ *
+ * What the bot receives and when depends only on the link profile and the simulator's seed,
+ * not on the host: every invocation is checked to produce the same {@link Outcome}, which is
+ * printed once per trial as the link's throughput and submit-to-apply latency.  The score is
+ * the host time it takes to simulate one run.
+ *
+ * The profiles are:
+ * <ul>
+ *     <li>{@code clean}: the default connection intervals, no loss.</li>
+ *     <li>{@code lossy}: 20% of transmissions retried, up to 5 ms of delivery jitter.</li>
+ *     <li>{@code congested}: a 50 ms interval whatever the priority, carrying one packet per
+ *     event into a two packet buffer, so that writes are rejected as busy, and 10% loss.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimulatedLinkBenchmark {
+    static final int COMMANDS = BotGattAttributes.DRIVE_MAX;
+    // The rate cap of DriveTransmitter.
+    static final long COMMAND_PERIOD_NANOS = 20000000L;
+    private static final long DRAIN_NANOS = 2000000000L;
+
+    /**
+     * What one run delivered, in virtual time.
+     */
+    static final class Outcome {
+        long applied;
+        long coalesced;
+        long busyRejections;
+        long retransmissions;
+        // From the first submission to the last write applied.
+        long durationNanos;
+        LatencyHistogram.Snapshot latency;
+
+        boolean sameAs(Outcome other) {
+            return applied == other.applied
+                    && coalesced == other.coalesced
+                    && busyRejections == other.busyRejections
+                    && retransmissions == other.retransmissions
+                    && durationNanos == other.durationNanos
+                    && latency.p50Nanos == other.latency.p50Nanos
+                    && latency.p99Nanos == other.latency.p99Nanos
+                    && latency.maxNanos == other.latency.maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = durationNanos / 1e9;
+            return "applied=" + applied + "/" + COMMANDS
+                    + " coalesced=" + coalesced
+                    + " busy=" + busyRejections
+                    + " retransmissions=" + retransmissions
+                    + " throughput=" + Math.round(applied / seconds) + "/s"
+                    + " latency=[" + latency + "]";
+        }
+    }
+
+    @Param({"clean", "lossy", "congested"})
+    public String profile;
+
+    private Outcome mFirst;
+
+    @Benchmark
+    public Outcome stream() {
+        final Outcome outcome = run(config(profile));
+        if (mFirst == null) {
+            mFirst = outcome;
+        } else if (!outcome.sameAs(mFirst)) {
+            throw new IllegalStateException("Simulation is not repeatable: " + outcome
+                    + " after " + mFirst);
+        }
+        return outcome;
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.println("Virtual time, " + profile + ": " + mFirst);
+    }
+
+    static SimulatedBot.Config config(String profile) {
+        final SimulatedBot.Config config = new SimulatedBot.Config();
+        if ("lossy".equals(profile)) {
+            config.lossRate = 0.2;
+            config.jitterNanos = 5000000L;
+        } else if ("congested".equals(profile)) {
+            config.connectionIntervalNanos = 50000000L;
+            config.highPriorityIntervalNanos = 50000000L;
+            config.packetsPerEvent = 1;
+            config.txBufferPackets = 2;
+            config.lossRate = 0.1;
+        } else if (!"clean".equals(profile)) {
+            throw new IllegalArgumentException(profile);
+        }
+        return config;
+    }
+
+    static Outcome run(SimulatedBot.Config config) {
+        final SimulatedLink link = new SimulatedLink(config);
+        link.connect(TimeUnit.SECONDS.toNanos(1));
+        final SimulatedScheduler scheduler = link.getScheduler();
+        final BotSession session = link.getSession();
+        session.streaming = true;
+        final SimulatedBot bot = link.getBot();
+
+        // Each frame carries its sequence number as the speed, 1 to COMMANDS.
+        final long[] submitNanos = new long[COMMANDS + 1];
+        final long[] lastAppliedNanos = new long[1];
+        final LatencyHistogram latency = new LatencyHistogram();
+        bot.setObserver(new SimulatedBot.Observer() {
+            @Override
+            public void onWriteApplied(int charIndex, byte[] value, long nanos) {
+                if (charIndex != BotGattAttributes.CHAR_DRIVE) return;
+                latency.record(nanos - submitNanos[value[BotGattAttributes.DRIVE_FRAME_SPEED]]);
+                lastAppliedNanos[0] = nanos;
+            }
+        });
+
+        final long writesBefore = bot.getWritesApplied();
+        final long startNanos = scheduler.nanoTime();
+        for (int i = 1; i <= COMMANDS; i++) {
+            scheduler.runUntil(startNanos + i * COMMAND_PERIOD_NANOS);
+            submitNanos[i] = scheduler.nanoTime();
+            session.writeDrive(i, 0, 0);
+        }
+        scheduler.runFor(DRAIN_NANOS);
+
+        final Outcome outcome = new Outcome();
+        outcome.applied = bot.getWritesApplied() - writesBefore;
+        outcome.coalesced = session.queue.getCoalescedCount();
+        outcome.busyRejections = bot.getBusyRejections();
+        outcome.retransmissions = bot.getRetransmissions();
+        outcome.durationNanos = lastAppliedNanos[0] - (startNanos + COMMAND_PERIOD_NANOS);
+        outcome.latency = latency.getSnapshot();
+        return outcome;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sensor notification handling: decoding a frame into a {@link SensorSample} and passing it
+ * through the session's {@link SensorRingBuffer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TelemetryDecodeBenchmark {
+    private final byte[] mFrame = new byte[BotGattAttributes.SENSOR_FRAME_LENGTH];
+    private final SensorSample mSample = new SensorSample();
+    private final SensorSample mPolled = new SensorSample();
+    private SensorRingBuffer mBuffer;
+    private SensorRingBuffer.Cursor mCursor;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < mFrame.length; i++) {
+            mFrame[i] = (byte) (0x10 + i);
+        }
+        mBuffer = new SensorRingBuffer(BotSession.SENSOR_BUFFER_CAPACITY);
+        mCursor = mBuffer.newCursor();
+    }
+
+    @Benchmark
+    public int decode() {
+        mSample.decode(mFrame, ++mTimestamp);
+        return mSample.distance;
+    }
+
+    /**
+     * Decode and publish, as {@code BluetoothLeService} does for every notification.
+     */
+    @Benchmark
+    public long decodeAndPublish() {
+        mSample.decode(mFrame, ++mTimestamp);
+        mBuffer.publish(mSample);
+        return mBuffer.getPublishedCount();
+    }
+
+    /**
+     * Decode, publish and read back through a cursor that keeps up with the producer.
+     */
+    @Benchmark
+    public int decodePublishPoll() {
+        mSample.decode(mFrame, ++mTimestamp);
+        mBuffer.publish(mSample);
+        mCursor.poll(mPolled);
+        return mPolled.distance;
+    }
+}